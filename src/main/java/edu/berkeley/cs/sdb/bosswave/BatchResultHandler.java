@@ -0,0 +1,11 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.List;
+
+public interface BatchResultHandler {
+    /**
+     * Receives a batch of results, in the order they arrived. The list is reused for later batches, so it is only
+     * valid until this method returns; copy it to keep any of its elements' references beyond that.
+     */
+    void onResultsReceived(List<BosswaveResult> results);
+}
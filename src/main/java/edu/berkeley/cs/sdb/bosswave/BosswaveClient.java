@@ -1,34 +1,84 @@
 package edu.berkeley.cs.sdb.bosswave;
 
-import org.apache.commons.lang3.CharEncoding;
-import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
 public class BosswaveClient implements Closeable {
     public static final int DEFAULT_PORT = 28589;
     private static final int SOCKET_TIMEOUT_MS = 2000;
 
+    // The most frames waiting for the writer; beyond this, requests wait for it to catch up
+    private static final int MAX_QUEUED_FRAMES = 64;
+    // Encoders in use beyond the queued frames: the one being written, and those that requests are filling
+    private static final int SPARE_ENCODERS = 16;
+    private static final int DISPATCH_STRIPES_PER_CORE = 4;
+    private static final int DEFAULT_FLOW_BUFFER_SIZE = 256;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    private static final long DEFAULT_CHAIN_TTL_MS = 5 * 60 * 1000;
+    private static final String PUBLISH_PERMISSION = "P";
+    private static final String CONSUME_PERMISSION = "C";
+    private static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+    private static final long DEFAULT_MAX_BATCH_DELAY_MS = 100;
+    private static final long TIMER_TICK_MS = 50;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    static final String TIMEOUT_REASON = "Timed out waiting for the agent";
+    static final String DISCONNECTED_REASON = "Lost the connection to the agent";
+    static final String CLOSED_REASON = "Client is closed";
+    // What a query answered from the last-value cache ends with, mirroring the agent's terminating frame
+    static final BosswaveResult CACHED_QUERY_END = new BosswaveResult(
+            null, null, Collections.<RoutingObject>emptyList(), Collections.<PayloadObject>emptyList(),
+            new Frame.Builder(Command.RESULT, 0).addKVPair("finished", "true").build());
+
     private final DateTimeFormatter Rfc3339 = ISODateTimeFormat.dateTime();
 
     private final BWListener listener;
     private final Thread listenerThread;
-
-    private final Map<Integer, ResponseHandler> responseHandlers;
-    private final Object responseHandlerLock;
-    private final Map<Integer, ResultHandler> resultHandlers;
-    private final Object messageHandlersLock;
-    private final Map<Integer, ListResultHandler> listResultHandlers;
-    private final Object listResultHandlersLock;
+    private final BWWriter writer;
+    private final Thread writerThread;
+
+    private final InFlightTable inFlight;
+    private final SharedSubscriptions sharedSubscriptions;
+    private final WildcardCoalescer wildcardCoalescer;
+    private final NamespaceCrawler namespaceCrawler;
+
+    private final EncoderPool encoderPool;
+    private volatile KeyedExecutor dispatcher;
+    private volatile long requestTimeoutNanos;
+    private volatile HashedWheelTimer timer;
+    private volatile LastValueCache lastValueCache;
+    private volatile ChainCache chainCache;
+    // The verifying key of the entity set with setEntityFromFile, once the agent has accepted it
+    private volatile String entityVk;
+    private ExecutorService ownedDispatchExecutor;
+    // Runs handlers for timer events when there is no dispatcher, so that they never hold up the timer thread
+    private ExecutorService timerCallbackExecutor;
 
     private Boolean autoChainOverride;
 
@@ -39,13 +89,16 @@ public class BosswaveClient implements Closeable {
     public BosswaveClient(String hostName, int port) throws IOException {
         listener = new BWListener();
         listenerThread = new Thread(listener);
+        writer = new BWWriter();
+        writerThread = new Thread(writer);
 
-        responseHandlers = new HashMap<Integer, ResponseHandler>();
-        responseHandlerLock = new Object();
-        resultHandlers = new HashMap<Integer, ResultHandler>();
-        messageHandlersLock = new Object();
-        listResultHandlers = new HashMap<Integer, ListResultHandler>();
-        listResultHandlersLock = new Object();
+        inFlight = new InFlightTable();
+        sharedSubscriptions = new SharedSubscriptions(this);
+        wildcardCoalescer = new WildcardCoalescer(this);
+        namespaceCrawler = new NamespaceCrawler(this);
+        // Holds every encoder that can be in use at once, short of many threads publishing together, so that
+        // publishing doesn't allocate encoders in steady state however far the writer falls behind
+        encoderPool = new EncoderPool(MAX_QUEUED_FRAMES + SPARE_ENCODERS);
 
         socket = new Socket(hostName, port);
         socket.setSoTimeout(SOCKET_TIMEOUT_MS);
@@ -64,18 +117,137 @@ public class BosswaveClient implements Closeable {
         }
 
         listenerThread.start();
+        writerThread.start();
     }
 
     public void overrideAutoChainTo(boolean autoChain) {
         autoChainOverride = autoChain;
     }
 
+    /**
+     * Runs response and result handlers on the given executor instead of on the thread that reads from the agent,
+     * so that a slow handler no longer holds up every other request on the connection. Handlers for any one
+     * request or subscription still run one at a time, in the order its frames arrived.
+     * @param executor The executor to run handlers on, or null to run them on the reader thread (the default)
+     */
+    public void setDispatchExecutor(Executor executor) {
+        setDispatchExecutor(executor, DISPATCH_STRIPES_PER_CORE * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Like setDispatchExecutor(Executor), with an explicit number of stripes.
+     * @param stripes The number of serial queues that requests are spread across. Requests that share a queue
+     *                are handled one at a time, so this bounds the parallelism of dispatch.
+     */
+    public void setDispatchExecutor(Executor executor, int stripes) {
+        setDispatcher(executor == null ? null : new StripedExecutor(executor, stripes), null);
+    }
+
+    /**
+     * Runs handlers on virtual threads, for applications whose handlers block. Each request or subscription with
+     * pending callbacks gets a virtual thread of its own, so a blocked handler only delays later callbacks for
+     * the same subscription, which still run in order. Virtual threads require Java 21; on older runtimes, this
+     * falls back to dispatching through a striped pool of daemon platform threads.
+     * @return true if virtual threads are used, false if the client fell back to platform threads
+     */
+    public boolean useVirtualThreadDispatch() {
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        if (virtualThreads != null) {
+            setDispatcher(new PerKeySerialExecutor(virtualThreads), virtualThreads);
+            return true;
+        }
+        ExecutorService platformThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bosswave-dispatch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        int stripes = DISPATCH_STRIPES_PER_CORE * Runtime.getRuntime().availableProcessors();
+        setDispatcher(new StripedExecutor(platformThreads, stripes), platformThreads);
+        return false;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively, so that the client still runs on
+    // older Java versions and on Android
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // Virtual threads exist but are disabled, e.g. as a preview feature
+            return null;
+        }
+    }
+
+    // Replaces the dispatcher, shutting down any executor that the client created for the previous one
+    private synchronized void setDispatcher(KeyedExecutor newDispatcher, ExecutorService owned) {
+        dispatcher = newDispatcher;
+        if (ownedDispatchExecutor != null) {
+            ownedDispatchExecutor.shutdown();
+        }
+        ownedDispatchExecutor = owned;
+    }
+
+    /**
+     * Sets a deadline for every request sent from now on: if the agent hasn't responded by then (or, for queries
+     * and lists, hasn't finished sending results), the request is forgotten. Its handlers are told through
+     * TimeoutHandler.onTimeout if they implement it; otherwise, its response handler receives an "error"
+     * response. The futures returned by the asynchronous methods complete exceptionally with a TimeoutException.
+     * A subscription's deadline only covers the wait for its response. Timeouts are handled through the dispatch
+     * executor, if one is set, and otherwise on threads of the client's own.
+     * @param timeout The timeout, or 0 for none (the default)
+     */
+    public synchronized void setRequestTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        if (timeout > 0) {
+            timer();
+        }
+        requestTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    // The timer for request deadlines and subscription expiry, started when first needed
+    private synchronized HashedWheelTimer timer() {
+        if (timer == null) {
+            timer = new HashedWheelTimer(TIMER_TICK_MS, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE);
+        }
+        return timer;
+    }
+
+    private synchronized Executor timerCallbackExecutor() {
+        if (timerCallbackExecutor == null) {
+            timerCallbackExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bosswave-timeout");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timerCallbackExecutor;
+    }
+
     @Override
     public void close() throws IOException {
         listener.stop();
+        // Let the writer send anything already queued before the socket is closed
+        writer.stop();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Failed to join writer thread", e);
+        }
+
         if (socket != null) {
-            inStream.close();
-            outStream.close();
+            // The writer has flushed everything it could, so don't retry a write that already failed
             socket.close();
         }
 
@@ -84,6 +256,19 @@ public class BosswaveClient implements Closeable {
         } catch (InterruptedException e) {
             throw new RuntimeException("Failed to join listener thread", e);
         }
+
+        synchronized (this) {
+            if (timer != null) {
+                timer.stop();
+            }
+            if (timerCallbackExecutor != null) {
+                // Handlers that are already queued still run
+                timerCallbackExecutor.shutdown();
+            }
+        }
+
+        // Handlers that are already queued still run
+        setDispatcher(null, null);
     }
 
     public void setEntityFromFile(File f, ResponseHandler handler) throws IOException {
@@ -101,462 +286,1581 @@ public class BosswaveClient implements Closeable {
         }
     }
 
-    private void setEntity(byte[] keyFile, ResponseHandler handler) throws IOException {
-        int seqNo = Frame.generateSequenceNumber();
-        Frame.Builder builder = new Frame.Builder(Command.SET_ENTITY, seqNo);
+    private void setEntity(byte[] keyFile, final ResponseHandler handler) throws IOException {
+        int seqNo = register(new ResponseHandler() {
+            @Override
+            public void onResponseReceived(BosswaveResponse response) {
+                if (response.getStatus().equals("okay")) {
+                    entityVk = response.getValue("vk");
+                    ChainCache cache = chainCache;
+                    if (cache != null) {
+                        cache.setEntity(entityVk);
+                    }
+                }
+                if (handler != null) {
+                    handler.onResponseReceived(response);
+                }
+            }
+        }, null, null);
+        FrameEncoder encoder = beginFrame(Command.SET_ENTITY, seqNo);
         PayloadObject.Type type = new PayloadObject.Type(new byte[]{0, 0, 0, 50});
         PayloadObject po = new PayloadObject(type, keyFile);
-        builder.addPayloadObject(po);
+        encoder.addPayloadObject(po);
 
-        Frame frame = builder.build();
-        frame.writeToStream(outStream);
-        outStream.flush();
-        installResponseHandler(seqNo, handler);
+        sendFrame(seqNo, encoder);
     }
 
     public void publish(PublishRequest request, ResponseHandler handler) throws IOException {
-        Command command = Command.PUBLISH;
-        if (request.isPersist()) {
-            command = Command.PERSIST;
-        }
-        int seqNo = Frame.generateSequenceNumber();
-        Frame.Builder builder = new Frame.Builder(command, seqNo);
+        ChainCache.Entry chain = cachedChain(request.getUri(), request.getPrimaryAccessChain(), request.autoChain(),
+                                             PUBLISH_PERMISSION);
+        int seqNo = register(handler, null, null, true, chain);
+        FrameEncoder encoder = beginFrame(publishCommand(request), seqNo);
+        encodePublish(encoder, request, chain);
+        sendFrame(seqNo, encoder);
+    }
 
-        String uri = request.getUri();
-        builder.addKVPair("uri", uri);
+    /**
+     * Prepares to publish many messages that differ only in their payloads. Everything but the payload objects
+     * given to each send is encoded once, now, so the access chain and any expiry are fixed at this point.
+     */
+    public PreparedPublish prepare(PublishRequest request) {
+        ChainCache.Entry chain = cachedChain(request.getUri(), request.getPrimaryAccessChain(), request.autoChain(),
+                                             PUBLISH_PERMISSION);
+        FrameEncoder encoder = beginFrame(publishCommand(request), 0);
+        try {
+            encodePublish(encoder, request, chain);
+            return new PreparedPublish(this, encoder.contents());
+        } finally {
+            encoderPool.release(encoder);
+        }
+    }
 
-        if (request.isPersist()) {
-            builder.setCommand(Command.PERSIST);
-        } else {
-            builder.setCommand(Command.PUBLISH);
+    /**
+     * Sends a publish prepared with prepare(), adding a list of payload objects and one more given as a slice of
+     * an array, either of which may be null.
+     */
+    void sendPrepared(byte[] template, List<PayloadObject> pos, PayloadObject.Type type, byte[] content, int offset,
+                      int length, ResponseHandler handler) throws IOException {
+        int seqNo = register(handler, null, null);
+        FrameEncoder encoder = encoderPool.acquire().begin(template, seqNo);
+        if (pos != null) {
+            for (int i = 0; i < pos.size(); i++) {
+                encoder.addPayloadObject(pos.get(i));
+            }
         }
-        builder.addKVPair("persist", Boolean.toString(request.isPersist()));
+        if (type != null) {
+            encoder.addPayloadObject(type, content, offset, length);
+        }
+        sendFrame(seqNo, encoder);
+    }
+
+    private static Command publishCommand(PublishRequest request) {
+        return (request.isPersist() ? Command.PERSIST : Command.PUBLISH);
+    }
 
-        Date expiryTime = request.getExpiry();
-        if (expiryTime != null) {
-            builder.addKVPair("expiry", Rfc3339.print(new DateTime(expiryTime)));
+    private void encodePublish(FrameEncoder encoder, PublishRequest request, ChainCache.Entry chain) {
+        encoder.addKVPair("uri", request.getUri());
+        encoder.addKVPair("persist", request.isPersist());
+        addExpiry(encoder, request.getExpiry(), request.getExpiryDelta(), "expiryDelta");
+        encoder.addKVPair("doverify", request.doVerify());
+        addElaborationLevel(encoder, request.getChainElaborationLevel());
+        addAccessChain(encoder, request.getPrimaryAccessChain(), request.autoChain(), chain);
+
+        List<RoutingObject> ros = request.getRoutingObjects();
+        for (int i = 0; i < ros.size(); i++) {
+            encoder.addRoutingObject(ros.get(i));
+        }
+        List<PayloadObject> pos = request.getPayloadObjects();
+        for (int i = 0; i < pos.size(); i++) {
+            encoder.addPayloadObject(pos.get(i));
         }
+    }
 
-        Long expiryDelta = request.getExpiryDelta();
-        if (expiryDelta != null) {
-            builder.addKVPair("expiryDelta", String.format("%dms", expiryDelta));
+    /**
+     * Publishes a reusable request. With no response handler, this allocates nothing in steady state (see
+     * MutablePublishRequest); the request may be refilled for the next message as soon as this returns.
+     * @param handler The handler for the agent's response, or null to not be told of it
+     */
+    public void publish(MutablePublishRequest request, ResponseHandler handler) throws IOException {
+        Command command = (request.isPersist() ? Command.PERSIST : Command.PUBLISH);
+        ChainCache.Entry chain = cachedChain(request.getUri(), request.getPrimaryAccessChain(), request.autoChain(),
+                                             PUBLISH_PERMISSION);
+        int seqNo = register(handler, null, null, true, chain);
+        FrameEncoder encoder = beginFrame(command, seqNo);
+
+        encoder.addKVPair("uri", request.getUri());
+        encoder.addKVPair("persist", request.isPersist());
+        if (request.hasExpiryDelta()) {
+            encoder.addKVPairMillis("expiryDelta", request.getExpiryDeltaMillis());
         }
+        encoder.addKVPair("doverify", request.doVerify());
+        addElaborationLevel(encoder, request.getChainElaborationLevel());
+        addAccessChain(encoder, request.getPrimaryAccessChain(), request.autoChain(), chain);
 
-        String pac = request.getPrimaryAccessChain();
-        if (pac != null) {
-            builder.addKVPair("primary_access_chain", pac);
+        List<RoutingObject> ros = request.getRoutingObjects();
+        for (int i = 0; i < ros.size(); i++) {
+            encoder.addRoutingObject(ros.get(i));
         }
+        request.encodePayloadObjects(encoder);
 
-        builder.addKVPair("doverify", Boolean.toString(request.doVerify()));
+        sendFrame(seqNo, encoder);
+    }
 
-        ChainElaborationLevel level = request.getChainElaborationLevel();
-        if (level != ChainElaborationLevel.NONE) {
-            builder.addKVPair("elaborate_pac", level.toString().toLowerCase());
-        }
+    /**
+     * @return A handle through which the subscription is cancelled. The client also forgets the subscription on
+     * its own once the request's expiry or expiry delta has passed.
+     */
+    public SubscriptionHandle subscribe(SubscribeRequest request, ResponseHandler rspH, ResultHandler rsltH)
+            throws IOException {
+        final ClientSubscription handle = new ClientSubscription(this, sendSubscribe(request, rspH, rsltH));
+        handle.expireWith(scheduleExpiry(request, new Runnable() {
+            @Override
+            public void run() {
+                handle.cancel();
+            }
+        }));
+        return handle;
+    }
 
-        if (autoChainOverride != null) {
-            builder.addKVPair("autochain", autoChainOverride.toString());
-        } else if (request.autoChain()) {
-            builder.addKVPair("autochain", "true");
-        }
+    /**
+     * Subscribes, delivering results in batches rather than one at a time. A batch holds the subscription's
+     * results from one read of the agent's socket, capped at a default size and age.
+     */
+    public SubscriptionHandle subscribeBatched(SubscribeRequest request, ResponseHandler rspH,
+                                               BatchResultHandler batchH) throws IOException {
+        return subscribeBatched(request, rspH, batchH, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_DELAY_MS);
+    }
 
-        for (RoutingObject ro : request.getRoutingObjects()) {
-            builder.addRoutingObject(ro);
-        }
-        for (PayloadObject po : request.getPayloadObjects()) {
-            builder.addPayloadObject(po);
-        }
+    /**
+     * @param maxBatchSize A batch is delivered as soon as it holds this many results
+     * @param maxBatchDelayMillis A batch is delivered as soon as its first result is this old, to within the
+     *                            resolution of the client's timer, even if no further results arrive
+     */
+    public SubscriptionHandle subscribeBatched(SubscribeRequest request, ResponseHandler rspH,
+                                               BatchResultHandler batchH, int maxBatchSize,
+                                               long maxBatchDelayMillis) throws IOException {
+        return subscribe(request, rspH, new ResultBatcher(this, batchH, maxBatchSize, maxBatchDelayMillis));
+    }
 
-        Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
-        installResponseHandler(seqNo, handler);
+    /**
+     * Subscribes, sharing one agent subscription among all shared subscribers whose requests are equal. Results
+     * arrive from the agent once and are handed to each subscriber's ResultHandler in turn. A subscriber joining
+     * an existing subscription gets its response immediately if the agent has already acknowledged it. Requests
+     * with an expiry delta aren't shared, since the delta would run from the first subscriber's request.
+     * @return A handle through which the subscriber cancels its share of the subscription
+     */
+    public SharedSubscription subscribeShared(SubscribeRequest request, ResponseHandler rspH, ResultHandler rsltH)
+            throws IOException {
+        return sharedSubscriptions.subscribe(request, rspH, rsltH);
     }
 
-    public void subscribe(SubscribeRequest request, ResponseHandler rspH, ResultHandler rsltH) throws IOException {
-        int seqNo = Frame.generateSequenceNumber();
-        Frame.Builder builder = new Frame.Builder(Command.SUBSCRIBE, seqNo);
+    /**
+     * Subscribes with wildcard coalescing: once the number of coalesced subscriptions with the same options beneath
+     * a URI prefix reaches the threshold set by setWildcardCoalescingThreshold, they are replaced by a single
+     * "prefix/*" subscription, whose results are routed locally to the subscriptions they match. While coalescing
+     * is disabled (the default), this subscribes as usual, as it does for requests with an expiry delta, which
+     * would otherwise run from the wildcard request rather than from each subscription's own.
+     * @return A handle through which the subscription is cancelled
+     */
+    public CoalescedSubscription subscribeCoalesced(SubscribeRequest request, ResponseHandler rspH,
+                                                    ResultHandler rsltH) throws IOException {
+        return wildcardCoalescer.subscribe(request, rspH, rsltH);
+    }
 
-        String uri = request.getUri();
-        builder.addKVPair("uri", uri);
+    /**
+     * Sets how many subscriptions made through subscribeCoalesced must share a URI prefix before they are replaced
+     * by a wildcard subscription. The agent must grant permission on the wildcard URI; where it doesn't, the
+     * subscriptions beneath that prefix are kept separate.
+     * @param threshold The threshold, or 0 to disable coalescing
+     */
+    public void setWildcardCoalescingThreshold(int threshold) {
+        wildcardCoalescer.setThreshold(threshold);
+    }
 
-        Date expiryTime = request.getExpiry();
-        if (expiryTime != null) {
-            builder.addKVPair("expiry", Rfc3339.print(new DateTime(expiryTime)));
+    // Sends a subscribe request and returns its sequence number
+    int sendSubscribe(SubscribeRequest request, ResponseHandler rspH, ResultHandler rsltH) throws IOException {
+        ChainCache.Entry chain = cachedChain(request.getUri(), request.getPrimaryAccessChain(), request.autoChain(),
+                                             consumePermission(request.getUri()));
+        int seqNo = register(rspH, rsltH, null, false, chain);
+        FrameEncoder encoder = beginFrame(Command.SUBSCRIBE, seqNo);
+
+        encoder.addKVPair("uri", request.getUri());
+        addExpiry(encoder, request.getExpiry(), request.getExpiryDelta(), "expirydelta");
+        encoder.addKVPair("doverify", request.doVerify());
+        addElaborationLevel(encoder, request.getChainElaborationLevel());
+        addAccessChain(encoder, request.getPrimaryAccessChain(), request.autoChain(), chain);
+
+        if (!request.leavePacked()) {
+            encoder.addKVPair("unpack", "true");
         }
 
-        Long expiryDelta = request.getExpiryDelta();
-        if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+        for (RoutingObject ro : request.getRoutingObjects()) {
+            encoder.addRoutingObject(ro);
         }
 
+        sendFrame(seqNo, encoder);
+        return seqNo;
+    }
+
+    public void list(ListRequest request, ResponseHandler rh, ListResultHandler lrh) throws IOException {
+        sendList(request, rh, lrh);
+    }
+
+    private int sendList(ListRequest request, ResponseHandler rh, ListResultHandler lrh) throws IOException {
+        int seqNo = register(rh, null, lrh);
+        FrameEncoder encoder = beginFrame(Command.LIST, seqNo);
+
+        encoder.addKVPair("uri", request.getUri());
+
         String pac = request.getPrimaryAccessChain();
         if (pac != null) {
-            builder.addKVPair("primary_access_chain", pac);
+            encoder.addKVPair("primary_access_chain", pac);
         }
 
-        builder.addKVPair("doverify", Boolean.toString(request.doVerify()));
+        addExpiry(encoder, request.getExpiry(), request.getExpiryDelta(), "expirydelta");
+        addElaborationLevel(encoder, request.getElabLevel());
+        addAutoChain(encoder, request.autoChain());
 
-        ChainElaborationLevel level = request.getChainElaborationLevel();
-        if (level != ChainElaborationLevel.NONE) {
-            builder.addKVPair("elaborate_pac", level.toString().toLowerCase());
+        for (RoutingObject ro : request.getRoutingObjects()) {
+            encoder.addRoutingObject(ro);
         }
 
-        if (autoChainOverride != null) {
-            builder.addKVPair("autochain", autoChainOverride.toString());
-        } else if (request.autoChain()) {
-            builder.addKVPair("autochain", "true");
+        sendFrame(seqNo, encoder);
+        return seqNo;
+    }
+
+    /**
+     * Queries for the messages persisted on a URI. With the last-value cache enabled, a query for a concrete URI
+     * (one without wildcards) that asks for unpacked results is answered from the cache when a subscription has
+     * delivered a recent enough message on the URI; the handlers then see the same sequence of calls as for an
+     * answer from the agent.
+     */
+    public void query(QueryRequest request, ResponseHandler respH, ResultHandler rsltH) throws IOException {
+        LastValueCache cache = lastValueCache;
+        if (cache != null && answerFromCache(cache, request, respH, rsltH)) {
+            return;
         }
 
+        ChainCache.Entry chain = cachedChain(request.getUri(), request.getPrimaryAccessChain(), request.autoChain(),
+                                             consumePermission(request.getUri()));
+        int seqNo = register(respH, rsltH, null, true, chain);
+        FrameEncoder encoder = beginFrame(Command.QUERY, seqNo);
+
+        encoder.addKVPair("uri", request.getUri());
+        addExpiry(encoder, request.getExpiry(), request.getExpiryDelta(), "expirydelta");
+        addElaborationLevel(encoder, request.getElabLevel());
+        addAccessChain(encoder, request.getPrimaryAccessChain(), request.autoChain(), chain);
+
         if (!request.leavePacked()) {
-            builder.addKVPair("unpack", "true");
+            encoder.addKVPair("unpack", "true");
         }
 
         for (RoutingObject ro : request.getRoutingObjects()) {
-            builder.addRoutingObject(ro);
+            encoder.addRoutingObject(ro);
         }
 
-        Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
+        sendFrame(seqNo, encoder);
+    }
+
+    public void makeEntity(MakeEntityRequest request, ResponseHandler rh) throws IOException {
+        int seqNo = register(rh, null, null);
+        FrameEncoder encoder = beginFrame(Command.MAKE_ENTITY, seqNo);
 
-        if (rspH != null) {
-            installResponseHandler(seqNo, rspH);
+        String contact = request.getContact();
+        if (contact != null) {
+            encoder.addKVPair("contact", contact);
         }
-        if (rsltH != null) {
-            installResultHandler(seqNo, rsltH);
+
+        String comment = request.getComment();
+        if (comment != null) {
+            encoder.addKVPair("comment", comment);
         }
+
+        addExpiry(encoder, request.getExpiry(), request.getExpiryDelta(), "expirydelta");
+
+        for (String revoker : request.getRevokers()) {
+            encoder.addKVPair("revoker", revoker);
+        }
+
+        encoder.addKVPair("omitcreationdate", request.omitCreationDate());
+
+        sendFrame(seqNo, encoder);
     }
 
-    public void list(ListRequest request, ResponseHandler rh, ListResultHandler lrh) throws IOException {
-        int seqNo = Frame.generateSequenceNumber();
-        Frame.Builder builder = new Frame.Builder(Command.LIST, seqNo);
+    public void makeDot(MakeDotRequest request, ResponseHandler rh) throws IOException {
+        int seqNo = register(rh, null, null);
+        FrameEncoder encoder = beginFrame(Command.MAKE_DOT, seqNo);
 
-        builder.addKVPair("uri", request.getUri());
+        encoder.addKVPair("to", request.getTo());
 
-        String pac = request.getPrimaryAccessChain();
-        if (pac != null) {
-            builder.addKVPair("primary_access_chain", pac);
+        Integer ttl = request.getTimeToLive();
+        if (ttl != null) {
+            encoder.addKVPair("ttl", (long) ttl);
         }
 
-        Date expiry = request.getExpiry();
-        if (expiry != null) {
-            builder.addKVPair("expiry", Rfc3339.print(new DateTime(expiry)));
+        encoder.addKVPair("ispermission", request.isPermission());
+        addExpiry(encoder, request.getExpiry(), request.getExpiryDelta(), "expirydelta");
+
+        String contact = request.getContact();
+        if (contact != null) {
+            encoder.addKVPair("contact", contact);
         }
-        Long expiryDelta = request.getExpiryDelta();
-        if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+
+        String comment = request.getComment();
+        if (comment != null) {
+            encoder.addKVPair("comment", comment);
         }
 
-        ChainElaborationLevel level = request.getElabLevel();
-        if (level != ChainElaborationLevel.NONE) {
-            builder.addKVPair("elaborate_pac", level.toString().toLowerCase());
+        for (String revoker : request.getRevokers()) {
+            encoder.addKVPair("revoker", revoker);
         }
 
-        if (autoChainOverride != null) {
-            builder.addKVPair("autochain", autoChainOverride.toString());
-        } else if (request.autoChain()) {
-            builder.addKVPair("autochain", "true");
+        encoder.addKVPair("omitcreationdate", request.omitCreationDate());
+
+        String accessPermissions = request.getAccessPermissions();
+        if (accessPermissions != null) {
+            encoder.addKVPair("accesspermissions", accessPermissions);
         }
 
-        for (RoutingObject ro : request.getRoutingObjects()) {
-            builder.addRoutingObject(ro);
+        String uri = request.getUri();
+        if (uri != null) {
+            encoder.addKVPair("uri", uri);
+        }
+
+        sendFrame(seqNo, encoder);
+    }
+
+    public void makeChain(boolean isPermission, boolean unelaborate, List<String> dots,
+                          ResponseHandler rh) throws IOException {
+        int seqNo = register(rh, null, null);
+        FrameEncoder encoder = beginFrame(Command.MAKE_CHAIN, seqNo);
+
+        encoder.addKVPair("ispermission", isPermission);
+        encoder.addKVPair("unelaborate", unelaborate);
+        for (String dot : dots) {
+            encoder.addKVPair("dot", dot);
         }
 
-        Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
-        if (rh != null) {
-            installResponseHandler(seqNo, rh);
+        sendFrame(seqNo, encoder);
+    }
+
+    /**
+     * Publishes without waiting for the agent's response. Any number of asynchronous requests may be in flight;
+     * each is matched to its response by sequence number.
+     * @return A future that completes with the agent's "okay" response, or exceptionally with a
+     *         BosswaveException if the agent rejects the publish, or an IOException if it can't be sent. If the
+     *         connection to the agent is lost, or the client closed, before the response arrives, the future
+     *         completes exceptionally with a BosswaveException, as do those of the other asynchronous methods.
+     */
+    public CompletableFuture<BosswaveResponse> publishAsync(PublishRequest request) {
+        ResponseFuture future = new ResponseFuture();
+        try {
+            publish(request, future);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
         }
-        if (lrh != null) {
-            installListResponseHandler(seqNo, lrh);
+        return future;
+    }
+
+    // Completes with every result of the query, once the agent reports that the query is finished
+    public CompletableFuture<List<BosswaveResult>> queryAsync(QueryRequest request) {
+        QueryFuture future = new QueryFuture();
+        try {
+            query(request, future, future);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
-    public void query(QueryRequest request, ResponseHandler respH, ResultHandler rsltH) throws IOException {
-        int seqNo = Frame.generateSequenceNumber();
-        Frame.Builder builder = new Frame.Builder(Command.QUERY, seqNo);
+    /**
+     * Runs many queries at once, with up to a default number in flight.
+     * @see #queryAll(Collection, int, ResultHandler)
+     */
+    public CompletableFuture<Map<String, List<BosswaveResult>>> queryAll(Collection<QueryRequest> requests) {
+        return queryAll(requests, DEFAULT_MAX_IN_FLIGHT, null);
+    }
 
-        builder.addKVPair("uri", request.getUri());
+    /**
+     * Runs many queries at once, starting a new one as each finishes so that no more than maxInFlight are
+     * outstanding, and gathers their results by the URI queried. Results for requests with the same URI are
+     * combined.
+     * @param streamH If not null, also receives every result as it arrives, from whichever query it belongs to
+     * @return A future that completes once every query has finished, or exceptionally with the first failure, in
+     *         which case no further queries are started
+     */
+    public CompletableFuture<Map<String, List<BosswaveResult>>> queryAll(Collection<QueryRequest> requests,
+                                                                         int maxInFlight,
+                                                                         final ResultHandler streamH) {
+        final List<QueryRequest> ordered = new ArrayList<QueryRequest>(requests);
+        RequestPipeline<QueryRequest, List<BosswaveResult>> pipeline =
+                new RequestPipeline<QueryRequest, List<BosswaveResult>>(ordered, maxInFlight,
+                        new RequestPipeline.Stage<QueryRequest, List<BosswaveResult>>() {
+                            @Override
+                            public CompletableFuture<List<BosswaveResult>> start(QueryRequest request)
+                                    throws IOException {
+                                QueryFuture future = new QueryFuture(streamH);
+                                query(request, future, future);
+                                return future;
+                            }
+                        }, null);
+        return pipeline.run().thenApply(
+                new Function<List<List<BosswaveResult>>, Map<String, List<BosswaveResult>>>() {
+                    @Override
+                    public Map<String, List<BosswaveResult>> apply(List<List<BosswaveResult>> results) {
+                        Map<String, List<BosswaveResult>> byUri = new LinkedHashMap<String, List<BosswaveResult>>();
+                        for (int i = 0; i < results.size(); i++) {
+                            String uri = ordered.get(i).getUri();
+                            List<BosswaveResult> gathered = byUri.get(uri);
+                            if (gathered == null) {
+                                byUri.put(uri, results.get(i));
+                            } else {
+                                List<BosswaveResult> combined = new ArrayList<BosswaveResult>(gathered);
+                                combined.addAll(results.get(i));
+                                byUri.put(uri, Collections.unmodifiableList(combined));
+                            }
+                        }
+                        return Collections.unmodifiableMap(byUri);
+                    }
+                });
+    }
 
-        String pac = request.getPrimaryAccessChain();
-        if (pac != null) {
-            builder.addKVPair("primary_access_chain", pac);
+    // Completes with every child URI reported by the agent, once the listing is finished
+    public CompletableFuture<List<String>> listAsync(ListRequest request) {
+        ListFuture future = new ListFuture();
+        try {
+            list(request, future, future);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
         }
+        return future;
+    }
 
-        Date expiry = request.getExpiry();
-        if (expiry != null) {
-            builder.addKVPair("expiry", Rfc3339.print(new DateTime(expiry)));
-        }
-        Long expiryDelta = request.getExpiryDelta();
-        if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+    /**
+     * Discovers the whole namespace beneath a URI, with up to a default number of LIST requests in flight.
+     * @see #crawl(ListRequest, int)
+     */
+    public CompletableFuture<NamespaceTree> crawl(ListRequest request) {
+        return crawl(request, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Discovers the whole namespace beneath a URI by listing it breadth-first, so that the crawl takes about one
+     * round trip per level of the tree. Every LIST carries the request's options. The resulting tree is cached
+     * (see setNamespaceCacheTtl), so a repeated crawl of the same request returns the cached tree until it
+     * expires, and concurrent crawls of the same request share one traversal.
+     * @param maxInFlight The most LIST requests to have outstanding at once
+     */
+    public CompletableFuture<NamespaceTree> crawl(ListRequest request, int maxInFlight) {
+        return namespaceCrawler.crawl(request, maxInFlight);
+    }
+
+    /**
+     * Sets how long a crawled namespace tree is reused before crawl lists the namespace again. The default is
+     * 30 seconds.
+     * @param ttl The time to live, or 0 to disable caching
+     */
+    public void setNamespaceCacheTtl(long ttl, TimeUnit unit) {
+        namespaceCrawler.setTtlNanos(unit.toNanos(ttl));
+    }
+
+    // Forgets every cached namespace tree, so that the next crawl of each lists it afresh
+    public void invalidateNamespaceCache() {
+        namespaceCrawler.invalidate();
+    }
+
+    public CompletableFuture<BosswaveResponse> makeEntityAsync(MakeEntityRequest request) {
+        ResponseFuture future = new ResponseFuture();
+        try {
+            makeEntity(request, future);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
         }
+        return future;
+    }
 
-        ChainElaborationLevel level = request.getElabLevel();
-        if (level != ChainElaborationLevel.NONE) {
-            builder.addKVPair("elaborate_pac", level.toString().toLowerCase());
+    public CompletableFuture<BosswaveResponse> makeDotAsync(MakeDotRequest request) {
+        ResponseFuture future = new ResponseFuture();
+        try {
+            makeDot(request, future);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
         }
+        return future;
+    }
 
-        if (autoChainOverride != null) {
-            builder.addKVPair("autochain", autoChainOverride.toString());
-        } else if (request.autoChain()) {
-            builder.addKVPair("autochain", "true");
+    /**
+     * Makes many DOTs, with up to a default number of requests in flight.
+     * @see #makeDots(Collection, int, ProgressListener)
+     */
+    public CompletableFuture<List<CreatedDot>> makeDots(Collection<MakeDotRequest> requests) {
+        return makeDots(requests, DEFAULT_MAX_IN_FLIGHT, null);
+    }
+
+    /**
+     * Makes many DOTs, keeping up to maxInFlight requests outstanding rather than waiting for each response in
+     * turn.
+     * @param listener If not null, told as each DOT is made, including DOTs still in flight when another request
+     *                 fails the batch
+     * @return A future that completes with the DOTs made, in the order of the requests, or exceptionally with the
+     *         first failure (such as a BosswaveException for a rejected request), in which case no further
+     *         requests are sent
+     */
+    public CompletableFuture<List<CreatedDot>> makeDots(Collection<MakeDotRequest> requests, int maxInFlight,
+                                                        final ProgressListener listener) {
+        final int total = requests.size();
+        final AtomicInteger completed = new AtomicInteger();
+        return new RequestPipeline<MakeDotRequest, CreatedDot>(new ArrayList<MakeDotRequest>(requests), maxInFlight,
+                new RequestPipeline.Stage<MakeDotRequest, CreatedDot>() {
+                    @Override
+                    public CompletableFuture<CreatedDot> start(MakeDotRequest request) {
+                        return makeDotAsync(request).thenApply(new Function<BosswaveResponse, CreatedDot>() {
+                            @Override
+                            public CreatedDot apply(BosswaveResponse response) {
+                                List<PayloadObject> pos = response.getPayloadObjects();
+                                return new CreatedDot(response.getValue("hash"), (pos.isEmpty() ? null : pos.get(0)));
+                            }
+                        });
+                    }
+                }, (listener == null ? null : new RequestPipeline.Listener<CreatedDot>() {
+                    @Override
+                    public void onCompleted(int index, CreatedDot dot) {
+                        listener.onProgress(completed.incrementAndGet(), total);
+                    }
+                })).run();
+    }
+
+    public CompletableFuture<BosswaveResponse> makeChainAsync(boolean isPermission, boolean unelaborate,
+                                                              List<String> dots) {
+        ResponseFuture future = new ResponseFuture();
+        try {
+            makeChain(isPermission, unelaborate, dots, future);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
         }
+        return future;
+    }
 
-        if (!request.leavePacked()) {
-            builder.addKVPair("unpack", "true");
+    /**
+     * Exposes a subscription as a Flow.Publisher that honors its subscribers' demand. Each Flow subscriber
+     * starts a Bosswave subscription of its own, and cancelling stops delivery and releases the client's state
+     * for it. Results that arrive before they are requested are buffered; once the buffer is full, delivery of
+     * further results blocks the dispatching thread (see setDispatchExecutor) until more are requested.
+     */
+    public Flow.Publisher<BosswaveResult> subscribePublisher(SubscribeRequest request) {
+        return subscribePublisher(request, DEFAULT_FLOW_BUFFER_SIZE);
+    }
+
+    public Flow.Publisher<BosswaveResult> subscribePublisher(final SubscribeRequest request, final int bufferSize) {
+        return new Flow.Publisher<BosswaveResult>() {
+            @Override
+            public void subscribe(Flow.Subscriber<? super BosswaveResult> subscriber) {
+                final BufferedSubscription<BosswaveResult> subscription =
+                        new BufferedSubscription<BosswaveResult>(BosswaveClient.this, subscriber, bufferSize);
+                subscriber.onSubscribe(subscription);
+                try {
+                    final int seqNo = sendSubscribe(request, subscription, new ResultHandler() {
+                        @Override
+                        public void onResultReceived(BosswaveResult result) {
+                            subscription.emit(result);
+                        }
+                    });
+                    subscription.attach(seqNo);
+                    scheduleExpiry(request, new Runnable() {
+                        @Override
+                        public void run() {
+                            release(seqNo);
+                            // Complete after any results already queued for the subscriber
+                            dispatchFromTimer(seqNo, new Runnable() {
+                                @Override
+                                public void run() {
+                                    subscription.complete();
+                                }
+                            });
+                        }
+                    });
+                } catch (IOException e) {
+                    subscription.fail(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Exposes the children of a list request as a Flow.Publisher, which completes once the listing is finished.
+     * Buffering and demand work as for subscribePublisher.
+     */
+    public Flow.Publisher<String> listPublisher(ListRequest request) {
+        return listPublisher(request, DEFAULT_FLOW_BUFFER_SIZE);
+    }
+
+    public Flow.Publisher<String> listPublisher(final ListRequest request, final int bufferSize) {
+        return new Flow.Publisher<String>() {
+            @Override
+            public void subscribe(Flow.Subscriber<? super String> subscriber) {
+                final BufferedSubscription<String> subscription =
+                        new BufferedSubscription<String>(BosswaveClient.this, subscriber, bufferSize);
+                subscriber.onSubscribe(subscription);
+                try {
+                    subscription.attach(sendList(request, subscription, new ListResultHandler() {
+                        @Override
+                        public void onResult(String child) {
+                            subscription.emit(child);
+                        }
+
+                        @Override
+                        public void finish() {
+                            subscription.complete();
+                        }
+                    }));
+                } catch (IOException e) {
+                    subscription.fail(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts keeping the latest message seen on each URI by this client's subscriptions, so that queries for those
+     * URIs can be answered locally (see query). Replaces any cache already in use.
+     * @param maxBytes A bound on the estimated memory held by cached messages; the least recently used are
+     *                 evicted to stay within it
+     * @param maxStaleness Cached messages older than this are never used to answer a query
+     */
+    public void enableLastValueCache(long maxBytes, long maxStaleness, TimeUnit unit) {
+        lastValueCache = new LastValueCache(maxBytes, unit.toNanos(maxStaleness));
+    }
+
+    public void disableLastValueCache() {
+        lastValueCache = null;
+    }
+
+    /**
+     * @return The last-value cache's counters, or null if the cache is disabled. Every query eligible to be
+     *         answered from the cache counts as a hit or a miss.
+     */
+    public CacheStats getLastValueCacheStats() {
+        LastValueCache cache = lastValueCache;
+        return (cache == null ? null : cache.stats());
+    }
+
+    private boolean answerFromCache(LastValueCache cache, QueryRequest request, final ResponseHandler respH,
+                                    final ResultHandler rsltH) {
+        if (request.leavePacked() || isPattern(request.getUri())) {
+            return false;
+        }
+        final BosswaveResult cached = cache.get(request.getUri(), System.nanoTime());
+        if (cached == null) {
+            return false;
         }
+        // No request goes to the agent, so no sequence number is used up; answers for a URI keep their order
+        dispatch(request.getUri().hashCode(), new Runnable() {
+            @Override
+            public void run() {
+                if (respH != null) {
+                    respH.onResponseReceived(new BosswaveResponse("okay", null));
+                }
+                if (rsltH != null) {
+                    rsltH.onResultReceived(cached);
+                    if (rsltH instanceof ResultStreamHandler) {
+                        ((ResultStreamHandler) rsltH).onFinished();
+                    } else {
+                        rsltH.onResultReceived(CACHED_QUERY_END);
+                    }
+                }
+            }
+        });
+        return true;
+    }
 
-        for (RoutingObject ro : request.getRoutingObjects()) {
-            builder.addRoutingObject(ro);
+    private static boolean isPattern(String uri) {
+        for (String segment : UriTrie.segments(uri)) {
+            if (UriTrie.isWildcard(segment)) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
-        if (respH != null) {
-            installResponseHandler(seqNo, respH);
+    /**
+     * Tells the agent to prefer a DOT when it builds chains for this client's entity.
+     * @param dot An access or permission DOT
+     */
+    public void addPreferredDot(RoutingObject dot, ResponseHandler rh) throws IOException {
+        if (!RoutingObjectFile.isDot(dot.getRoutingObjectNumber())) {
+            throw new IllegalArgumentException("Not a DOT: routing object " + dot.getRoutingObjectNumber());
         }
-        if (rsltH != null) {
-            installResultHandler(seqNo, rsltH);
+        sendRoutingObject(Command.ADD_PREF_DOT, dot, rh);
+    }
+
+    /**
+     * Tells the agent to prefer a chain when it resolves access for this client's entity.
+     * @param chain An access or permission chain
+     */
+    public void addPreferredChain(RoutingObject chain, ResponseHandler rh) throws IOException {
+        if (!RoutingObjectFile.isChain(chain.getRoutingObjectNumber())) {
+            throw new IllegalArgumentException("Not a chain: routing object " + chain.getRoutingObjectNumber());
         }
+        sendRoutingObject(Command.ADD_PREF_CHAIN, chain, rh);
     }
 
-    public void makeEntity(MakeEntityRequest request, ResponseHandler rh) throws IOException {
-        int seqNo = Frame.generateSequenceNumber();
-        Frame.Builder builder = new Frame.Builder(Command.MAKE_ENTITY, seqNo);
+    public void deletePreferredChain(String hash, ResponseHandler rh) throws IOException {
+        int seqNo = register(rh, null, null);
+        FrameEncoder encoder = beginFrame(Command.DEL_PREF_CHAIN, seqNo);
+        encoder.addKVPair("hash", hash);
+        sendFrame(seqNo, encoder);
+    }
 
-        String contact = request.getContact();
-        if (contact != null) {
-            builder.addKVPair("contact", contact);
+    /**
+     * Loads the DOTs and chains saved in a directory as preferences of the agent, as with addPreferredDot and
+     * addPreferredChain, so that the agent has them at hand before the first real request. Files holding other
+     * routing objects, such as entities, are skipped.
+     * @see #prewarmPreferences(Collection, int)
+     */
+    public CompletableFuture<List<BosswaveResponse>> prewarmPreferences(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not a readable directory: " + directory);
+        }
+        Arrays.sort(files);
+        List<RoutingObject> preferences = new ArrayList<RoutingObject>();
+        for (File f : files) {
+            if (f.isFile()) {
+                RoutingObject ro = RoutingObjectFile.read(f);
+                int roNum = ro.getRoutingObjectNumber();
+                if (RoutingObjectFile.isDot(roNum) || RoutingObjectFile.isChain(roNum)) {
+                    preferences.add(ro);
+                }
+            }
         }
+        return prewarmPreferences(preferences, DEFAULT_MAX_IN_FLIGHT);
+    }
 
-        String comment = request.getComment();
-        if (comment != null) {
-            builder.addKVPair("comment", comment);
+    /**
+     * Sends a batch of DOTs and chains to the agent as preferences, keeping up to maxInFlight commands
+     * outstanding rather than waiting for each response in turn.
+     * @return A future that completes with the agent's response to each object, in order, once all have been
+     *         answered; a rejected object doesn't stop the rest. It completes exceptionally if the commands can't
+     *         be sent.
+     */
+    public CompletableFuture<List<BosswaveResponse>> prewarmPreferences(Collection<RoutingObject> preferences,
+                                                                        int maxInFlight) {
+        for (RoutingObject ro : preferences) {
+            int roNum = ro.getRoutingObjectNumber();
+            if (!RoutingObjectFile.isDot(roNum) && !RoutingObjectFile.isChain(roNum)) {
+                throw new IllegalArgumentException("Neither a DOT nor a chain: routing object " + roNum);
+            }
         }
+        return new RequestPipeline<RoutingObject, BosswaveResponse>(new ArrayList<RoutingObject>(preferences),
+                maxInFlight, new RequestPipeline.Stage<RoutingObject, BosswaveResponse>() {
+                    @Override
+                    public CompletableFuture<BosswaveResponse> start(RoutingObject ro) {
+                        Command command = (RoutingObjectFile.isDot(ro.getRoutingObjectNumber()) ?
+                                           Command.ADD_PREF_DOT : Command.ADD_PREF_CHAIN);
+                        return sendRoutingObjectAsync(command, ro);
+                    }
+                }, null).run();
+    }
 
-        Date expiry = request.getExpiry();
-        if (expiry != null) {
-            builder.addKVPair("expiry", Rfc3339.print(new DateTime(expiry)));
+    public void putEntity(RoutingObject entity, ResponseHandler rh) throws IOException {
+        if (!RoutingObjectFile.isEntity(entity.getRoutingObjectNumber())) {
+            throw new IllegalArgumentException("Not an entity: routing object " + entity.getRoutingObjectNumber());
         }
+        sendRoutingObject(Command.PUT_ENTITY, entity, rh);
+    }
 
-        Long expiryDelta = request.getExpiryDelta();
-        if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+    public void putDot(RoutingObject dot, ResponseHandler rh) throws IOException {
+        if (!RoutingObjectFile.isDot(dot.getRoutingObjectNumber())) {
+            throw new IllegalArgumentException("Not a DOT: routing object " + dot.getRoutingObjectNumber());
         }
+        sendRoutingObject(Command.PUT_DOT, dot, rh);
+    }
 
-        for (String revoker : request.getRevokers()) {
-            builder.addKVPair("revoker", revoker);
+    public void putChain(RoutingObject chain, ResponseHandler rh) throws IOException {
+        if (!RoutingObjectFile.isChain(chain.getRoutingObjectNumber())) {
+            throw new IllegalArgumentException("Not a chain: routing object " + chain.getRoutingObjectNumber());
         }
+        sendRoutingObject(Command.PUT_CHAIN, chain, rh);
+    }
 
-        builder.addKVPair("omitcreationdate", Boolean.toString(request.omitCreationDate()));
+    /**
+     * Imports the entities, DOTs and chains saved in a directory into the agent, with up to a default number of
+     * files in progress at once.
+     * @see #importRoutingObjects(Collection, int, ProgressListener)
+     */
+    public CompletableFuture<Map<File, BosswaveResponse>> importRoutingObjects(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not a readable directory: " + directory);
+        }
+        Arrays.sort(files);
+        List<File> regularFiles = new ArrayList<File>();
+        for (File f : files) {
+            if (f.isFile()) {
+                regularFiles.add(f);
+            }
+        }
+        return importRoutingObjects(regularFiles, DEFAULT_MAX_IN_FLIGHT, null);
+    }
 
-        Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
-        if (rh != null) {
-            installResponseHandler(seqNo, rh);
+    /**
+     * Imports the entities, DOTs and chains saved in routing object files into the agent, as with putEntity,
+     * putDot and putChain. Every entity is imported before any DOT, and every DOT before any chain, so that the
+     * agent knows what each object refers to. Within each of those tiers, files are read in parallel, large ones
+     * through memory mapping, while the objects already read are sent; no more than maxInFlight files are being
+     * read or awaiting the agent's response at once. Files holding other routing objects, such as entities with
+     * their signing keys, are skipped.
+     * @param listener If not null, told as each file is imported or skipped
+     * @return A future that completes with the agent's response to each imported file, in the order of the files,
+     *         once all have been answered; a rejected object doesn't stop the rest. It completes exceptionally if
+     *         a file can't be read or the commands can't be sent.
+     */
+    public CompletableFuture<Map<File, BosswaveResponse>> importRoutingObjects(Collection<File> files,
+                                                                             int maxInFlight,
+                                                                             ProgressListener listener) {
+        return new RoutingObjectImporter(this, new ArrayList<File>(files), maxInFlight, listener).run();
+    }
+
+    /**
+     * Sends a routing object to the agent.
+     * @return A future that completes with the agent's response, whatever its status, or exceptionally if the
+     *         object can't be sent
+     */
+    CompletableFuture<BosswaveResponse> sendRoutingObjectAsync(Command command, RoutingObject ro) {
+        final CompletableFuture<BosswaveResponse> future = new CompletableFuture<BosswaveResponse>();
+        try {
+            sendRoutingObject(command, ro, new ResponseHandler() {
+                @Override
+                public void onResponseReceived(BosswaveResponse response) {
+                    future.complete(response);
+                }
+            });
+        } catch (IOException e) {
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
-    public void makeDot(MakeDotRequest request, ResponseHandler rh) throws IOException {
-        int seqNo = Frame.generateSequenceNumber();
-        Frame.Builder builder = new Frame.Builder(Command.MAKE_DOT, seqNo);
+    // Sends a routing object as a payload object whose type is its number, as for setEntityFromFile
+    private void sendRoutingObject(Command command, RoutingObject ro, ResponseHandler rh) throws IOException {
+        int seqNo = register(rh, null, null);
+        FrameEncoder encoder = beginFrame(command, seqNo);
+        PayloadObject.Type type = new PayloadObject.Type(new byte[]{0, 0, 0, (byte) ro.getRoutingObjectNumber()});
+        encoder.addPayloadObject(new PayloadObject(type, ro.getContent()));
+        sendFrame(seqNo, encoder);
+    }
 
-        builder.addKVPair("to", request.getTo());
+    /**
+     * Starts caching the primary access chains the agent builds for this client's entity, for chains kept for a
+     * default time.
+     * @see #enableChainCache(long, TimeUnit)
+     */
+    public void enableChainCache() {
+        enableChainCache(DEFAULT_CHAIN_TTL_MS, TimeUnit.MILLISECONDS);
+    }
 
-        Integer ttl = request.getTimeToLive();
-        if (ttl != null) {
-            builder.addKVPair("ttl", Integer.toString(ttl));
+    /**
+     * Starts caching the primary access chains the agent builds for this client's entity. Once a publish,
+     * subscribe or query that names no primary access chain would use autochain (by its own choice or through
+     * overrideAutoChainTo), the client asks the agent to build a chain for its URI and permissions with
+     * BUILD_CHAIN, and later such requests name that chain instead, sparing the agent from building it again.
+     * Requests made before the chain is known use autochain as usual. A chain is dropped, and built again, when the
+     * agent refuses a request that named it. The cache only takes effect once an entity has been set with
+     * setEntityFromFile. Replaces any chain cache already in use.
+     * @param ttl How long a chain is used before it is built again
+     */
+    public void enableChainCache(long ttl, TimeUnit unit) {
+        enableChainCache(ttl, unit, ChainCache.DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Like enableChainCache(long, TimeUnit), with an explicit bound on the cache's size.
+     * @param maxEntries The most URI and permission pairs to cache chains for; the least recently used are
+     *                   evicted to stay within it
+     */
+    public void enableChainCache(long ttl, TimeUnit unit, int maxEntries) {
+        ChainCache cache = new ChainCache(this, unit.toNanos(ttl), maxEntries);
+        cache.setEntity(entityVk);
+        chainCache = cache;
+    }
+
+    public void disableChainCache() {
+        chainCache = null;
+    }
+
+    /**
+     * @return The chain cache's counters, or null if the cache is disabled. Every request eligible to use a cached
+     *         chain counts as a hit or a miss.
+     */
+    public CacheStats getChainCacheStats() {
+        ChainCache cache = chainCache;
+        return (cache == null ? null : cache.stats());
+    }
+
+    // Asks the agent to build a chain granting an entity permissions on a URI
+    void sendBuildChain(String uri, String permissions, String to, ResponseHandler rspH, ResultHandler rsltH)
+            throws IOException {
+        int seqNo = register(rspH, rsltH, null);
+        FrameEncoder encoder = beginFrame(Command.BUILD_CHAIN, seqNo);
+
+        encoder.addKVPair("uri", uri);
+        encoder.addKVPair("to", to);
+        encoder.addKVPair("addpermissions", permissions);
+
+        sendFrame(seqNo, encoder);
+    }
+
+    /**
+     * Schedules a task for when a subscription expires: at its expiry time or once its expiry delta has passed,
+     * whichever is sooner.
+     * @return The pending task, or null if the subscription doesn't expire
+     */
+    HashedWheelTimer.Timeout scheduleExpiry(SubscribeRequest request, Runnable task) {
+        long now = System.currentTimeMillis();
+        long delayMillis = expiryDelayMillis(request.getExpiry(), request.getExpiryDelta(), now);
+        if (delayMillis < 0) {
+            return null;
         }
+        return timer().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
 
-        builder.addKVPair("ispermission", Boolean.toString(request.isPermission()));
+    /**
+     * Schedules the flush of a batch that is still pending once it reaches its maximum age.
+     * @param batchNumber The batch's number, so that the flush is skipped if the batch has been handed over
+     */
+    HashedWheelTimer.Timeout scheduleBatchFlush(final ResultBatcher batcher, final long batchNumber,
+                                                long delayNanos) {
+        return timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                // The batcher isn't keyed by sequence number, so its handler may run alongside the
+                // subscription's other dispatched tasks; its lock keeps the two apart
+                dispatchFromTimer(System.identityHashCode(batcher), new Runnable() {
+                    @Override
+                    public void run() {
+                        batcher.flushExpired(batchNumber);
+                    }
+                });
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
 
-        Date expiry = request.getExpiry();
+    /**
+     * @return The time left before a request with the given expiry settings expires, or -1 if it never does
+     */
+    static long expiryDelayMillis(Date expiry, Long expiryDelta, long now) {
+        long delay = -1;
         if (expiry != null) {
-            builder.addKVPair("expiry", Rfc3339.print(new DateTime(expiry)));
+            delay = Math.max(expiry.getTime() - now, 0);
         }
-
-        Long expiryDelta = request.getExpiryDelta();
         if (expiryDelta != null) {
-            builder.addKVPair("expirydelta", String.format("%dms", expiryDelta));
+            long deltaDelay = Math.max(expiryDelta.longValue(), 0);
+            delay = (delay < 0 ? deltaDelay : Math.min(delay, deltaDelay));
         }
+        return delay;
+    }
 
-        String contact = request.getContact();
-        if (contact != null) {
-            builder.addKVPair("contact", contact);
+    /**
+     * Forgets the request with the given sequence number, so that any further replies to it are dropped. A
+     * subscription is also ended at the agent, if the agent gave it a handle; one that the agent hasn't yet
+     * accepted is ended once it is.
+     */
+    void release(int seqNo) {
+        InFlightTable.Entry entry = inFlight.get(seqNo);
+        if (entry == null) {
+            return;
+        }
+        if (entry.finite) {
+            inFlight.remove(entry);
+            return;
         }
+        entry.cancelled = true;
+        if (entry.accepted) {
+            endSubscription(entry);
+        }
+        // Otherwise the listener ends the subscription when the agent answers
+    }
 
-        String comment = request.getComment();
-        if (comment != null) {
-            builder.addKVPair("comment", comment);
+    // Removes a cancelled subscription and tells the agent to stop sending its results
+    private void endSubscription(InFlightTable.Entry entry) {
+        if (!inFlight.remove(entry) || entry.handle == null) {
+            return;
+        }
+        int seqNo = inFlight.nextSequenceNumber();
+        FrameEncoder encoder = beginFrame(Command.UNSUBSCRIBE, seqNo);
+        encoder.addKVPair("handle", entry.handle);
+        try {
+            sendFrame(seqNo, encoder);
+        } catch (IOException e) {
+            // Without a connection, the agent drops the subscription anyway
         }
+    }
 
-        for (String revoker : request.getRevokers()) {
-            builder.addKVPair("revoker", revoker);
+    private FrameEncoder beginFrame(Command command, int seqNo) {
+        return encoderPool.acquire().begin(command, seqNo);
+    }
+
+    /**
+     * Queues a frame started with beginFrame for the writer thread. The handlers registered under the frame's
+     * sequence number are removed again if the frame can't be sent.
+     */
+    private void sendFrame(int seqNo, FrameEncoder encoder) throws IOException {
+        encoder.finish();
+        try {
+            writer.enqueue(encoder);
+        } catch (IOException e) {
+            encoderPool.release(encoder);
+            inFlight.remove(seqNo);
+            throw e;
         }
+    }
 
-        builder.addKVPair("omitcreationdate", Boolean.toString(request.omitCreationDate()));
+    private void addExpiry(FrameEncoder encoder, Date expiry, Long expiryDelta, String expiryDeltaKey) {
+        if (expiry != null) {
+            encoder.addKVPair("expiry", Rfc3339.print(expiry.getTime()));
+        }
+        if (expiryDelta != null) {
+            encoder.addKVPairMillis(expiryDeltaKey, expiryDelta);
+        }
+    }
 
-        String accessPermissions = request.getAccessPermissions();
-        if (accessPermissions != null) {
-            builder.addKVPair("accesspermissions", accessPermissions);
+    private void addElaborationLevel(FrameEncoder encoder, ChainElaborationLevel level) {
+        if (level != ChainElaborationLevel.NONE) {
+            encoder.addKVPair("elaborate_pac", level.getCode());
         }
+    }
 
-        String uri = request.getUri();
-        if (uri != null) {
-            builder.addKVPair("uri", uri);
+    /**
+     * Names the request's primary access chain. Where the request names none but wants one built with autochain,
+     * a chain from the chain cache is named instead, if one is known.
+     */
+    // The cached chain for a request that names none of its own and would use autochain, or null if there is none
+    private ChainCache.Entry cachedChain(String uri, String pac, boolean autoChain, String permissions) {
+        ChainCache cache = chainCache;
+        if (pac != null || cache == null) {
+            return null;
         }
+        boolean wantsAutoChain = (autoChainOverride != null ? autoChainOverride.booleanValue() : autoChain);
+        return (wantsAutoChain ? cache.lookup(uri, permissions) : null);
+    }
 
-        Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
-        if (rh != null) {
-            installResponseHandler(seqNo, rh);
+    private void addAccessChain(FrameEncoder encoder, String pac, boolean autoChain, ChainCache.Entry chain) {
+        if (chain != null) {
+            encoder.addKVPair("primary_access_chain", chain.hash);
+            return;
+        }
+        if (pac != null) {
+            encoder.addKVPair("primary_access_chain", pac);
         }
+        addAutoChain(encoder, autoChain);
     }
 
-    public void makeChain(boolean isPermission, boolean unelaborate, List<String> dots,
-                          ResponseHandler rh) throws IOException {
-        int seqNo = Frame.generateSequenceNumber();
-        Frame.Builder builder = new Frame.Builder(Command.MAKE_CHAIN, seqNo);
+    // The permissions needed to consume from a URI, which differ for wildcard URIs
+    private static String consumePermission(String uri) {
+        String permission = CONSUME_PERMISSION;
+        for (String segment : UriTrie.segments(uri)) {
+            if (segment.equals("*")) {
+                return CONSUME_PERMISSION + "*";
+            } else if (segment.equals("+")) {
+                permission = CONSUME_PERMISSION + "+";
+            }
+        }
+        return permission;
+    }
 
-        builder.addKVPair("ispermission", Boolean.toString(isPermission));
-        builder.addKVPair("unelaborate", Boolean.toString(unelaborate));
-        for (String dot : dots) {
-            builder.addKVPair("dot", dot);
+    private void addAutoChain(FrameEncoder encoder, boolean requested) {
+        if (autoChainOverride != null) {
+            encoder.addKVPair("autochain", autoChainOverride.booleanValue());
+        } else if (requested) {
+            encoder.addKVPair("autochain", "true");
         }
+    }
+
+    /**
+     * Allocates the sequence number for a request, installing its handlers (if any) under that number. This must
+     * happen before the request is sent, so that a fast reply can't arrive before its handlers.
+     */
+    private int register(ResponseHandler responseHandler, ResultHandler resultHandler,
+                         ListResultHandler listResultHandler) {
+        return register(responseHandler, resultHandler, listResultHandler, true);
+    }
 
-        Frame f = builder.build();
-        f.writeToStream(outStream);
-        outStream.flush();
-        if (rh != null) {
-            installResponseHandler(seqNo, rh);
+    /**
+     * @param finite False for requests, like subscriptions, whose results keep coming after the response. Their
+     *               timeout only covers the wait for the response.
+     */
+    private int register(ResponseHandler responseHandler, ResultHandler resultHandler,
+                         ListResultHandler listResultHandler, boolean finite) {
+        return register(responseHandler, resultHandler, listResultHandler, finite, null);
+    }
+
+    /**
+     * @param chain The cached access chain the request names, if any. Such a request is tracked even without
+     *              handlers, so that the chain is dropped from the cache if the agent refuses the request.
+     */
+    private int register(ResponseHandler responseHandler, ResultHandler resultHandler,
+                         ListResultHandler listResultHandler, boolean finite, ChainCache.Entry chain) {
+        if (responseHandler == null && resultHandler == null && listResultHandler == null && chain == null) {
+            return inFlight.nextSequenceNumber();
+        }
+        InFlightTable.Entry entry = inFlight.register(responseHandler, resultHandler, listResultHandler, finite,
+                                                      chain);
+        long timeoutNanos = requestTimeoutNanos;
+        if (timeoutNanos > 0) {
+            armTimeout(entry, timeoutNanos);
         }
+        return entry.seqNo;
     }
 
-    private void installResponseHandler(int seqNo, ResponseHandler rh) {
-        synchronized (responseHandlerLock) {
-            responseHandlers.put(seqNo, rh);
+    private void armTimeout(final InFlightTable.Entry entry, long timeoutNanos) {
+        entry.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(entry);
+            }
+        }, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Runs on the timer thread when a request's deadline passes
+    private void expire(final InFlightTable.Entry entry) {
+        if (!inFlight.remove(entry) || entry.cancelled) {
+            return;
         }
+        final ResponseHandler responseHandler = entry.takeResponseHandler();
+        dispatchFromTimer(entry.seqNo, new Runnable() {
+            @Override
+            public void run() {
+                if (responseHandler instanceof TimeoutHandler) {
+                    ((TimeoutHandler) responseHandler).onTimeout();
+                } else if (responseHandler != null) {
+                    responseHandler.onResponseReceived(new BosswaveResponse("error", TIMEOUT_REASON));
+                }
+                if (entry.resultHandler instanceof TimeoutHandler && entry.resultHandler != responseHandler) {
+                    ((TimeoutHandler) entry.resultHandler).onTimeout();
+                }
+                if (entry.listResultHandler instanceof TimeoutHandler && entry.listResultHandler != responseHandler) {
+                    ((TimeoutHandler) entry.listResultHandler).onTimeout();
+                }
+            }
+        });
     }
 
-    private void installResultHandler(int seqNo, ResultHandler rh) {
-        synchronized (messageHandlersLock) {
-            resultHandlers.put(seqNo, rh);
+    /**
+     * Fails every request still awaiting the agent, once nothing more can arrive from it. Response handlers that
+     * are still waiting receive an "error" response, as do result handlers that are also ResponseHandlers, which
+     * is how futures and Flow subscriptions learn of the failure.
+     */
+    private void failInFlight(String reason) {
+        final BosswaveResponse failure = new BosswaveResponse("error", reason);
+        for (final InFlightTable.Entry entry : inFlight.removeAll()) {
+            if (entry.cancelled) {
+                continue;
+            }
+            final ResponseHandler responseHandler = entry.takeResponseHandler();
+            dispatch(entry.seqNo, new Runnable() {
+                @Override
+                public void run() {
+                    if (responseHandler != null) {
+                        responseHandler.onResponseReceived(failure);
+                    }
+                    if (entry.resultHandler instanceof ResponseHandler && entry.resultHandler != responseHandler) {
+                        ((ResponseHandler) entry.resultHandler).onResponseReceived(failure);
+                    }
+                    if (entry.listResultHandler instanceof ResponseHandler &&
+                            entry.listResultHandler != responseHandler) {
+                        ((ResponseHandler) entry.listResultHandler).onResponseReceived(failure);
+                    }
+                }
+            });
         }
     }
 
-    private void installListResponseHandler(int seqNo, ListResultHandler lrh) {
-        synchronized (listResultHandlersLock) {
-            listResultHandlers.put(seqNo, lrh);
+    /**
+     * Dispatches a task from the timer thread. Without a dispatcher, the task runs on a thread of its own rather
+     * than inline, since one slow handler on the timer thread would hold up every other deadline.
+     */
+    private void dispatchFromTimer(int seqNo, Runnable task) {
+        if (dispatcher != null) {
+            dispatch(seqNo, task);
+            return;
+        }
+        try {
+            timerCallbackExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            // The client is closed, so no other deadline is left to hold up
+            task.run();
         }
     }
 
-    private class BWListener implements Runnable {
+    private void dispatch(int seqNo, Runnable task) {
+        KeyedExecutor executor = dispatcher;
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        try {
+            executor.execute(seqNo, task);
+        } catch (RejectedExecutionException e) {
+            // The application has shut down its executor. Handlers still run, on this thread, so that no future
+            // or subscriber is left waiting for a callback that will never come.
+            task.run();
+        }
+    }
 
+    /**
+     * Writes queued frames to the socket. Any number of threads enqueue encoded frames; the writer drains
+     * the queue and flushes once whenever it runs dry, so a burst of requests costs one flush. Once
+     * MAX_QUEUED_FRAMES are queued, producers wait for the writer to take some.
+     */
+    private class BWWriter implements Runnable {
+        private final MpscQueue<FrameEncoder> queue;
+        // Producers between their check that the writer is running and the end of their offer. The writer doesn't
+        // exit while there are any, so a frame that passed the check is never left on a queue nobody reads.
+        private final AtomicInteger enqueuers;
+        // Frames queued and not yet taken by the writer, counting those whose producers are waiting for room
+        private final AtomicInteger queued;
+        // Guards waiting, and is notified when the writer makes room or stops
+        private final Object room;
+        private int waiting;
+        private volatile boolean awaitingRoom;
         private volatile boolean continueRunning;
-
-        public BWListener() {
+        private volatile boolean parked;
+        private volatile IOException failure;
+
+        public BWWriter() {
+            queue = new MpscQueue<FrameEncoder>();
+            enqueuers = new AtomicInteger();
+            queued = new AtomicInteger();
+            room = new Object();
             continueRunning = true;
         }
 
+        public void enqueue(FrameEncoder encoder) throws IOException {
+            // The listener never waits: the agent may stop reading until the listener has read what it sent
+            if (queued.incrementAndGet() > MAX_QUEUED_FRAMES && Thread.currentThread() != listenerThread) {
+                awaitRoom();
+            }
+            enqueuers.incrementAndGet();
+            try {
+                IOException e = failure;
+                if (e != null) {
+                    queued.decrementAndGet();
+                    throw new IOException("Connection to agent failed", e);
+                } else if (!continueRunning) {
+                    queued.decrementAndGet();
+                    throw new IOException("Client is closed");
+                }
+                queue.offer(encoder);
+            } finally {
+                enqueuers.decrementAndGet();
+            }
+            if (parked) {
+                LockSupport.unpark(writerThread);
+            }
+        }
+
+        // Waits until the writer has taken enough frames for this one to fit, or has stopped
+        private void awaitRoom() throws IOException {
+            synchronized (room) {
+                waiting++;
+                awaitingRoom = true;
+                try {
+                    while (queued.get() > MAX_QUEUED_FRAMES && continueRunning) {
+                        room.wait();
+                    }
+                } catch (InterruptedException e) {
+                    queued.decrementAndGet();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to send a frame");
+                } finally {
+                    if (--waiting == 0) {
+                        awaitingRoom = false;
+                    }
+                }
+            }
+        }
+
+        private void wakeProducers() {
+            synchronized (room) {
+                room.notifyAll();
+            }
+        }
+
+        // Called by the writer for each frame it takes off the queue
+        private void taken() {
+            if (queued.decrementAndGet() <= MAX_QUEUED_FRAMES && awaitingRoom) {
+                wakeProducers();
+            }
+        }
+
         @Override
         public void run() {
-            while (continueRunning) {
-                try {
-                    Frame frame = Frame.readFromStream(inStream);
-                    int seqNo = frame.getSeqNo();
-
-                    Command command = frame.getCommand();
-                    switch (command) {
-                        case RESPONSE: {
-                            ResponseHandler responseHandler;
-                            synchronized (responseHandlerLock) {
-                                responseHandler = responseHandlers.remove(seqNo);
-                            }
-                            if (responseHandler != null) {
-                                String status = new String(frame.getFirstValue("status"), CharEncoding.UTF_8);
-                                String reason = null;
-                                if (!status.equals("okay")) {
-                                    reason = new String(frame.getFirstValue("reason"), CharEncoding.UTF_8);
-                                    // Upon error, we also need to clean up any result handlers
-                                    synchronized (messageHandlersLock) {
-                                        resultHandlers.remove(seqNo);
-                                    }
-                                    synchronized (listResultHandlersLock) {
-                                        listResultHandlers.remove(seqNo);
-                                    }
-                                }
-                                responseHandler.onResponseReceived(new BosswaveResponse(status, reason));
-                            }
+            boolean unflushed = false;
+            try {
+                while (true) {
+                    FrameEncoder encoder = queue.poll();
+                    if (encoder != null) {
+                        taken();
+                        try {
+                            encoder.writeTo(outStream);
+                        } finally {
+                            encoderPool.release(encoder);
+                        }
+                        unflushed = true;
+                    } else if (unflushed) {
+                        outStream.flush();
+                        unflushed = false;
+                    } else if (!queue.isEmpty()) {
+                        // A producer is midway through an offer
+                        Thread.yield();
+                    } else if (!continueRunning) {
+                        if (enqueuers.get() == 0 && queue.isEmpty()) {
+                            // Any producer from now on sees that the writer has stopped
                             break;
                         }
+                        Thread.yield();
+                    } else {
+                        parked = true;
+                        if (queue.isEmpty() && continueRunning) {
+                            LockSupport.park(this);
+                        }
+                        parked = false;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+                continueRunning = false;
+                wakeProducers();
+                // Discard the frames that can no longer be written, including any still being offered
+                while (enqueuers.get() != 0 || !queue.isEmpty()) {
+                    FrameEncoder encoder = queue.poll();
+                    if (encoder != null) {
+                        queued.decrementAndGet();
+                        encoderPool.release(encoder);
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        }
 
-                        case RESULT: {
-                            String finishedStr = new String(frame.getFirstValue("finished"), CharEncoding.UTF_8);
-                            boolean finished = Boolean.parseBoolean(finishedStr);
-                            ResultHandler resultHandler;
-                            synchronized (messageHandlersLock) {
-                                if (finished) {
-                                    resultHandler = resultHandlers.remove(seqNo);
-                                } else {
-                                    resultHandler = resultHandlers.get(seqNo);
-                                }
-                            }
-                            ListResultHandler listResultHandler;
-                            synchronized (listResultHandlersLock) {
-                                if (finished) {
-                                    listResultHandler = listResultHandlers.remove(seqNo);
-                                } else {
-                                    listResultHandler = listResultHandlers.get(seqNo);
-                                }
-                            }
+        public void stop() {
+            continueRunning = false;
+            LockSupport.unpark(writerThread);
+            wakeProducers();
+        }
 
-                            if (resultHandler != null) {
-                                String uri = new String(frame.getFirstValue("uri"), CharEncoding.UTF_8);
-                                String from = new String(frame.getFirstValue("from"), CharEncoding.UTF_8);
+        // Refuses further frames once the connection has failed
+        public void fail(IOException e) {
+            failure = e;
+            stop();
+        }
+    }
 
-                                boolean unpack = true;
-                                byte[] unpackBytes = frame.getFirstValue("unpack");
-                                if (unpackBytes != null) {
-                                    unpack = Boolean.parseBoolean(new String(unpackBytes, CharEncoding.UTF_8));
-                                }
+    private class BWListener implements Runnable {
+        private static final int READ_BUFFER_SIZE = 64 * 1024;
 
-                                BosswaveResult result;
-                                if (unpack) {
-                                    result = new BosswaveResult(from, uri, frame.getRoutingObjects(), frame.getPayloadObjects());
-                                } else {
-                                    result = new BosswaveResult(from, uri, null, null);
-                                }
-                                resultHandler.onResultReceived(result);
-                            } else if (listResultHandler != null) {
-                                if (finished) {
-                                    listResultHandler.finish();
-                                } else {
-                                    String child = new String(frame.getFirstValue("child"), CharEncoding.UTF_8);
-                                    listResultHandler.onResult(child);
-                                }
-                            }
-                            break;
+        private final FrameDecoder decoder;
+        private final ByteBuffer readBuffer;
+        private final List<Frame> frames;
+        // Entries whose ResultBatcher received results during the current read
+        private final List<InFlightTable.Entry> batchedEntries;
+        private volatile boolean continueRunning;
+
+        public BWListener() {
+            // Results for requests that are no longer in flight, such as cancelled subscriptions, are skipped
+            // without being decoded
+            decoder = new FrameDecoder(new FrameDecoder.Filter() {
+                @Override
+                public boolean accept(Command command, int seqNo) {
+                    if (command != Command.RESULT) {
+                        return true;
+                    }
+                    InFlightTable.Entry entry = inFlight.get(seqNo);
+                    return entry != null && !entry.cancelled;
+                }
+            });
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            frames = new ArrayList<Frame>();
+            batchedEntries = new ArrayList<InFlightTable.Entry>();
+            continueRunning = true;
+        }
+
+        @Override
+        public void run() {
+            IOException lost = null;
+            while (continueRunning) {
+                try {
+                    int n = inStream.read(readBuffer.array(), 0, readBuffer.capacity());
+                    if (n < 0) {
+                        lost = new EOFException("The agent closed the connection");
+                        break;
+                    }
+                    readBuffer.clear();
+                    readBuffer.limit(n);
+                    while (readBuffer.hasRemaining()) {
+                        try {
+                            decoder.decode(readBuffer, frames);
+                        } catch (InvalidFrameException e) {
+                            // Ignore invalid frames
                         }
+                    }
 
-                        default:
-                            // Ignore frames with any other commands
+                    for (Frame frame : frames) {
+                        handleFrame(frame);
                     }
-                } catch (InvalidFrameException e) {
-                    // Ignore invalid frames
+                    flushBatches();
                 } catch (SocketException e) {
-                    // This should only occur when we are terminating the client and is safe to ignore
+                    if (continueRunning) {
+                        // The connection was reset, so nothing more will arrive
+                        lost = e;
+                        break;
+                    }
+                    // Otherwise the client is closing the socket
                 } catch (SocketTimeoutException e) {
                     // This just happens when the socket times out during normal operation -- ignore
                 } catch (IOException e) {
                     e.printStackTrace();
                     // We'll attempt to keep running - use `stop` so safely stop listener
+                } finally {
+                    frames.clear();
+                }
+            }
+
+            if (lost != null) {
+                writer.fail(lost);
+            }
+            failInFlight(lost != null ? DISCONNECTED_REASON : CLOSED_REASON);
+        }
+
+        private void handleFrame(final Frame frame) {
+            final InFlightTable.Entry entry = inFlight.get(frame.getSeqNo());
+            if (entry == null) {
+                return;
+            }
+
+            Command command = frame.getCommand();
+            switch (command) {
+                case RESPONSE: {
+                    final ResponseHandler responseHandler = entry.takeResponseHandler();
+                    String status = frame.getFirstValueAsString("status");
+                    String reason = null;
+                    if (!status.equals("okay")) {
+                        reason = frame.getFirstValueAsString("reason");
+                        // Upon error, no results will follow
+                        inFlight.remove(entry);
+                        ChainCache cache = chainCache;
+                        if (entry.chain != null && cache != null) {
+                            // The chain may no longer grant the permissions, so the next request builds another
+                            cache.invalidate(entry.chain);
+                        }
+                    } else if (!entry.expectsResults()) {
+                        inFlight.remove(entry);
+                    } else if (!entry.finite) {
+                        // A subscription is alive once the agent accepts it
+                        entry.cancelTimeout();
+                        entry.handle = frame.getFirstValueAsString("handle");
+                        entry.accepted = true;
+                        if (entry.cancelled) {
+                            // Cancelled while the agent was deciding, so nobody is waiting for the response
+                            endSubscription(entry);
+                            break;
+                        }
+                    }
+                    if (responseHandler != null) {
+                        final BosswaveResponse response = new BosswaveResponse(status, reason, frame);
+                        dispatch(entry.seqNo, new Runnable() {
+                            @Override
+                            public void run() {
+                                responseHandler.onResponseReceived(response);
+                            }
+                        });
+                    }
+                    break;
+                }
+
+                case RESULT: {
+                    final boolean finished = frame.getFirstValueAsBoolean("finished", false);
+                    if (finished) {
+                        inFlight.remove(entry);
+                    }
+                    if (entry.resultHandler instanceof ResultBatcher) {
+                        ResultBatcher batcher = (ResultBatcher) entry.resultHandler;
+                        if (!batcher.flushScheduled) {
+                            batcher.flushScheduled = true;
+                            batchedEntries.add(entry);
+                        }
+                    }
+                    dispatch(entry.seqNo, new Runnable() {
+                        @Override
+                        public void run() {
+                            deliverResult(entry, frame, finished);
+                        }
+                    });
+                    break;
                 }
+
+                default:
+                    // Ignore frames with any other commands
+            }
+        }
+
+        // Hands over the batches collected from one read, behind the results already dispatched to them
+        private void flushBatches() {
+            for (int i = 0; i < batchedEntries.size(); i++) {
+                InFlightTable.Entry entry = batchedEntries.get(i);
+                ResultBatcher batcher = (ResultBatcher) entry.resultHandler;
+                batcher.flushScheduled = false;
+                dispatch(entry.seqNo, batcher.flushTask);
+            }
+            batchedEntries.clear();
+        }
+
+        private void deliverResult(InFlightTable.Entry entry, Frame frame, boolean finished) {
+            ResultHandler resultHandler = entry.resultHandler;
+            ListResultHandler listResultHandler = entry.listResultHandler;
+            if (resultHandler instanceof ResultStreamHandler) {
+                // The terminating frame of a query carries no result of its own
+                if (!finished || frame.getFirstValueAsString("uri") != null) {
+                    resultHandler.onResultReceived(createResult(frame));
+                }
+                if (finished) {
+                    ((ResultStreamHandler) resultHandler).onFinished();
+                }
+            } else if (resultHandler != null) {
+                BosswaveResult result = createResult(frame);
+                if (!entry.finite) {
+                    cacheResult(frame, result);
+                }
+                resultHandler.onResultReceived(result);
+            } else if (listResultHandler != null) {
+                if (finished) {
+                    listResultHandler.finish();
+                } else {
+                    String child = frame.getFirstValueAsString("child");
+                    listResultHandler.onResult(child);
+                }
+            }
+        }
+
+        // Keeps the last-value cache current with the messages delivered to subscriptions
+        private void cacheResult(Frame frame, BosswaveResult result) {
+            LastValueCache cache = lastValueCache;
+            if (cache != null && result.getUri() != null && frame.getFirstValueAsBoolean("unpack", true)) {
+                cache.put(result, System.nanoTime());
+            }
+        }
+
+        private BosswaveResult createResult(Frame frame) {
+            String uri = frame.getFirstValueAsString("uri");
+            String from = frame.getFirstValueAsString("from");
+            boolean unpack = frame.getFirstValueAsBoolean("unpack", true);
+
+            if (unpack) {
+                return new BosswaveResult(from, uri, frame.getRoutingObjects(), frame.getPayloadObjects(), frame);
+            } else {
+                return new BosswaveResult(from, uri, Collections.<RoutingObject>emptyList(),
+                                          Collections.<PayloadObject>emptyList(), frame);
             }
         }
 
@@ -0,0 +1,20 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * Signals that the agent rejected a request. Futures returned by the asynchronous client methods complete
+ * exceptionally with this exception when the response status is not "okay".
+ */
+public class BosswaveException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final BosswaveResponse response;
+
+    public BosswaveException(BosswaveResponse response) {
+        super("Bosswave operation failed: " + response.getReason());
+        this.response = response;
+    }
+
+    public BosswaveResponse getResponse() {
+        return response;
+    }
+}
@@ -1,12 +1,22 @@
 package edu.berkeley.cs.sdb.bosswave;
 
+import java.util.Collections;
+import java.util.List;
+
 public class BosswaveResponse {
     private final String status;
     private final String reason;
+    // The frame the response was decoded from, if it came from the agent
+    private final Frame frame;
 
     public BosswaveResponse(String status, String reason) {
+        this(status, reason, null);
+    }
+
+    BosswaveResponse(String status, String reason, Frame frame) {
         this.status = status;
         this.reason = reason;
+        this.frame = frame;
     }
 
     public String getStatus() {
@@ -16,4 +26,17 @@ public class BosswaveResponse {
     public String getReason() {
         return reason;
     }
+
+    /**
+     * @return The value of a key/value pair the agent included in the response, such as the "vk" of the entity
+     *         set with BosswaveClient.setEntityFromFile, or null if there is none
+     */
+    public String getValue(String key) {
+        return (frame == null ? null : frame.getFirstValueAsString(key));
+    }
+
+    // The payload objects the agent included in the response, such as a DOT it made
+    public List<PayloadObject> getPayloadObjects() {
+        return (frame == null ? Collections.<PayloadObject>emptyList() : frame.getPayloadObjects());
+    }
 }
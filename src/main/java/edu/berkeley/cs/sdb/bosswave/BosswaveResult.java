@@ -8,12 +8,19 @@ public class BosswaveResult {
     private final String uri;
     private final List<RoutingObject> routingObjects;
     private final List<PayloadObject> payloadObjects;
+    // The frame the result was decoded from, if it came from the agent
+    private final Frame frame;
 
     public BosswaveResult(String from, String uri, List<RoutingObject> ros, List<PayloadObject> pos) {
+        this(from, uri, ros, pos, null);
+    }
+
+    BosswaveResult(String from, String uri, List<RoutingObject> ros, List<PayloadObject> pos, Frame frame) {
         this.from = from;
         this.uri = uri;
         routingObjects = Collections.unmodifiableList(ros);
         payloadObjects = Collections.unmodifiableList(pos);
+        this.frame = frame;
     }
 
     public String getFrom() {
@@ -31,4 +38,12 @@ public class BosswaveResult {
     public List<PayloadObject> getPayloadObjects() {
         return payloadObjects;
     }
+
+    /**
+     * @return The value of a key/value pair the agent included in the result, such as the "hash" of a chain it
+     *         built, or null if there is none
+     */
+    public String getValue(String key) {
+        return (frame == null ? null : frame.getFirstValueAsString(key));
+    }
 }
@@ -0,0 +1,209 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connects the results of one Bosswave request to a Flow.Subscriber, honoring the subscriber's demand.
+ *
+ * Items that arrive before they are requested are buffered, up to a fixed capacity. Once the buffer is full,
+ * emit() blocks the dispatching thread until the subscriber requests more or cancels; with inline dispatch
+ * this suspends reads from the agent's socket, so TCP flow control pushes back on the agent. Signals to the
+ * subscriber are serialized, as Flow requires, and failures of the request itself are reported through
+ * onError after any buffered items. A subscriber that throws from a signal is cancelled.
+ */
+class BufferedSubscription<T> implements Flow.Subscription, ResponseHandler, TimeoutHandler {
+    private static final int NOT_ATTACHED = -1;
+
+    private final BosswaveClient client;
+    private final Flow.Subscriber<? super T> subscriber;
+    private final int capacity;
+    private final ArrayDeque<T> buffer;
+    private long demand;
+    private boolean emitting;
+    private boolean done;
+    private boolean cancelled;
+    private Throwable failure;
+    private int seqNo;
+
+    public BufferedSubscription(BosswaveClient client, Flow.Subscriber<? super T> subscriber, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Buffer capacity must be positive");
+        }
+        this.client = client;
+        this.subscriber = subscriber;
+        this.capacity = capacity;
+        buffer = new ArrayDeque<T>();
+        seqNo = NOT_ATTACHED;
+    }
+
+    /**
+     * Associates the subscription with the request feeding it, so that cancelling releases the request.
+     */
+    void attach(int seqNo) {
+        boolean release;
+        synchronized (this) {
+            this.seqNo = seqNo;
+            release = cancelled;
+        }
+        if (release) {
+            client.release(seqNo);
+        }
+    }
+
+    /**
+     * Queues an item for the subscriber, waiting while the buffer is full.
+     */
+    void emit(T item) {
+        synchronized (this) {
+            while (buffer.size() >= capacity && !cancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (cancelled || done) {
+                return;
+            }
+            buffer.add(item);
+        }
+        drain();
+    }
+
+    void complete() {
+        terminate(null);
+    }
+
+    void fail(Throwable t) {
+        terminate(t);
+    }
+
+    @Override
+    public void onResponseReceived(BosswaveResponse response) {
+        if (!response.getStatus().equals("okay")) {
+            fail(new BosswaveException(response));
+        }
+    }
+
+    @Override
+    public void onTimeout() {
+        fail(new TimeoutException(BosswaveClient.TIMEOUT_REASON));
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            int attachedSeqNo;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                // Flow requires the subscription to fail, discarding anything still buffered
+                buffer.clear();
+                done = true;
+                failure = new IllegalArgumentException("Requested a non-positive number of items");
+                attachedSeqNo = seqNo;
+                notifyAll();
+            }
+            if (attachedSeqNo != NOT_ATTACHED) {
+                client.release(attachedSeqNo);
+            }
+            drain();
+            return;
+        }
+        synchronized (this) {
+            demand += n;
+            if (demand < 0) {
+                // Flow treats a total demand of Long.MAX_VALUE as unbounded
+                demand = Long.MAX_VALUE;
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        int attachedSeqNo;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            buffer.clear();
+            attachedSeqNo = seqNo;
+            notifyAll();
+        }
+        if (attachedSeqNo != NOT_ATTACHED) {
+            client.release(attachedSeqNo);
+        }
+    }
+
+    private void terminate(Throwable t) {
+        synchronized (this) {
+            if (done || cancelled) {
+                return;
+            }
+            done = true;
+            failure = t;
+        }
+        drain();
+    }
+
+    private void drain() {
+        synchronized (this) {
+            if (emitting) {
+                // The thread already delivering will pick up whatever changed
+                return;
+            }
+            emitting = true;
+        }
+        while (true) {
+            T item = null;
+            boolean terminal = false;
+            Throwable t = null;
+            synchronized (this) {
+                if (cancelled) {
+                    emitting = false;
+                    return;
+                }
+                if (demand > 0 && !buffer.isEmpty()) {
+                    item = buffer.poll();
+                    if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                    notifyAll();
+                } else if (done && buffer.isEmpty()) {
+                    terminal = true;
+                    t = failure;
+                    // No signal may follow a terminal one
+                    cancelled = true;
+                } else {
+                    emitting = false;
+                    return;
+                }
+            }
+            try {
+                if (terminal) {
+                    if (t == null) {
+                        subscriber.onComplete();
+                    } else {
+                        subscriber.onError(t);
+                    }
+                    return;
+                }
+                subscriber.onNext(item);
+            } catch (RuntimeException e) {
+                // A subscriber that throws has violated the Flow contract, so its subscription is cancelled. The
+                // exception goes to the thread's uncaught exception handler rather than being thrown into the
+                // thread that dispatches for the client.
+                cancel();
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                return;
+            }
+        }
+    }
+}
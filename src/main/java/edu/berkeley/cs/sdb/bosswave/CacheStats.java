@@ -0,0 +1,53 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * A snapshot of a client-side cache's counters.
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int entryCount;
+    private final long sizeBytes;
+
+    public CacheStats(long hits, long misses, long evictions, int entryCount, long sizeBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entryCount = entryCount;
+        this.sizeBytes = sizeBytes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    // Entries dropped to stay within the cache's size bound
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    // The estimated memory retained by the cache's entries
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0 ? 0.0 : (double) hits / lookups);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", entries="
+                + entryCount + ", bytes=" + sizeBytes + "}";
+    }
+}
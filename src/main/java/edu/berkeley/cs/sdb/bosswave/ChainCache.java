@@ -0,0 +1,269 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the primary access chains the agent has built for this client's entity, keyed by URI and permissions,
+ * so that requests can name a chain instead of asking the agent to build one each time with autochain.
+ *
+ * A lookup that misses starts building the chain in the background with BUILD_CHAIN and returns null, leaving
+ * the request that missed to fall back to autochain. Chains are kept for a time to live, since the agent doesn't
+ * report when the DOTs in a chain expire; a URI and permissions for which no chain could be built are retried
+ * after a shorter delay. A chain is dropped early when a request that named it fails. The cache holds a bounded
+ * number of entries, evicting the least recently used first.
+ */
+class ChainCache {
+    static final int DEFAULT_MAX_ENTRIES = 1024;
+    private static final long RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // A rough allowance for the objects that make up one entry, beyond the characters of its strings
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * A chain for a URI and permissions, or a placeholder while one is being built or after a build failed.
+     * Entries are replaced rather than changed, so a request can tell whether the chain it named is still cached.
+     */
+    static class Entry {
+        final String permissions;
+        final String uri;
+        // The chain's hash, or null if it is being built or couldn't be
+        final String hash;
+        final long expiresAtNanos;
+        final long size;
+        // Neighbours in order of use, guarded by the cache
+        Entry older;
+        Entry newer;
+
+        Entry(String permissions, String uri, String hash, long expiresAtNanos) {
+            this.permissions = permissions;
+            this.uri = uri;
+            this.hash = hash;
+            this.expiresAtNanos = expiresAtNanos;
+            size = ENTRY_OVERHEAD + 2L * (permissions.length() + uri.length() + (hash == null ? 0 : hash.length()));
+        }
+    }
+
+    private final BosswaveClient client;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private String entityVk;
+    // Keyed by permissions, then by URI, so that lookups don't allocate a composite key
+    private final Map<String, Map<String, Entry>> entries;
+    // The ends of the list of entries in order of use, across all permissions
+    private Entry eldest;
+    private Entry youngest;
+    private int entryCount;
+    private int chainCount;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long nextPurgeNanos;
+
+    public ChainCache(BosswaveClient client, long ttlNanos, int maxEntries) {
+        if (ttlNanos <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.client = client;
+        this.ttlNanos = ttlNanos;
+        this.maxEntries = maxEntries;
+        entries = new HashMap<String, Map<String, Entry>>();
+        nextPurgeNanos = System.nanoTime() + purgeInterval();
+    }
+
+    /**
+     * Sets the verifying key of the entity the chains must grant permissions to, forgetting the chains built for
+     * any previous entity. Until it is set, lookups find nothing.
+     */
+    public synchronized void setEntity(String vk) {
+        entityVk = vk;
+        entries.clear();
+        eldest = null;
+        youngest = null;
+        entryCount = 0;
+        chainCount = 0;
+        bytes = 0;
+    }
+
+    /**
+     * @return The entry for a chain granting the permissions on the URI, or null if none is known yet
+     */
+    public Entry lookup(String uri, String permissions) {
+        String vk;
+        Entry building;
+        synchronized (this) {
+            vk = entityVk;
+            if (vk == null) {
+                return null;
+            }
+            long now = System.nanoTime();
+            if (now - nextPurgeNanos >= 0) {
+                purgeExpired(now);
+            }
+
+            Entry entry = get(uri, permissions);
+            if (entry != null && entry.expiresAtNanos - now > 0) {
+                touch(entry);
+                if (entry.hash != null) {
+                    hits++;
+                    return entry;
+                }
+                // Being built, or recently failed to build
+                misses++;
+                return null;
+            }
+
+            misses++;
+            building = new Entry(permissions, uri, null, now + RETRY_DELAY_NANOS);
+            put(building);
+        }
+        build(building, vk);
+        return null;
+    }
+
+    /**
+     * Drops a chain that a request failed with, unless it has already been replaced, so that the next request
+     * for its URI and permissions builds a new one.
+     */
+    public synchronized void invalidate(Entry entry) {
+        if (get(entry.uri, entry.permissions) == entry) {
+            remove(entry);
+        }
+    }
+
+    public synchronized CacheStats stats() {
+        purgeExpired(System.nanoTime());
+        return new CacheStats(hits, misses, evictions, chainCount, bytes);
+    }
+
+    private void build(final Entry building, String vk) {
+        ResultStreamHandler handler = new ResultStreamHandler() {
+            private String hash;
+
+            @Override
+            public void onResultReceived(BosswaveResult result) {
+                // The agent lists the chain it found first
+                if (hash == null) {
+                    hash = result.getValue("hash");
+                }
+            }
+
+            @Override
+            public void onFinished() {
+                if (hash != null) {
+                    complete(building, hash);
+                }
+                // Otherwise the placeholder stays until its retry delay passes
+            }
+        };
+        try {
+            client.sendBuildChain(building.uri, building.permissions, vk, null, handler);
+        } catch (IOException e) {
+            // The request that missed falls back to autochain, as do others until the retry delay passes
+        }
+    }
+
+    private synchronized void complete(Entry building, String hash) {
+        // Unless the placeholder was evicted, or the entity changed, while the chain was built
+        if (get(building.uri, building.permissions) == building) {
+            put(new Entry(building.permissions, building.uri, hash, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    private long purgeInterval() {
+        return Math.min(ttlNanos, RETRY_DELAY_NANOS);
+    }
+
+    // Removes every entry past its expiry, chains and placeholders alike
+    private void purgeExpired(long now) {
+        Entry entry = eldest;
+        while (entry != null) {
+            Entry newer = entry.newer;
+            if (entry.expiresAtNanos - now <= 0) {
+                remove(entry);
+            }
+            entry = newer;
+        }
+        nextPurgeNanos = now + purgeInterval();
+    }
+
+    private Entry get(String uri, String permissions) {
+        Map<String, Entry> byUri = entries.get(permissions);
+        return (byUri == null ? null : byUri.get(uri));
+    }
+
+    // Adds an entry as the most recently used, replacing any for the same URI and permissions
+    private void put(Entry entry) {
+        Map<String, Entry> byUri = entries.get(entry.permissions);
+        if (byUri == null) {
+            byUri = new HashMap<String, Entry>();
+            entries.put(entry.permissions, byUri);
+        }
+        Entry previous = byUri.put(entry.uri, entry);
+        if (previous != null) {
+            unlink(previous);
+        }
+        link(entry);
+        while (entryCount > maxEntries) {
+            remove(eldest);
+            evictions++;
+        }
+    }
+
+    private void remove(Entry entry) {
+        Map<String, Entry> byUri = entries.get(entry.permissions);
+        byUri.remove(entry.uri);
+        if (byUri.isEmpty()) {
+            entries.remove(entry.permissions);
+        }
+        unlink(entry);
+    }
+
+    private void touch(Entry entry) {
+        if (entry != youngest) {
+            unlink(entry);
+            link(entry);
+        }
+    }
+
+    private void link(Entry entry) {
+        entry.older = youngest;
+        entry.newer = null;
+        if (youngest != null) {
+            youngest.newer = entry;
+        } else {
+            eldest = entry;
+        }
+        youngest = entry;
+        entryCount++;
+        if (entry.hash != null) {
+            chainCount++;
+        }
+        bytes += entry.size;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.older != null) {
+            entry.older.newer = entry.newer;
+        } else {
+            eldest = entry.newer;
+        }
+        if (entry.newer != null) {
+            entry.newer.older = entry.older;
+        } else {
+            youngest = entry.older;
+        }
+        entry.older = null;
+        entry.newer = null;
+        entryCount--;
+        if (entry.hash != null) {
+            chainCount--;
+        }
+        bytes -= entry.size;
+    }
+}
@@ -1,7 +1,18 @@
 package edu.berkeley.cs.sdb.bosswave;
 
 public enum ChainElaborationLevel {
-    NONE,
-    PARTIAL,
-    FULL;
+    NONE("none"),
+    PARTIAL("partial"),
+    FULL("full");
+
+    private final String code;
+
+    ChainElaborationLevel(String code) {
+        this.code = code;
+    }
+
+    // Value of the "elaborate_pac" key, precomputed so encoding doesn't depend on the default locale
+    String getCode() {
+        return code;
+    }
 }
@@ -0,0 +1,47 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+// The handle of a subscription that has an agent subscription to itself
+class ClientSubscription implements SubscriptionHandle {
+    private final BosswaveClient client;
+    private final int seqNo;
+    private HashedWheelTimer.Timeout expiry;
+    private boolean cancelled;
+
+    ClientSubscription(BosswaveClient client, int seqNo) {
+        this.client = client;
+        this.seqNo = seqNo;
+    }
+
+    // Arranges for the subscription to be cancelled when it expires
+    void expireWith(HashedWheelTimer.Timeout expiry) {
+        boolean alreadyCancelled;
+        synchronized (this) {
+            this.expiry = expiry;
+            alreadyCancelled = cancelled;
+        }
+        if (alreadyCancelled && expiry != null) {
+            expiry.cancel();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        HashedWheelTimer.Timeout pendingExpiry;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            pendingExpiry = expiry;
+        }
+        if (pendingExpiry != null) {
+            pendingExpiry.cancel();
+        }
+        client.release(seqNo);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,31 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * A subscription made through BosswaveClient.subscribeCoalesced, whose results may be carried by a wildcard
+ * subscription shared with other subscriptions beneath the same URI prefix.
+ */
+public class CoalescedSubscription implements SubscriptionHandle {
+    private final WildcardCoalescer.Member member;
+
+    CoalescedSubscription(WildcardCoalescer.Member member) {
+        this.member = member;
+    }
+
+    public SubscribeRequest getRequest() {
+        return member.request;
+    }
+
+    /**
+     * Stops delivering results to this subscription. A wildcard subscription is dropped once none of the
+     * subscriptions it carries remain.
+     */
+    @Override
+    public void cancel() {
+        member.release();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return member.released;
+    }
+}
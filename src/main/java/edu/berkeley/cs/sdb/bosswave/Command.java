@@ -8,6 +8,7 @@ enum Command {
     PUBLISH         ("publ"),
     PERSIST         ("pers"),
     SUBSCRIBE       ("subs"),
+    UNSUBSCRIBE     ("usub"),
     LIST            ("list"),
     QUERY           ("quer"),
     TAP_SUBSCRIBE   ("tsub"),
@@ -38,6 +39,7 @@ enum Command {
         return code;
     }
 
+    private static final Command[] COMMANDS = values();
     private static final Map<String, Command> COMMANDS_BY_CODE;
     static {
         HashMap<String, Command> codeMap = new HashMap<String, Command>();
@@ -50,4 +52,19 @@ enum Command {
     public static Command fromCode(String code) {
         return COMMANDS_BY_CODE.get(code);
     }
+
+    // Looks up a command from its ASCII code without creating a String
+    static Command fromCode(byte[] buf, int offset, int length) {
+        if (length != 4) {
+            return null;
+        }
+        for (Command command : COMMANDS) {
+            String code = command.code;
+            if (code.charAt(0) == buf[offset] && code.charAt(1) == buf[offset + 1] &&
+                    code.charAt(2) == buf[offset + 2] && code.charAt(3) == buf[offset + 3]) {
+                return command;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,23 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * A DOT made by the agent in response to a MakeDotRequest.
+ */
+public class CreatedDot {
+    private final String hash;
+    private final PayloadObject dot;
+
+    public CreatedDot(String hash, PayloadObject dot) {
+        this.hash = hash;
+        this.dot = dot;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    // The encoded DOT, or null if the agent didn't include it
+    public PayloadObject getDot() {
+        return dot;
+    }
+}
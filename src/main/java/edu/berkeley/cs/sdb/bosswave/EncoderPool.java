@@ -0,0 +1,32 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * A small pool of FrameEncoders, so that each request reuses an already allocated encode buffer.
+ * Encoders whose buffers have grown beyond a limit are not retained.
+ */
+class EncoderPool {
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private final FrameEncoder[] encoders;
+    private int size;
+
+    public EncoderPool(int maxPooled) {
+        encoders = new FrameEncoder[maxPooled];
+        size = 0;
+    }
+
+    public synchronized FrameEncoder acquire() {
+        if (size == 0) {
+            return new FrameEncoder();
+        }
+        FrameEncoder encoder = encoders[--size];
+        encoders[size] = null;
+        return encoder;
+    }
+
+    public synchronized void release(FrameEncoder encoder) {
+        if (size < encoders.length && encoder.capacity() <= MAX_RETAINED_CAPACITY) {
+            encoders[size++] = encoder;
+        }
+    }
+}
@@ -2,24 +2,66 @@ package edu.berkeley.cs.sdb.bosswave;
 
 import org.apache.commons.lang3.CharEncoding;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Random;
 
 class Frame {
-    private static final int BW_HEADER_LEN = 27;
-    private static final Random random = new Random();
+    private static final int STREAM_CHUNK_LEN = 8192;
+    private static final int END_LEN = 4; // "end\n"
+
+    // Keys that the client looks up on every response or result, each with a fixed slot in a decoded frame
+    static final int KEY_STATUS = 0;
+    static final int KEY_REASON = 1;
+    static final int KEY_FINISHED = 2;
+    static final int KEY_URI = 3;
+    static final int KEY_FROM = 4;
+    static final int KEY_UNPACK = 5;
+    static final int KEY_CHILD = 6;
+    static final int WELL_KNOWN_KEY_COUNT = 7;
+    private static final byte[][] WELL_KNOWN_KEYS = {
+            asciiBytes("status"),
+            asciiBytes("reason"),
+            asciiBytes("finished"),
+            asciiBytes("uri"),
+            asciiBytes("from"),
+            asciiBytes("unpack"),
+            asciiBytes("child")
+    };
+
+    // Layout of one item in a decoded frame's index
+    static final int ITEM_KIND = 0;
+    static final int ITEM_KEY_OFFSET = 1; // Routing object number for "ro" items, type index for "po" items
+    static final int ITEM_KEY_LENGTH = 2;
+    static final int ITEM_VALUE_OFFSET = 3;
+    static final int ITEM_VALUE_LENGTH = 4;
+    static final int ITEM_STRIDE = 5;
+    static final int KIND_KV = 0;
+    static final int KIND_RO = 1;
+    static final int KIND_PO = 2;
 
     private final Command command;
     private final int seqNo;
-    private final List<KVPair> kvPairs;
-    private final List<RoutingObject> routingObjects;
-    private final List<PayloadObject> payloadObjects;
+
+    // A decoded frame keeps its keys and values in one backing array, indexed by items
+    private final byte[] data;
+    private final int[] items;
+    private final int itemCount;
+    private final PayloadObject.Type[] poTypes;
+    private final int[] wellKnownKeys;
+
+    // Materialized on first use for decoded frames, as views of the backing array
+    private volatile List<KVPair> kvPairs;
+    private volatile List<RoutingObject> routingObjects;
+    private volatile List<PayloadObject> payloadObjects;
 
     // Frame objects are instantiated using Frame.Builder
     private Frame(Command command, int seqNo, List<KVPair> kvPairs, List<RoutingObject> routingObjects,
@@ -29,6 +71,23 @@ class Frame {
         this.kvPairs = Collections.unmodifiableList(kvPairs);
         this.routingObjects = Collections.unmodifiableList(routingObjects);
         this.payloadObjects = Collections.unmodifiableList(payloadObjects);
+        data = null;
+        items = null;
+        itemCount = 0;
+        poTypes = null;
+        wellKnownKeys = null;
+    }
+
+    // Used by FrameDecoder, which hands over ownership of the arrays
+    Frame(Command command, int seqNo, byte[] data, int[] items, int itemCount, PayloadObject.Type[] poTypes,
+          int[] wellKnownKeys) {
+        this.command = command;
+        this.seqNo = seqNo;
+        this.data = data;
+        this.items = items;
+        this.itemCount = itemCount;
+        this.poTypes = poTypes;
+        this.wellKnownKeys = wellKnownKeys;
     }
 
     public Command getCommand() {
@@ -36,144 +95,239 @@ class Frame {
     }
 
     public List<KVPair> getKVPairs() {
-        return kvPairs;
+        List<KVPair> pairs = kvPairs;
+        if (pairs == null) {
+            List<KVPair> materialized = new ArrayList<KVPair>();
+            for (int i = 0; i < itemCount; i++) {
+                int item = i * ITEM_STRIDE;
+                if (items[item + ITEM_KIND] == KIND_KV) {
+                    String key = new String(data, items[item + ITEM_KEY_OFFSET], items[item + ITEM_KEY_LENGTH],
+                                            StandardCharsets.UTF_8);
+                    materialized.add(new KVPair(key, data, items[item + ITEM_VALUE_OFFSET],
+                                                items[item + ITEM_VALUE_LENGTH]));
+                }
+            }
+            kvPairs = pairs = Collections.unmodifiableList(materialized);
+        }
+        return pairs;
     }
 
     public byte[] getFirstValue(String key) {
-        for (KVPair pair : kvPairs) {
-            if (pair.getKey().equals(key)) {
-                return pair.getValue();
+        if (data == null) {
+            for (KVPair pair : kvPairs) {
+                if (pair.getKey().equals(key)) {
+                    return pair.getValue();
+                }
             }
+            return null;
+        }
+
+        int item = findFirst(key);
+        return (item < 0 ? null : copyValue(item));
+    }
+
+    // Decodes a value as UTF-8 without an intermediate byte array
+    public String getFirstValueAsString(String key) {
+        if (data == null) {
+            byte[] value = getFirstValue(key);
+            return (value == null ? null : new String(value, StandardCharsets.UTF_8));
+        }
+
+        int item = findFirst(key);
+        if (item < 0) {
+            return null;
         }
-        return null;
+        return new String(data, items[item + ITEM_VALUE_OFFSET], items[item + ITEM_VALUE_LENGTH],
+                          StandardCharsets.UTF_8);
+    }
+
+    // Same result as Boolean.parseBoolean on the decoded value, or defaultValue if the key is absent
+    public boolean getFirstValueAsBoolean(String key, boolean defaultValue) {
+        if (data == null) {
+            String value = getFirstValueAsString(key);
+            return (value == null ? defaultValue : Boolean.parseBoolean(value));
+        }
+
+        int item = findFirst(key);
+        if (item < 0) {
+            return defaultValue;
+        }
+        int offset = items[item + ITEM_VALUE_OFFSET];
+        return items[item + ITEM_VALUE_LENGTH] == 4 &&
+               (data[offset] | 0x20) == 't' && (data[offset + 1] | 0x20) == 'r' &&
+               (data[offset + 2] | 0x20) == 'u' && (data[offset + 3] | 0x20) == 'e';
     }
 
     public List<RoutingObject> getRoutingObjects() {
-        return routingObjects;
+        List<RoutingObject> ros = routingObjects;
+        if (ros == null) {
+            List<RoutingObject> materialized = new ArrayList<RoutingObject>();
+            for (int i = 0; i < itemCount; i++) {
+                int item = i * ITEM_STRIDE;
+                if (items[item + ITEM_KIND] == KIND_RO) {
+                    materialized.add(new RoutingObject(items[item + ITEM_KEY_OFFSET], data,
+                                                       items[item + ITEM_VALUE_OFFSET],
+                                                       items[item + ITEM_VALUE_LENGTH]));
+                }
+            }
+            routingObjects = ros = Collections.unmodifiableList(materialized);
+        }
+        return ros;
     }
 
     public List<PayloadObject> getPayloadObjects() {
-        return payloadObjects;
+        List<PayloadObject> pos = payloadObjects;
+        if (pos == null) {
+            List<PayloadObject> materialized = new ArrayList<PayloadObject>();
+            for (int i = 0; i < itemCount; i++) {
+                int item = i * ITEM_STRIDE;
+                if (items[item + ITEM_KIND] == KIND_PO) {
+                    PayloadObject.Type type = poTypes[items[item + ITEM_KEY_OFFSET]];
+                    materialized.add(new PayloadObject(type, data, items[item + ITEM_VALUE_OFFSET],
+                                                       items[item + ITEM_VALUE_LENGTH]));
+                }
+            }
+            payloadObjects = pos = Collections.unmodifiableList(materialized);
+        }
+        return pos;
     }
 
     public int getSeqNo() {
         return seqNo;
     }
 
-    public static Frame readFromStream(InputStream stream) throws IOException {
-        byte[] frameBytes = new byte[BW_HEADER_LEN];
-        stream.read(frameBytes, 0, BW_HEADER_LEN);
-        String frameHeader = new String(frameBytes, CharEncoding.UTF_8);
-
-        String[] headerTokens = frameHeader.trim().split(" ");
-        if (headerTokens.length != 3) {
-            throw new InvalidFrameException("Frame header must contain 3 fields");
-        }
+    private byte[] copyValue(int item) {
+        int offset = items[item + ITEM_VALUE_OFFSET];
+        return Arrays.copyOfRange(data, offset, offset + items[item + ITEM_VALUE_LENGTH]);
+    }
 
-        String commandCode = headerTokens[0];
-        Command command = Command.fromCode(commandCode);
-        if (command == null) {
-            throw new InvalidFrameException("Frame header contains invalid command: " + commandCode);
+    // Returns the index position of the first "kv" item with the given key, or -1
+    private int findFirst(String key) {
+        int slot = wellKnownKeySlot(key);
+        if (slot >= 0) {
+            return wellKnownKeys[slot];
         }
 
-        int frameLength;
-        try {
-            frameLength = Integer.parseInt(headerTokens[1]);
-            if (frameLength < 0) {
-                throw new InvalidFrameException("Negative length in frame header");
+        for (int i = 0; i < itemCount; i++) {
+            int item = i * ITEM_STRIDE;
+            if (items[item + ITEM_KIND] == KIND_KV &&
+                    keyEquals(key, data, items[item + ITEM_KEY_OFFSET], items[item + ITEM_KEY_LENGTH])) {
+                return item;
             }
-        } catch (NumberFormatException e) {
-            throw new InvalidFrameException("Invalid length field in frame header: " + headerTokens[1], e);
         }
+        return -1;
+    }
 
-        int seqNo;
-        try {
-            seqNo = Integer.parseInt(headerTokens[2]);
-        } catch (NumberFormatException e) {
-            throw new InvalidFrameException("Invalid sequence number in frame header: " + headerTokens[2], e);
+    private static boolean keyEquals(String key, byte[] buf, int offset, int length) {
+        if (key.length() != length) {
+            // Only pure ASCII keys can match by length; others fall back to a decoded comparison
+            return FrameEncoder.utf8Length(key) == length &&
+                   key.equals(new String(buf, offset, length, StandardCharsets.UTF_8));
         }
-
-        List<KVPair> kvPairs = new ArrayList<KVPair>();
-        List<RoutingObject> routingObjects = new ArrayList<RoutingObject>();
-        List<PayloadObject> payloadObjects = new ArrayList<PayloadObject>();
-        String currentLine;
-        while (!(currentLine = readLineFromStream(stream)).equals("end")) {
-            String[] tokens = currentLine.split(" ");
-            if (tokens.length != 3) {
-                throw new InvalidFrameException("Header must contain 3 fields: " + currentLine);
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                return key.equals(new String(buf, offset, length, StandardCharsets.UTF_8));
+            } else if (c != buf[offset + i]) {
+                return false;
             }
+        }
+        return true;
+    }
 
-            int length;
-            try {
-                length = Integer.parseInt(tokens[2]);
-                if (length < 0) {
-                    throw new InvalidFrameException("Negative length in item header: " + currentLine);
-                }
-            } catch (NumberFormatException e) {
-                throw new InvalidFrameException("Invalid length in item header: " + currentLine, e);
-            }
+    static int wellKnownKeySlot(String key) {
+        switch (key) {
+            case "status":
+                return KEY_STATUS;
+            case "reason":
+                return KEY_REASON;
+            case "finished":
+                return KEY_FINISHED;
+            case "uri":
+                return KEY_URI;
+            case "from":
+                return KEY_FROM;
+            case "unpack":
+                return KEY_UNPACK;
+            case "child":
+                return KEY_CHILD;
+            default:
+                return -1;
+        }
+    }
 
-            if (tokens[0].equals("kv")) {
-                String key = tokens[1];
-                byte[] body = new byte[length];
-                stream.read(body, 0, length);
-                kvPairs.add(new KVPair(key, body));
-
-                // Remove trailing '\n'
-                stream.read();
-            } else if (tokens[0].equals("ro")) {
-                int routingObjNum;
-                try {
-                    routingObjNum = Integer.parseInt(tokens[1]);
-                    if (routingObjNum < 0 || routingObjNum > 255) {
-                        throw new InvalidFrameException("Invalid routing object number: " + currentLine);
+    static int wellKnownKeySlot(byte[] buf, int offset, int length) {
+        for (int slot = 0; slot < WELL_KNOWN_KEY_COUNT; slot++) {
+            byte[] key = WELL_KNOWN_KEYS[slot];
+            if (key.length == length && key[0] == buf[offset]) {
+                boolean match = true;
+                for (int i = 1; i < length; i++) {
+                    if (key[i] != buf[offset + i]) {
+                        match = false;
+                        break;
                     }
-                } catch (NumberFormatException e) {
-                    throw new InvalidFrameException("Invalid routing object number: " + tokens[1], e);
                 }
-                byte[] body = new byte[length];
-                stream.read(body, 0, length);
-                RoutingObject ro = new RoutingObject(routingObjNum, body);
-                routingObjects.add(ro);
-
-                // Remove trailing '\n'
-                stream.read();
-            } else if (tokens[0].equals("po")) {
-                PayloadObject.Type type;
-                try {
-                    type = PayloadObject.Type.fromString(tokens[1]);
-                } catch (IllegalArgumentException e) {
-                    throw new InvalidFrameException("Invalid payload object type: " + currentLine, e);
+                if (match) {
+                    return slot;
                 }
+            }
+        }
+        return -1;
+    }
 
-                byte[] body = new byte[length];
-                stream.read(body, 0, length);
-                payloadObjects.add(new PayloadObject(type, body));
+    private static byte[] asciiBytes(String str) {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
 
-                // Remove trailing '\n'
-                stream.read();
-            } else {
-                throw new InvalidFrameException("Invalid item header: " + currentLine);
+    // Reads exactly one frame from a stream, without consuming any bytes past its end
+    public static Frame readFromStream(InputStream stream) throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] chunk = new byte[STREAM_CHUNK_LEN];
+        while (true) {
+            int n = stream.read(chunk, 0, Math.min(decoder.bytesWanted(), chunk.length));
+            if (n < 0) {
+                throw new EOFException("Stream ended before a complete frame was read");
+            }
+            Frame frame = decoder.decode(ByteBuffer.wrap(chunk, 0, n));
+            if (frame != null) {
+                return frame;
             }
         }
+    }
 
-        return new Frame(command, seqNo, kvPairs, routingObjects, payloadObjects);
+    // Exact number of bytes written by writeToStream
+    public int encodedLength() {
+        int length = FrameDecoder.FRAME_HEADER_LEN;
+        for (KVPair pair : getKVPairs()) {
+            length += pair.encodedLength();
+        }
+        for (RoutingObject ro : getRoutingObjects()) {
+            length += ro.encodedLength();
+        }
+        for (PayloadObject po : getPayloadObjects()) {
+            length += po.encodedLength();
+        }
+        return length + END_LEN;
     }
 
     public void writeToStream(OutputStream out) throws IOException {
-        out.write(String.format("%s 0000000000 %010d\n", command.getCode(), seqNo).getBytes(CharEncoding.UTF_8));
+        FrameEncoder encoder = new FrameEncoder(encodedLength(), false);
+        encodeTo(encoder);
+        encoder.writeTo(out);
+    }
 
-        for (KVPair pair : kvPairs) {
-            pair.writeToStream(out);
+    ByteBuffer encodeTo(FrameEncoder encoder) {
+        encoder.begin(command, seqNo);
+        for (KVPair pair : getKVPairs()) {
+            encoder.addKVPair(pair);
         }
-        for (RoutingObject ro : routingObjects) {
-            ro.writeToStream(out);
+        for (RoutingObject ro : getRoutingObjects()) {
+            encoder.addRoutingObject(ro);
         }
-        for (PayloadObject po : payloadObjects) {
-            po.writeToStream(out);
+        for (PayloadObject po : getPayloadObjects()) {
+            encoder.addPayloadObject(po);
         }
-
-        out.write("end\n".getBytes(CharEncoding.UTF_8));
+        return encoder.finish();
     }
 
     @Override
@@ -188,43 +342,10 @@ class Frame {
             Frame other = (Frame)o;
             return this.command == other.command &&
                    this.seqNo == other.seqNo &&
-                   this.kvPairs.equals(other.kvPairs) &&
-                   this.routingObjects == other.routingObjects &&
-                   this.payloadObjects == other.payloadObjects;
-        }
-    }
-
-    private static byte[] readUntil(InputStream in, byte end) throws IOException {
-        List<Byte> bytes = new ArrayList<Byte>();
-        int b = in.read();
-        while (b != -1 && (byte)b != end) {
-            bytes.add((byte)b);
-            b = in.read();
-        }
-        if (b != -1) {
-            bytes.add((byte) b); // Add end byte
+                   this.getKVPairs().equals(other.getKVPairs()) &&
+                   this.getRoutingObjects() == other.getRoutingObjects() &&
+                   this.getPayloadObjects() == other.getPayloadObjects();
         }
-
-        byte[] retVal = new byte[bytes.size()];
-        for (int i = 0; i < bytes.size(); i++) {
-            retVal[i] = bytes.get(i);
-        }
-        return retVal;
-    }
-
-    // Returned string does not contain the terminating newline
-    private static String readLineFromStream(InputStream stream) throws IOException {
-        byte[] bytes = readUntil(stream, (byte)'\n');
-        String line = new String(bytes, CharEncoding.UTF_8);
-        if (line.endsWith("\n")) {
-            return line.substring(0, line.length() - 1);
-        } else {
-            return line;
-        }
-    }
-
-    public static int generateSequenceNumber() {
-        return Math.abs(random.nextInt());
     }
 
     public static class Builder {
@@ -0,0 +1,406 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental decoder for Bosswave frames.
+ *
+ * Bytes are fed in as they arrive, in chunks of any size, and completed frames come out. Partial frames are
+ * kept between calls, so a short read or a socket timeout in the middle of a frame does not lose data. Frame
+ * and item headers are parsed directly from the received bytes.
+ *
+ * The keys and values of each frame are copied into a single backing array, and the frame keeps an index of
+ * offsets into it. Nothing is converted to a String or copied into a per-item array until it is asked for.
+ * Frames that a Filter rejects from their header are skipped: only their item headers are parsed, to find where
+ * each item ends, and their contents are neither copied nor returned.
+ */
+class FrameDecoder {
+    interface Filter {
+        boolean accept(Command command, int seqNo);
+    }
+
+    static final int FRAME_HEADER_LEN = 27;
+    private static final int MIN_ITEM_HEADER_LEN = 4; // "end\n"
+    private static final int MAX_ITEM_HEADER_LEN = 4096;
+    private static final int INITIAL_DATA_LEN = 256;
+    private static final int INITIAL_ITEM_COUNT = 8;
+
+    private enum State {
+        FRAME_HEADER,
+        ITEM_HEADER,
+        ITEM_BODY,
+        ITEM_TRAILER
+    }
+
+    private State state;
+    private byte[] line;
+    private int lineLen;
+
+    private Command command;
+    private int seqNo;
+    private byte[] data;
+    private int dataLen;
+    private int[] items;
+    private int itemCount;
+    private PayloadObject.Type[] poTypes;
+    private int poCount;
+    private int[] wellKnownKeys;
+    private int itemValueEnd;
+    private final Filter filter;
+    // Set while skipping a frame that the filter rejected
+    private boolean discarding;
+
+    public FrameDecoder() {
+        this(null);
+    }
+
+    /**
+     * @param filter Decides which frames to decode, or null to decode them all
+     */
+    public FrameDecoder(Filter filter) {
+        this.filter = filter;
+        line = new byte[64];
+        reset();
+    }
+
+    /**
+     * Decodes as many frames as possible from the remaining bytes of a buffer.
+     * All remaining bytes are consumed. Completed frames are appended to the supplied list, and any trailing
+     * partial frame is retained until more bytes are supplied.
+     * @param in The bytes to decode
+     * @param out Receives the completed frames
+     * @return The number of frames appended to out
+     * @throws InvalidFrameException If the bytes do not form a valid frame. The decoder discards the partial frame
+     *                               and the buffer is left positioned just after the offending byte.
+     */
+    public int decode(ByteBuffer in, List<Frame> out) {
+        int count = 0;
+        Frame frame;
+        while ((frame = decode(in)) != null) {
+            out.add(frame);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Decodes bytes from a buffer until one frame is complete or the buffer is exhausted.
+     * @param in The bytes to decode
+     * @return The completed frame, or null if more bytes are needed
+     * @throws InvalidFrameException If the bytes do not form a valid frame
+     */
+    public Frame decode(ByteBuffer in) {
+        try {
+            while (in.hasRemaining()) {
+                switch (state) {
+                    case FRAME_HEADER: {
+                        int n = Math.min(FRAME_HEADER_LEN - lineLen, in.remaining());
+                        in.get(line, lineLen, n);
+                        lineLen += n;
+                        if (lineLen == FRAME_HEADER_LEN) {
+                            parseFrameHeader();
+                            lineLen = 0;
+                            state = State.ITEM_HEADER;
+                        }
+                        break;
+                    }
+
+                    case ITEM_HEADER: {
+                        byte b = in.get();
+                        if (b != '\n') {
+                            appendToLine(b);
+                        } else {
+                            Frame frame = parseItemHeader();
+                            lineLen = 0;
+                            if (frame != null) {
+                                reset();
+                                return frame;
+                            }
+                        }
+                        break;
+                    }
+
+                    case ITEM_BODY: {
+                        int n = Math.min(itemValueEnd - dataLen, in.remaining());
+                        if (discarding) {
+                            in.position(in.position() + n);
+                        } else {
+                            in.get(data, dataLen, n);
+                        }
+                        dataLen += n;
+                        if (dataLen == itemValueEnd) {
+                            state = State.ITEM_TRAILER;
+                        }
+                        break;
+                    }
+
+                    case ITEM_TRAILER: {
+                        // Remove trailing '\n'
+                        in.get();
+                        state = State.ITEM_HEADER;
+                        break;
+                    }
+                }
+            }
+            return null;
+        } catch (InvalidFrameException e) {
+            reset();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of bytes that may be consumed without reading past the end of the current frame.
+     * Blocking readers use this to pull exactly one frame from a stream.
+     */
+    public int bytesWanted() {
+        switch (state) {
+            case FRAME_HEADER:
+                return FRAME_HEADER_LEN - lineLen;
+            case ITEM_HEADER:
+                return Math.max(1, MIN_ITEM_HEADER_LEN - lineLen);
+            case ITEM_BODY:
+                return itemValueEnd - dataLen;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Returns true if the decoder is between frames, i.e. it holds no partially decoded frame.
+     */
+    public boolean isIdle() {
+        return state == State.FRAME_HEADER && lineLen == 0;
+    }
+
+    public void reset() {
+        state = State.FRAME_HEADER;
+        lineLen = 0;
+        discarding = false;
+        command = null;
+        data = null;
+        items = null;
+        poTypes = null;
+        wellKnownKeys = null;
+    }
+
+    private void appendToLine(byte b) {
+        if (lineLen == line.length) {
+            if (line.length >= MAX_ITEM_HEADER_LEN) {
+                throw new InvalidFrameException("Item header exceeds " + MAX_ITEM_HEADER_LEN + " bytes");
+            }
+            byte[] grown = new byte[line.length * 2];
+            System.arraycopy(line, 0, grown, 0, lineLen);
+            line = grown;
+        }
+        line[lineLen++] = b;
+    }
+
+    private void parseFrameHeader() {
+        int end = FRAME_HEADER_LEN;
+        while (end > 0 && isWhitespace(line[end - 1])) {
+            end--;
+        }
+        int start = 0;
+        while (start < end && isWhitespace(line[start])) {
+            start++;
+        }
+
+        int firstSpace = indexOf(line, start, end, (byte) ' ');
+        int secondSpace = indexOf(line, firstSpace + 1, end, (byte) ' ');
+        if (firstSpace < 0 || secondSpace < 0 || indexOf(line, secondSpace + 1, end, (byte) ' ') >= 0) {
+            throw new InvalidFrameException("Frame header must contain 3 fields");
+        }
+
+        Command command = Command.fromCode(line, start, firstSpace - start);
+        if (command == null) {
+            throw new InvalidFrameException("Frame header contains invalid command: " +
+                    asciiString(start, firstSpace));
+        }
+
+        long frameLength = parseDecimal(line, firstSpace + 1, secondSpace);
+        if (frameLength == Long.MIN_VALUE || frameLength > Integer.MAX_VALUE) {
+            throw new InvalidFrameException("Invalid length field in frame header: " +
+                    asciiString(firstSpace + 1, secondSpace));
+        } else if (frameLength < 0) {
+            throw new InvalidFrameException("Negative length in frame header");
+        }
+
+        long seqNo = parseDecimal(line, secondSpace + 1, end);
+        if (seqNo == Long.MIN_VALUE || seqNo > Integer.MAX_VALUE || seqNo < Integer.MIN_VALUE) {
+            throw new InvalidFrameException("Invalid sequence number in frame header: " +
+                    asciiString(secondSpace + 1, end));
+        }
+
+        this.command = command;
+        this.seqNo = (int) seqNo;
+        if (filter != null && !filter.accept(command, this.seqNo)) {
+            discarding = true;
+            return;
+        }
+        data = new byte[INITIAL_DATA_LEN];
+        dataLen = 0;
+        items = new int[INITIAL_ITEM_COUNT * Frame.ITEM_STRIDE];
+        itemCount = 0;
+        poCount = 0;
+        wellKnownKeys = new int[Frame.WELL_KNOWN_KEY_COUNT];
+        Arrays.fill(wellKnownKeys, -1);
+    }
+
+    // Returns the completed frame if the line was the terminating "end", null otherwise
+    private Frame parseItemHeader() {
+        if (lineLen == 3 && line[0] == 'e' && line[1] == 'n' && line[2] == 'd') {
+            if (discarding) {
+                // Carry on with the next frame
+                reset();
+                return null;
+            }
+            PayloadObject.Type[] types = (poCount == 0 ? null : Arrays.copyOf(poTypes, poCount));
+            return new Frame(command, seqNo, data, items, itemCount, types, wellKnownKeys);
+        }
+
+        int firstSpace = indexOf(line, 0, lineLen, (byte) ' ');
+        int secondSpace = indexOf(line, firstSpace + 1, lineLen, (byte) ' ');
+        if (firstSpace < 0 || secondSpace < 0 || indexOf(line, secondSpace + 1, lineLen, (byte) ' ') >= 0) {
+            throw new InvalidFrameException("Header must contain 3 fields: " + asciiString(0, lineLen));
+        }
+
+        long length = parseDecimal(line, secondSpace + 1, lineLen);
+        if (length == Long.MIN_VALUE || length > Integer.MAX_VALUE) {
+            throw new InvalidFrameException("Invalid length in item header: " + asciiString(0, lineLen));
+        } else if (length < 0) {
+            throw new InvalidFrameException("Negative length in item header: " + asciiString(0, lineLen));
+        }
+
+        if (discarding) {
+            // Count off the item's bytes without keeping them
+            dataLen = 0;
+            itemValueEnd = (int) length;
+            state = (length == 0 ? State.ITEM_TRAILER : State.ITEM_BODY);
+            return null;
+        }
+
+        int item = addItem();
+        if (firstSpace == 2 && line[0] == 'k' && line[1] == 'v') {
+            int keyLength = secondSpace - firstSpace - 1;
+            ensureDataCapacity(keyLength + length);
+            System.arraycopy(line, firstSpace + 1, data, dataLen, keyLength);
+            items[item + Frame.ITEM_KIND] = Frame.KIND_KV;
+            items[item + Frame.ITEM_KEY_OFFSET] = dataLen;
+            items[item + Frame.ITEM_KEY_LENGTH] = keyLength;
+            int slot = Frame.wellKnownKeySlot(data, dataLen, keyLength);
+            if (slot >= 0 && wellKnownKeys[slot] < 0) {
+                wellKnownKeys[slot] = item;
+            }
+            dataLen += keyLength;
+        } else if (firstSpace == 2 && line[0] == 'r' && line[1] == 'o') {
+            long routingObjNum = parseDecimal(line, firstSpace + 1, secondSpace);
+            if (routingObjNum < 0 || routingObjNum > 255) {
+                throw new InvalidFrameException("Invalid routing object number: " + asciiString(0, lineLen));
+            }
+            ensureDataCapacity(length);
+            items[item + Frame.ITEM_KIND] = Frame.KIND_RO;
+            items[item + Frame.ITEM_KEY_OFFSET] = (int) routingObjNum;
+        } else if (firstSpace == 2 && line[0] == 'p' && line[1] == 'o') {
+            PayloadObject.Type type;
+            try {
+                type = PayloadObject.Type.fromBytes(line, firstSpace + 1, secondSpace - firstSpace - 1);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidFrameException("Invalid payload object type: " + asciiString(0, lineLen), e);
+            }
+            ensureDataCapacity(length);
+            items[item + Frame.ITEM_KIND] = Frame.KIND_PO;
+            items[item + Frame.ITEM_KEY_OFFSET] = addPoType(type);
+        } else {
+            throw new InvalidFrameException("Invalid item header: " + asciiString(0, lineLen));
+        }
+
+        items[item + Frame.ITEM_VALUE_OFFSET] = dataLen;
+        items[item + Frame.ITEM_VALUE_LENGTH] = (int) length;
+        itemValueEnd = dataLen + (int) length;
+        state = (length == 0 ? State.ITEM_TRAILER : State.ITEM_BODY);
+        return null;
+    }
+
+    // Returns the index position of a new item
+    private int addItem() {
+        int item = itemCount * Frame.ITEM_STRIDE;
+        if (item == items.length) {
+            items = Arrays.copyOf(items, items.length * 2);
+        }
+        itemCount++;
+        return item;
+    }
+
+    private int addPoType(PayloadObject.Type type) {
+        if (poTypes == null) {
+            poTypes = new PayloadObject.Type[2];
+        } else if (poCount == poTypes.length) {
+            poTypes = Arrays.copyOf(poTypes, poCount * 2);
+        }
+        poTypes[poCount] = type;
+        return poCount++;
+    }
+
+    private void ensureDataCapacity(long needed) {
+        long required = dataLen + needed;
+        if (required > Integer.MAX_VALUE - 8) {
+            throw new InvalidFrameException("Frame exceeds maximum supported size");
+        }
+        if (required > data.length) {
+            long capacity = Math.max(required, Math.min(2L * data.length, Integer.MAX_VALUE - 8));
+            data = Arrays.copyOf(data, (int) capacity);
+        }
+    }
+
+    private String asciiString(int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    static int indexOf(byte[] buf, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses an optionally signed decimal number from a range of ASCII bytes.
+     * @return The parsed value, or Long.MIN_VALUE if the range is empty, malformed or too long
+     */
+    static long parseDecimal(byte[] buf, int start, int end) {
+        if (start < 0 || start >= end) {
+            return Long.MIN_VALUE;
+        }
+        boolean negative = false;
+        int i = start;
+        if (buf[i] == '-' || buf[i] == '+') {
+            negative = buf[i] == '-';
+            i++;
+            if (i == end) {
+                return Long.MIN_VALUE;
+            }
+        }
+        if (end - i > 18) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+}
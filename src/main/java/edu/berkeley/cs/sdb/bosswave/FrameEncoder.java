@@ -0,0 +1,344 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a Bosswave frame directly into a reusable ByteBuffer.
+ *
+ * Each item's exact encoded size is computed before it is written, and item headers and decimal lengths are
+ * emitted as ASCII bytes without going through String.format. An encoder is reset by begin(), so one instance
+ * (and its buffer) can be used for any number of frames.
+ */
+class FrameEncoder extends MpscQueue.Node {
+    static final int DEFAULT_CAPACITY = 4096;
+    private static final int SEQ_NO_WIDTH = 10;
+    // The sequence number follows the command, the length field and their separators
+    private static final int SEQ_NO_OFFSET = 4 + 1 + 10 + 1;
+    private static final byte[] EMPTY_LENGTH = {'0', '0', '0', '0', '0', '0', '0', '0', '0', '0'};
+    private static final byte[] END = {'e', 'n', 'd', '\n'};
+    private static final byte[] KV = {'k', 'v', ' '};
+    private static final byte[] RO = {'r', 'o', ' '};
+    private static final byte[] PO = {'p', 'o', ' '};
+    private static final byte[] MS_SUFFIX = {'m', 's'};
+
+    private final boolean direct;
+    private ByteBuffer buf;
+
+    public FrameEncoder() {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    public FrameEncoder(int initialCapacity, boolean direct) {
+        this.direct = direct;
+        buf = allocate(initialCapacity);
+    }
+
+    /**
+     * Discards any previous contents and writes the header of a new frame.
+     */
+    public FrameEncoder begin(Command command, int seqNo) {
+        buf.clear();
+        ensureCapacity(FrameDecoder.FRAME_HEADER_LEN);
+        putAscii(buf, command.getCode());
+        buf.put((byte) ' ');
+        buf.put(EMPTY_LENGTH);
+        buf.put((byte) ' ');
+        putZeroPadded(buf, seqNo, SEQ_NO_WIDTH);
+        buf.put((byte) '\n');
+        return this;
+    }
+
+    /**
+     * Discards any previous contents and starts a new frame from a template captured with contents(), replacing
+     * the template's sequence number.
+     */
+    public FrameEncoder begin(byte[] template, int seqNo) {
+        buf.clear();
+        ensureCapacity(template.length);
+        buf.put(template);
+        buf.position(SEQ_NO_OFFSET);
+        putZeroPadded(buf, seqNo, SEQ_NO_WIDTH);
+        buf.position(template.length);
+        return this;
+    }
+
+    /**
+     * @return A copy of the frame written since begin(), without the terminator that finish() adds
+     */
+    public byte[] contents() {
+        byte[] contents = new byte[buf.position()];
+        ByteBuffer src = buf.duplicate();
+        src.flip();
+        src.get(contents);
+        return contents;
+    }
+
+    public FrameEncoder addKVPair(String key, byte[] value) {
+        ensureCapacity(kvHeaderLength(key, value.length) + value.length + 1);
+        putKVHeader(buf, key, value.length);
+        buf.put(value);
+        buf.put((byte) '\n');
+        return this;
+    }
+
+    public FrameEncoder addKVPair(String key, String value) {
+        int valueLength = utf8Length(value);
+        ensureCapacity(kvHeaderLength(key, valueLength) + valueLength + 1);
+        putKVHeader(buf, key, valueLength);
+        putUtf8(buf, value);
+        buf.put((byte) '\n');
+        return this;
+    }
+
+    public FrameEncoder addKVPair(String key, boolean value) {
+        return addKVPair(key, value ? "true" : "false");
+    }
+
+    public FrameEncoder addKVPair(String key, long value) {
+        int valueLength = decimalLength(value);
+        ensureCapacity(kvHeaderLength(key, valueLength) + valueLength + 1);
+        putKVHeader(buf, key, valueLength);
+        putDecimal(buf, value);
+        buf.put((byte) '\n');
+        return this;
+    }
+
+    // Writes a duration in the "<n>ms" form understood by the agent
+    public FrameEncoder addKVPairMillis(String key, long millis) {
+        int valueLength = decimalLength(millis) + MS_SUFFIX.length;
+        ensureCapacity(kvHeaderLength(key, valueLength) + valueLength + 1);
+        putKVHeader(buf, key, valueLength);
+        putDecimal(buf, millis);
+        buf.put(MS_SUFFIX);
+        buf.put((byte) '\n');
+        return this;
+    }
+
+    public FrameEncoder addKVPair(KVPair pair) {
+        ensureCapacity(pair.encodedLength());
+        pair.encodeTo(buf);
+        return this;
+    }
+
+    public FrameEncoder addRoutingObject(RoutingObject ro) {
+        ensureCapacity(ro.encodedLength());
+        ro.encodeTo(buf);
+        return this;
+    }
+
+    public FrameEncoder addPayloadObject(PayloadObject po) {
+        ensureCapacity(po.encodedLength());
+        po.encodeTo(buf);
+        return this;
+    }
+
+    // Writes a payload object given as its parts, without a PayloadObject to hold them
+    public FrameEncoder addPayloadObject(PayloadObject.Type type, byte[] content, int offset, int length) {
+        ensureCapacity(poHeaderLength(type, length) + length + 1);
+        putPOHeader(buf, type, length);
+        buf.put(content, offset, length);
+        buf.put((byte) '\n');
+        return this;
+    }
+
+    /**
+     * Terminates the frame and returns the encoded bytes.
+     * @return A buffer positioned at the start of the frame, with its limit at the end. The buffer is owned by the
+     * encoder and is only valid until the next call to begin().
+     */
+    public ByteBuffer finish() {
+        ensureCapacity(END.length);
+        buf.put(END);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Writes the bytes returned by the last call to finish(), leaving the buffer position unchanged.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(buf.remaining(), DEFAULT_CAPACITY)];
+            ByteBuffer src = buf.duplicate();
+            while (src.hasRemaining()) {
+                int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Writes the bytes returned by the last call to finish(), leaving the buffer position unchanged.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer src = buf.duplicate();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    public int capacity() {
+        return buf.capacity();
+    }
+
+    private void ensureCapacity(int needed) {
+        if (buf.remaining() < needed) {
+            int capacity = buf.capacity();
+            while (capacity - buf.position() < needed) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = allocate(capacity);
+            buf.flip();
+            grown.put(buf);
+            buf = grown;
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        capacity = Math.max(capacity, FrameDecoder.FRAME_HEADER_LEN);
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    static int kvHeaderLength(String key, int valueLength) {
+        return KV.length + utf8Length(key) + 1 + decimalLength(valueLength) + 1;
+    }
+
+    static void putKVHeader(ByteBuffer buf, String key, int valueLength) {
+        buf.put(KV);
+        putUtf8(buf, key);
+        buf.put((byte) ' ');
+        putDecimal(buf, valueLength);
+        buf.put((byte) '\n');
+    }
+
+    static int roHeaderLength(int routingObjNum, int contentLength) {
+        return RO.length + decimalLength(routingObjNum) + 1 + decimalLength(contentLength) + 1;
+    }
+
+    static void putROHeader(ByteBuffer buf, int routingObjNum, int contentLength) {
+        buf.put(RO);
+        putDecimal(buf, routingObjNum);
+        buf.put((byte) ' ');
+        putDecimal(buf, contentLength);
+        buf.put((byte) '\n');
+    }
+
+    static int poHeaderLength(PayloadObject.Type type, int contentLength) {
+        return PO.length + type.encodedLength() + 1 + decimalLength(contentLength) + 1;
+    }
+
+    static void putPOHeader(ByteBuffer buf, PayloadObject.Type type, int contentLength) {
+        buf.put(PO);
+        type.writeTo(buf);
+        buf.put((byte) ' ');
+        putDecimal(buf, contentLength);
+        buf.put((byte) '\n');
+    }
+
+    static int decimalLength(long value) {
+        if (value < 0) {
+            return (value == Long.MIN_VALUE ? 20 : 1 + decimalLength(-value));
+        }
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    static void putDecimal(ByteBuffer buf, long value) {
+        if (value < 0) {
+            buf.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                putAscii(buf, "9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        int length = decimalLength(value);
+        int end = buf.position() + length;
+        for (int i = end - 1; i >= end - length; i--) {
+            buf.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buf.position(end);
+    }
+
+    // Mirrors String.format("%0<width>d", value) for ints
+    static void putZeroPadded(ByteBuffer buf, int value, int width) {
+        long magnitude = value;
+        if (magnitude < 0) {
+            buf.put((byte) '-');
+            magnitude = -magnitude;
+            width--;
+        }
+        for (int i = decimalLength(magnitude); i < width; i++) {
+            buf.put((byte) '0');
+        }
+        putDecimal(buf, magnitude);
+    }
+
+    static void putAscii(ByteBuffer buf, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            buf.put((byte) str.charAt(i));
+        }
+    }
+
+    static int utf8Length(CharSequence str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < str.length() &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length++;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Unpaired surrogates are written as '?', matching String.getBytes
+    static void putUtf8(ByteBuffer buf, CharSequence str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xc0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < str.length() &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                    buf.put((byte) (0xf0 | (codePoint >> 18)));
+                    buf.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                    buf.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                    buf.put((byte) (0x80 | (codePoint & 0x3f)));
+                } else {
+                    buf.put((byte) '?');
+                }
+            } else {
+                buf.put((byte) (0xe0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buf.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+}
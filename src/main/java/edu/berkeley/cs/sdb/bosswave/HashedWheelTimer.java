@@ -0,0 +1,171 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks after a delay, for very large numbers of pending timeouts.
+ *
+ * Timeouts are hashed by deadline into the buckets of a wheel that a single thread advances one bucket per
+ * tick, running the tasks in each bucket whose deadline has passed. Scheduling queues the timeout on a lock-free
+ * queue for the timer thread to place, and cancelling just marks it, so both are O(1) regardless of how many
+ * timeouts are pending; cancelled timeouts are unlinked when the wheel next reaches their bucket. Tasks run on
+ * the timer thread, up to one tick late, and must be short.
+ */
+class HashedWheelTimer implements Runnable {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    static class Timeout extends MpscQueue.Node {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout nextInBucket;
+        volatile int state;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if the task will not run, false if it has already run or been cancelled
+         */
+        public boolean cancel() {
+            return STATE.compareAndSet(this, PENDING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+    }
+
+    // A doubly linked list of timeouts, only touched by the timer thread
+    private static class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.prev = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.nextInBucket = timeout;
+            }
+            tail = timeout;
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.nextInBucket;
+            if (timeout.prev == null) {
+                head = next;
+            } else {
+                timeout.prev.nextInBucket = next;
+            }
+            if (next == null) {
+                tail = timeout.prev;
+            } else {
+                next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.nextInBucket = null;
+            return next;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final MpscQueue<Timeout> pending;
+    private final long startTime;
+    private final Thread thread;
+    private volatile boolean continueRunning;
+    private long tick;
+
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize) {
+        tickNanos = Math.max(unit.toNanos(tickDuration), 1);
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        pending = new MpscQueue<Timeout>();
+        startTime = System.nanoTime();
+        continueRunning = true;
+        thread = new Thread(this, "bosswave-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        pending.offer(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        continueRunning = false;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (continueRunning) {
+            long deadline = (tick + 1) * tickNanos;
+            long now = System.nanoTime() - startTime;
+            if (now < deadline) {
+                LockSupport.parkNanos(this, deadline - now);
+                continue;
+            }
+            placePending();
+            expire(wheel[(int) (tick & mask)], now);
+            tick++;
+        }
+    }
+
+    private void placePending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state != PENDING) {
+                continue;
+            }
+            // Never place a timeout in a bucket the wheel has already passed in this round
+            long expiryTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket, long now) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            if (timeout.state != PENDING) {
+                timeout = bucket.remove(timeout);
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                Timeout next = bucket.remove(timeout);
+                if (STATE.compareAndSet(timeout, PENDING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        // One failing task must not stop the timer
+                        Thread thread = Thread.currentThread();
+                        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                    }
+                }
+                timeout = next;
+            } else {
+                if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+                timeout = timeout.nextInBucket;
+            }
+        }
+    }
+}
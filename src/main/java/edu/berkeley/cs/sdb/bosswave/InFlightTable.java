@@ -0,0 +1,208 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Allocates sequence numbers and tracks the handlers of requests that are still in flight.
+ *
+ * Sequence numbers are handed out by a monotonic counter, so two live requests never share one. Each entry is
+ * stored in the slot given by the low bits of its sequence number; the allocator skips any number whose slot is
+ * still occupied, so every entry sits in its home slot and a lookup is a single array read, without locking or
+ * boxing. Registration is serialized, while lookups and removals may run concurrently with it.
+ */
+class InFlightTable {
+    static final int DEFAULT_CAPACITY = 256;
+
+    static class Entry {
+        final int seqNo;
+        final ResultHandler resultHandler;
+        final ListResultHandler listResultHandler;
+        // Whether the request ends with a "finished" result, rather than living on after its response
+        final boolean finite;
+        // The cached access chain the request named, if any, which is dropped if the request fails
+        final ChainCache.Entry chain;
+        volatile ResponseHandler responseHandler;
+        volatile HashedWheelTimer.Timeout timeout;
+        volatile int removed;
+        // For subscriptions: whether the agent has accepted it, the handle it gave, and whether it was cancelled
+        volatile boolean accepted;
+        volatile String handle;
+        volatile boolean cancelled;
+
+        Entry(int seqNo, ResponseHandler responseHandler, ResultHandler resultHandler,
+              ListResultHandler listResultHandler, boolean finite, ChainCache.Entry chain) {
+            this.seqNo = seqNo;
+            this.responseHandler = responseHandler;
+            this.resultHandler = resultHandler;
+            this.listResultHandler = listResultHandler;
+            this.finite = finite;
+            this.chain = chain;
+        }
+
+        // Takes the response handler, so that it is invoked at most once
+        ResponseHandler takeResponseHandler() {
+            return RESPONSE_HANDLER.getAndSet(this, null);
+        }
+
+        void cancelTimeout() {
+            HashedWheelTimer.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+
+        boolean expectsResults() {
+            return resultHandler != null || listResultHandler != null;
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<Entry> REMOVED =
+            AtomicIntegerFieldUpdater.newUpdater(Entry.class, "removed");
+    private static final AtomicReferenceFieldUpdater<Entry, ResponseHandler> RESPONSE_HANDLER =
+            AtomicReferenceFieldUpdater.newUpdater(Entry.class, ResponseHandler.class, "responseHandler");
+
+    private final AtomicInteger nextSeqNo;
+    private final AtomicInteger size;
+    private volatile AtomicReferenceArray<Entry> slots;
+
+    public InFlightTable() {
+        this(DEFAULT_CAPACITY, 1);
+    }
+
+    InFlightTable(int initialCapacity, int firstSeqNo) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+        slots = new AtomicReferenceArray<Entry>(capacity);
+        nextSeqNo = new AtomicInteger(firstSeqNo);
+        size = new AtomicInteger();
+    }
+
+    /**
+     * Allocates a sequence number for a request whose replies are not handled. The number does not collide with
+     * that of any request currently in the table.
+     */
+    public int nextSequenceNumber() {
+        while (true) {
+            int seqNo = nextSeqNo.getAndIncrement() & Integer.MAX_VALUE;
+            AtomicReferenceArray<Entry> table = slots;
+            if (!isLive(table.get(seqNo & (table.length() - 1)))) {
+                return seqNo;
+            }
+        }
+    }
+
+    /**
+     * Allocates a sequence number and installs the handlers for the request that will use it.
+     * @param finite Whether the request ends with a "finished" result
+     * @return The new entry; its seqNo is the request's sequence number
+     */
+    public Entry register(ResponseHandler responseHandler, ResultHandler resultHandler,
+                          ListResultHandler listResultHandler, boolean finite) {
+        return register(responseHandler, resultHandler, listResultHandler, finite, null);
+    }
+
+    /**
+     * Like register(ResponseHandler, ResultHandler, ListResultHandler, boolean), for a request that names a cached
+     * access chain.
+     */
+    public synchronized Entry register(ResponseHandler responseHandler, ResultHandler resultHandler,
+                                       ListResultHandler listResultHandler, boolean finite, ChainCache.Entry chain) {
+        AtomicReferenceArray<Entry> table = slots;
+        if (size.get() >= table.length() / 2) {
+            table = grow(table);
+        }
+        int mask = table.length() - 1;
+        while (true) {
+            int seqNo = nextSeqNo.getAndIncrement() & Integer.MAX_VALUE;
+            if (!isLive(table.get(seqNo & mask))) {
+                Entry entry = new Entry(seqNo, responseHandler, resultHandler, listResultHandler, finite, chain);
+                table.set(seqNo & mask, entry);
+                size.incrementAndGet();
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Finds the entry for a sequence number.
+     * @return The entry, or null if no request with that sequence number is in flight
+     */
+    public Entry get(int seqNo) {
+        AtomicReferenceArray<Entry> table = slots;
+        Entry entry = table.get(seqNo & (table.length() - 1));
+        if (entry != null && entry.seqNo == seqNo && entry.removed == 0) {
+            return entry;
+        }
+        return null;
+    }
+
+    public Entry remove(int seqNo) {
+        Entry entry = get(seqNo);
+        if (entry != null && remove(entry)) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Removes an entry from the table, cancelling its timeout.
+     * @return true if this call removed the entry, false if it had already been removed
+     */
+    public boolean remove(Entry entry) {
+        if (!REMOVED.compareAndSet(entry, 0, 1)) {
+            return false;
+        }
+        entry.cancelTimeout();
+        size.decrementAndGet();
+        // A concurrent grow() may copy the entry after this; the removed mark frees its slot
+        AtomicReferenceArray<Entry> table = slots;
+        table.compareAndSet(entry.seqNo & (table.length() - 1), entry, null);
+        return true;
+    }
+
+    /**
+     * Removes every entry from the table.
+     * @return The entries that this call removed
+     */
+    public synchronized List<Entry> removeAll() {
+        List<Entry> removed = new ArrayList<Entry>();
+        AtomicReferenceArray<Entry> table = slots;
+        for (int i = 0; i < table.length(); i++) {
+            Entry entry = table.get(i);
+            if (entry != null && remove(entry)) {
+                removed.add(entry);
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+
+    // Entries in distinct slots stay in distinct slots when the mask gains a bit, so no rehashing is needed
+    private AtomicReferenceArray<Entry> grow(AtomicReferenceArray<Entry> table) {
+        AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<Entry>(table.length() * 2);
+        int mask = grown.length() - 1;
+        for (int i = 0; i < table.length(); i++) {
+            Entry entry = table.get(i);
+            if (isLive(entry)) {
+                grown.set(entry.seqNo & mask, entry);
+            }
+        }
+        slots = grown;
+        return grown;
+    }
+
+    private static boolean isLive(Entry entry) {
+        return entry != null && entry.removed == 0;
+    }
+}
@@ -1,31 +1,74 @@
 package edu.berkeley.cs.sdb.bosswave;
 
-import org.apache.commons.lang3.CharEncoding;
-
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 public class KVPair {
     private final String key;
     private final byte[] value;
+    private final int valueOffset;
+    private final int valueLength;
 
     public KVPair(String key, byte[] value) {
+        this(key, value, 0, value.length);
+    }
+
+    // Creates a pair whose value is a view of part of a larger array, such as a decoded frame's backing array
+    KVPair(String key, byte[] buf, int offset, int length) {
         this.key = key;
-        this.value = value;
+        value = buf;
+        valueOffset = offset;
+        valueLength = length;
     }
 
     public String getKey() {
         return key;
     }
 
+    // Returns a copy of the value
     public byte[] getValue() {
-        return value.clone();
+        byte[] copy = new byte[valueLength];
+        System.arraycopy(value, valueOffset, copy, 0, valueLength);
+        return copy;
+    }
+
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    // Returns a read-only view of the value, without copying it
+    public ByteBuffer getValueBuffer() {
+        return ByteBuffer.wrap(value, valueOffset, valueLength).slice().asReadOnlyBuffer();
+    }
+
+    public InputStream getValueStream() {
+        return new ByteArrayInputStream(value, valueOffset, valueLength);
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer src = getValueBuffer();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    int encodedLength() {
+        return FrameEncoder.kvHeaderLength(key, valueLength) + valueLength + 1;
+    }
+
+    void encodeTo(ByteBuffer buf) {
+        FrameEncoder.putKVHeader(buf, key, valueLength);
+        buf.put(value, valueOffset, valueLength);
+        buf.put((byte) '\n');
     }
 
     void writeToStream(OutputStream out) throws IOException {
-        String header = String.format("kv %s %d\n", key, value.length);
-        out.write(header.getBytes(CharEncoding.UTF_8));
-        out.write(value);
-        out.write('\n');
+        ByteBuffer buf = ByteBuffer.allocate(encodedLength());
+        encodeTo(buf);
+        out.write(buf.array(), 0, buf.position());
     }
 }
@@ -0,0 +1,9 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * Runs tasks so that those submitted with the same key run one at a time, in submission order. Tasks with
+ * different keys may run concurrently.
+ */
+interface KeyedExecutor {
+    void execute(int key, Runnable task);
+}
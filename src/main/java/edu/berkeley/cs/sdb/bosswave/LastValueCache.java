@@ -0,0 +1,114 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the latest result seen on each concrete URI, as delivered by subscriptions, so that queries for those
+ * URIs can be answered without a round trip to the agent. Entries older than the staleness bound are never
+ * served. The cache is bounded by the estimated memory its results retain, evicting the least recently used
+ * entries first.
+ */
+class LastValueCache {
+    // A rough allowance for the objects that make up one entry, beyond the bytes of its contents
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int ITEM_OVERHEAD = 32;
+
+    private static class Entry {
+        final BosswaveResult result;
+        final long receivedNanos;
+        final long size;
+
+        Entry(BosswaveResult result, long receivedNanos, long size) {
+            this.result = result;
+            this.receivedNanos = receivedNanos;
+            this.size = size;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxStalenessNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public LastValueCache(long maxBytes, long maxStalenessNanos) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        if (maxStalenessNanos < 0) {
+            throw new IllegalArgumentException("Staleness bound must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.maxStalenessNanos = maxStalenessNanos;
+        // Access order, so that iteration starts at the least recently used entry
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    public void put(BosswaveResult result, long nowNanos) {
+        String uri = result.getUri();
+        if (uri == null) {
+            return;
+        }
+        long size = estimateSize(result);
+        synchronized (this) {
+            Entry previous = entries.remove(uri);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            if (size > maxBytes) {
+                // Keeping it would evict everything else
+                return;
+            }
+            entries.put(uri, new Entry(result, nowNanos, size));
+            bytes += size;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().size;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * @return The latest result for a URI, or null if there is none recent enough
+     */
+    public synchronized BosswaveResult get(String uri, long nowNanos) {
+        Entry entry = entries.get(uri);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (nowNanos - entry.receivedNanos > maxStalenessNanos) {
+            // Nothing newer has arrived, and this will only get staler
+            entries.remove(uri);
+            bytes -= entry.size;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    public synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    static long estimateSize(BosswaveResult result) {
+        long size = ENTRY_OVERHEAD + 2L * result.getUri().length();
+        if (result.getFrom() != null) {
+            size += 2L * result.getFrom().length();
+        }
+        for (RoutingObject ro : result.getRoutingObjects()) {
+            size += ITEM_OVERHEAD + ro.getContentLength();
+        }
+        for (PayloadObject po : result.getPayloadObjects()) {
+            size += ITEM_OVERHEAD + po.getContentLength();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,39 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+// Collects the children reported for a list request and completes when the listing is finished
+class ListFuture extends CompletableFuture<List<String>> implements ResponseHandler, ListResultHandler,
+        TimeoutHandler {
+    private final List<String> children = new ArrayList<String>();
+
+    @Override
+    public void onResponseReceived(BosswaveResponse response) {
+        if (!response.getStatus().equals("okay")) {
+            completeExceptionally(new BosswaveException(response));
+        }
+    }
+
+    @Override
+    public void onResult(String child) {
+        synchronized (children) {
+            children.add(child);
+        }
+    }
+
+    @Override
+    public void finish() {
+        synchronized (children) {
+            complete(Collections.unmodifiableList(new ArrayList<String>(children)));
+        }
+    }
+
+    @Override
+    public void onTimeout() {
+        completeExceptionally(new TimeoutException(BosswaveClient.TIMEOUT_REASON));
+    }
+}
@@ -58,6 +58,45 @@ public class ListRequest {
         return routingObjects;
     }
 
+    // A request with the same options for a different URI
+    ListRequest withUri(String uri) {
+        return new ListRequest(uri, primaryAccessChain, getExpiry(), expiryDelta, elabLevel, autoChain,
+                               routingObjects);
+    }
+
+    // Requests are equal if the agent would answer them identically
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (o == null) {
+            return false;
+        } else if (!(o instanceof ListRequest)) {
+            return false;
+        } else {
+            ListRequest other = (ListRequest) o;
+            return equal(this.uri, other.uri) &&
+                   equal(this.primaryAccessChain, other.primaryAccessChain) &&
+                   equal(this.expiry, other.expiry) &&
+                   equal(this.expiryDelta, other.expiryDelta) &&
+                   this.elabLevel == other.elabLevel &&
+                   this.autoChain == other.autoChain &&
+                   this.routingObjects.equals(other.routingObjects);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = (uri == null ? 0 : uri.hashCode());
+        hash = 31 * hash + (primaryAccessChain == null ? 0 : primaryAccessChain.hashCode());
+        hash = 31 * hash + (expiryDelta == null ? 0 : expiryDelta.hashCode());
+        return 31 * hash + routingObjects.hashCode();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null ? b == null : a.equals(b));
+    }
+
     public static class Builder {
         private String uri;
         private String primaryAccessChain;
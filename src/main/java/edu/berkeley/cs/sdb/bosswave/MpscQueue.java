@@ -0,0 +1,78 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An intrusive, lock-free, multi-producer single-consumer queue.
+ *
+ * Elements carry their own link (they extend MpscQueue.Node), so offering an element never allocates. Any
+ * number of threads may call offer() concurrently; poll() and isEmpty() must only be called by one consumer
+ * thread. This is Dmitry Vyukov's intrusive MPSC node-based queue.
+ */
+class MpscQueue<E extends MpscQueue.Node> {
+    static class Node {
+        volatile Node next;
+    }
+
+    private final Node stub;
+    private final AtomicReference<Node> tail;
+    private Node head; // Only accessed by the consumer
+
+    public MpscQueue() {
+        stub = new Node();
+        head = stub;
+        tail = new AtomicReference<Node>(stub);
+    }
+
+    public void offer(E element) {
+        push(element);
+    }
+
+    /**
+     * Removes the element at the head of the queue.
+     * @return The element, or null if the queue is empty or an offer is still in progress
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        Node first = head;
+        Node next = first.next;
+        if (first == stub) {
+            if (next == null) {
+                return null;
+            }
+            head = next;
+            first = next;
+            next = next.next;
+        }
+        if (next != null) {
+            head = next;
+            first.next = null;
+            return (E) first;
+        }
+        if (first != tail.get()) {
+            // A producer has swapped the tail but not linked its node yet
+            return null;
+        }
+        push(stub);
+        next = first.next;
+        if (next != null) {
+            head = next;
+            first.next = null;
+            return (E) first;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if no element has been offered that has not been polled, including offers in progress.
+     */
+    public boolean isEmpty() {
+        return head == stub && tail.get() == stub;
+    }
+
+    private void push(Node node) {
+        node.next = null;
+        Node prev = tail.getAndSet(node);
+        prev.next = node;
+    }
+}
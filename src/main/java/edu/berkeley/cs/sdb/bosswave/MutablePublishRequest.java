@@ -0,0 +1,207 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A publish request that can be refilled and published any number of times, for high-rate publishers that
+ * shouldn't allocate on every message. BosswaveClient.publish copies everything it needs into a pooled encode
+ * buffer before it returns, so the request (and any arrays it refers to) may be changed as soon as publish
+ * returns.
+ *
+ * Publishing allocates nothing once the client's encode buffers have grown to fit the messages, provided no
+ * response handler is given (which would have to be tracked until the agent replies) and payloads are added with
+ * addPayloadObject(Type, byte[], int, int). Unlike PublishRequest, expiry can only be given as a delta, since an
+ * absolute expiry would have to be formatted as a date on every publish. Not thread safe.
+ */
+public class MutablePublishRequest {
+    private static final long NO_EXPIRY_DELTA = -1;
+    private static final int INITIAL_PAYLOAD_SLOTS = 4;
+
+    private String uri;
+    private boolean persist;
+    private long expiryDelta;
+    private boolean doVerify;
+    private String primaryAccessChain;
+    private ChainElaborationLevel elabLevel;
+    private boolean autoChain;
+    private final List<RoutingObject> routingObjects;
+    // Payload objects are held as either a PayloadObject or the parts of one, so that refilling doesn't allocate
+    private PayloadObject[] payloadObjects;
+    private PayloadObject.Type[] payloadTypes;
+    private byte[][] payloadContents;
+    private int[] payloadOffsets;
+    private int[] payloadLengths;
+    private int payloadCount;
+
+    public MutablePublishRequest(String uri) {
+        routingObjects = new ArrayList<RoutingObject>();
+        payloadObjects = new PayloadObject[INITIAL_PAYLOAD_SLOTS];
+        payloadTypes = new PayloadObject.Type[INITIAL_PAYLOAD_SLOTS];
+        payloadContents = new byte[INITIAL_PAYLOAD_SLOTS][];
+        payloadOffsets = new int[INITIAL_PAYLOAD_SLOTS];
+        payloadLengths = new int[INITIAL_PAYLOAD_SLOTS];
+        reset(uri);
+    }
+
+    /**
+     * Restores every option to its default, as for a new request, and removes all routing and payload objects.
+     */
+    public MutablePublishRequest reset(String uri) {
+        this.uri = uri;
+        persist = false;
+        expiryDelta = NO_EXPIRY_DELTA;
+        doVerify = false;
+        primaryAccessChain = null;
+        elabLevel = ChainElaborationLevel.PARTIAL;
+        autoChain = false;
+        routingObjects.clear();
+        clearPayloadObjects();
+        return this;
+    }
+
+    public MutablePublishRequest setUri(String uri) {
+        this.uri = uri;
+        return this;
+    }
+
+    public MutablePublishRequest setPersist(boolean persist) {
+        this.persist = persist;
+        return this;
+    }
+
+    public MutablePublishRequest setExpiryDelta(long delta) {
+        if (delta < 0) {
+            throw new IllegalArgumentException("Expiry delta must not be negative");
+        }
+        expiryDelta = delta;
+        return this;
+    }
+
+    public MutablePublishRequest clearExpiryDelta() {
+        expiryDelta = NO_EXPIRY_DELTA;
+        return this;
+    }
+
+    public MutablePublishRequest setDoVerify(boolean doVerify) {
+        this.doVerify = doVerify;
+        return this;
+    }
+
+    public MutablePublishRequest setPrimaryAccessChain(String pac) {
+        primaryAccessChain = pac;
+        return this;
+    }
+
+    public MutablePublishRequest setChainElaborationLevel(ChainElaborationLevel level) {
+        elabLevel = level;
+        return this;
+    }
+
+    public MutablePublishRequest setAutoChain(boolean autoChain) {
+        this.autoChain = autoChain;
+        return this;
+    }
+
+    public MutablePublishRequest addRoutingObject(RoutingObject ro) {
+        routingObjects.add(ro);
+        return this;
+    }
+
+    public MutablePublishRequest clearRoutingObjects() {
+        routingObjects.clear();
+        return this;
+    }
+
+    public MutablePublishRequest addPayloadObject(PayloadObject po) {
+        int slot = nextPayloadSlot();
+        payloadObjects[slot] = po;
+        return this;
+    }
+
+    /**
+     * Adds a payload object whose content is part of an array, without copying it. The array is read when the
+     * request is published, so it may be refilled for the next message once publish returns.
+     */
+    public MutablePublishRequest addPayloadObject(PayloadObject.Type type, byte[] content, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > content.length) {
+            throw new IndexOutOfBoundsException("Payload range is outside the array");
+        }
+        int slot = nextPayloadSlot();
+        payloadTypes[slot] = type;
+        payloadContents[slot] = content;
+        payloadOffsets[slot] = offset;
+        payloadLengths[slot] = length;
+        return this;
+    }
+
+    public MutablePublishRequest clearPayloadObjects() {
+        for (int i = 0; i < payloadCount; i++) {
+            payloadObjects[i] = null;
+            payloadTypes[i] = null;
+            payloadContents[i] = null;
+        }
+        payloadCount = 0;
+        return this;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public boolean isPersist() {
+        return persist;
+    }
+
+    boolean hasExpiryDelta() {
+        return expiryDelta != NO_EXPIRY_DELTA;
+    }
+
+    long getExpiryDeltaMillis() {
+        return expiryDelta;
+    }
+
+    public boolean doVerify() {
+        return doVerify;
+    }
+
+    public String getPrimaryAccessChain() {
+        return primaryAccessChain;
+    }
+
+    public ChainElaborationLevel getChainElaborationLevel() {
+        return elabLevel;
+    }
+
+    public boolean autoChain() {
+        return autoChain;
+    }
+
+    List<RoutingObject> getRoutingObjects() {
+        return routingObjects;
+    }
+
+    // Writes the payload objects, in the order they were added
+    void encodePayloadObjects(FrameEncoder encoder) {
+        for (int i = 0; i < payloadCount; i++) {
+            if (payloadObjects[i] != null) {
+                encoder.addPayloadObject(payloadObjects[i]);
+            } else {
+                encoder.addPayloadObject(payloadTypes[i], payloadContents[i], payloadOffsets[i], payloadLengths[i]);
+            }
+        }
+    }
+
+    private int nextPayloadSlot() {
+        if (payloadCount == payloadObjects.length) {
+            int capacity = payloadCount * 2;
+            payloadObjects = Arrays.copyOf(payloadObjects, capacity);
+            payloadTypes = Arrays.copyOf(payloadTypes, capacity);
+            payloadContents = Arrays.copyOf(payloadContents, capacity);
+            payloadOffsets = Arrays.copyOf(payloadOffsets, capacity);
+            payloadLengths = Arrays.copyOf(payloadLengths, capacity);
+        }
+        return payloadCount++;
+    }
+}
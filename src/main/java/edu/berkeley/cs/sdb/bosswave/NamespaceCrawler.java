@@ -0,0 +1,156 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Discovers the namespace beneath a URI by listing it breadth-first: every URI on one level of the tree is
+ * listed, with a bounded number of LIST requests in flight, before the children they report are listed in turn.
+ * A crawl therefore takes about one round trip per level. URIs reported more than once are listed only once.
+ *
+ * Finished trees are cached for a time to live, keyed by the root's ListRequest, and callers asking for a tree
+ * that is still being crawled share that crawl. A crawl that fails is not cached.
+ */
+class NamespaceCrawler {
+    static final long DEFAULT_TTL_MS = 30000;
+
+    private static class CachedCrawl {
+        final CompletableFuture<NamespaceTree> future;
+        volatile long completedAtNanos;
+
+        CachedCrawl(CompletableFuture<NamespaceTree> future) {
+            this.future = future;
+        }
+    }
+
+    private final BosswaveClient client;
+    private final Map<ListRequest, CachedCrawl> crawls;
+    private final Object crawlsLock;
+    private volatile long ttlNanos;
+
+    public NamespaceCrawler(BosswaveClient client) {
+        this.client = client;
+        crawls = new HashMap<ListRequest, CachedCrawl>();
+        crawlsLock = new Object();
+        ttlNanos = DEFAULT_TTL_MS * 1000000L;
+    }
+
+    // A time to live of 0 disables caching
+    public void setTtlNanos(long ttlNanos) {
+        if (ttlNanos < 0) {
+            throw new IllegalArgumentException("Time to live must not be negative");
+        }
+        this.ttlNanos = ttlNanos;
+        if (ttlNanos == 0) {
+            invalidate();
+        }
+    }
+
+    public void invalidate() {
+        synchronized (crawlsLock) {
+            crawls.clear();
+        }
+    }
+
+    public CompletableFuture<NamespaceTree> crawl(final ListRequest root, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("The number of requests in flight must be positive");
+        }
+        long ttl = ttlNanos;
+        if (ttl == 0) {
+            return new Crawl(root, maxInFlight).run();
+        }
+
+        final CachedCrawl crawl;
+        synchronized (crawlsLock) {
+            CachedCrawl cached = crawls.get(root);
+            if (cached != null && (!cached.future.isDone() ||
+                    (!cached.future.isCompletedExceptionally() && System.nanoTime() - cached.completedAtNanos < ttl))) {
+                return cached.future;
+            }
+            crawl = new CachedCrawl(new CompletableFuture<NamespaceTree>());
+            crawls.put(root, crawl);
+        }
+        new Crawl(root, maxInFlight).run().whenComplete(new BiConsumer<NamespaceTree, Throwable>() {
+            @Override
+            public void accept(NamespaceTree tree, Throwable t) {
+                crawl.completedAtNanos = System.nanoTime();
+                if (t != null) {
+                    synchronized (crawlsLock) {
+                        if (crawls.get(root) == crawl) {
+                            crawls.remove(root);
+                        }
+                    }
+                    crawl.future.completeExceptionally(t);
+                } else {
+                    crawl.future.complete(tree);
+                }
+            }
+        });
+        return crawl.future;
+    }
+
+    // One breadth-first traversal
+    private class Crawl {
+        private final ListRequest root;
+        private final int maxInFlight;
+        // Every URI discovered so far, mapped to its children once it has been listed
+        private final Map<String, List<String>> children;
+
+        Crawl(ListRequest root, int maxInFlight) {
+            this.root = root;
+            this.maxInFlight = maxInFlight;
+            children = new LinkedHashMap<String, List<String>>();
+        }
+
+        CompletableFuture<NamespaceTree> run() {
+            children.put(root.getUri(), Collections.<String>emptyList());
+            return expand(Collections.singletonList(root.getUri())).thenApply(new Function<Void, NamespaceTree>() {
+                @Override
+                public NamespaceTree apply(Void v) {
+                    return new NamespaceTree(root.getUri(), children, System.currentTimeMillis());
+                }
+            });
+        }
+
+        // Lists every URI on one level, then moves on to the next
+        private CompletableFuture<Void> expand(final List<String> level) {
+            RequestPipeline<String, List<String>> pipeline = new RequestPipeline<String, List<String>>(level,
+                    maxInFlight, new RequestPipeline.Stage<String, List<String>>() {
+                        @Override
+                        public CompletableFuture<List<String>> start(String uri) {
+                            return client.listAsync(root.withUri(uri));
+                        }
+                    }, null);
+            return pipeline.run().thenCompose(new Function<List<List<String>>, CompletableFuture<Void>>() {
+                @Override
+                public CompletableFuture<Void> apply(List<List<String>> listed) {
+                    List<String> next = new ArrayList<String>();
+                    for (int i = 0; i < level.size(); i++) {
+                        Set<String> distinct = new LinkedHashSet<String>(listed.get(i));
+                        children.put(level.get(i), Collections.unmodifiableList(new ArrayList<String>(distinct)));
+                        for (String child : distinct) {
+                            if (!children.containsKey(child)) {
+                                children.put(child, Collections.<String>emptyList());
+                                next.add(child);
+                            }
+                        }
+                    }
+                    if (next.isEmpty()) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return expand(next);
+                }
+            });
+        }
+    }
+}
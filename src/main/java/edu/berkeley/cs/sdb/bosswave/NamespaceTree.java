@@ -0,0 +1,51 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A snapshot of the namespace beneath a URI, as discovered by BosswaveClient.crawl.
+ */
+public class NamespaceTree {
+    private final String rootUri;
+    private final Map<String, List<String>> children;
+    private final long crawledAt;
+
+    NamespaceTree(String rootUri, Map<String, List<String>> children, long crawledAt) {
+        this.rootUri = rootUri;
+        this.children = Collections.unmodifiableMap(children);
+        this.crawledAt = crawledAt;
+    }
+
+    public String getRootUri() {
+        return rootUri;
+    }
+
+    /**
+     * @return The children the agent listed for a URI, which is empty for a leaf or a URI outside the tree
+     */
+    public List<String> getChildren(String uri) {
+        List<String> listed = children.get(uri);
+        return (listed == null ? Collections.<String>emptyList() : listed);
+    }
+
+    public boolean contains(String uri) {
+        return children.containsKey(uri);
+    }
+
+    // Every URI in the tree, including the root, in breadth-first order
+    public Set<String> getUris() {
+        return children.keySet();
+    }
+
+    public int size() {
+        return children.size();
+    }
+
+    // The time the crawl that produced this tree finished, in milliseconds since the epoch
+    public long getCrawledAt() {
+        return crawledAt;
+    }
+}
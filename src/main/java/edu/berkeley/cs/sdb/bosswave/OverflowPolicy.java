@@ -0,0 +1,16 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * What a ResultQueue does with a result that arrives while it is full.
+ */
+public enum OverflowPolicy {
+    // Wait for the consumer to make room, holding up delivery on the dispatching thread
+    BLOCK,
+    // Discard the result at the head of the queue to make room
+    DROP_OLDEST,
+    // Discard the result that just arrived
+    DROP_NEWEST,
+    // Keep only the latest result for each URI, in place of any older one still queued; a result for a new URI
+    // that arrives while the queue is full displaces the oldest one
+    CONFLATE_BY_URI
+}
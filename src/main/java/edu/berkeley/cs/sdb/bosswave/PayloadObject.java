@@ -1,29 +1,77 @@
 package edu.berkeley.cs.sdb.bosswave;
 
-import org.apache.commons.lang3.CharEncoding;
-
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 public class PayloadObject {
     private final Type type;
     private final byte[] content;
+    private final int contentOffset;
+    private final int contentLength;
 
     public PayloadObject(Type type, byte[] content) {
+        this(type, content, 0, content.length);
+    }
+
+    // Creates a payload object whose content is a view of part of a larger array
+    PayloadObject(Type type, byte[] buf, int offset, int length) {
         this.type = type;
-        this.content = content;
+        content = buf;
+        contentOffset = offset;
+        contentLength = length;
+    }
+
+    public Type getType() {
+        return type;
     }
 
+    // Returns a copy of the content
     public byte[] getContent() {
-        return content.clone();
+        byte[] copy = new byte[contentLength];
+        System.arraycopy(content, contentOffset, copy, 0, contentLength);
+        return copy;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    // Returns a read-only view of the content, without copying it
+    public ByteBuffer getContentBuffer() {
+        return ByteBuffer.wrap(content, contentOffset, contentLength).slice().asReadOnlyBuffer();
+    }
+
+    public InputStream getContentStream() {
+        return new ByteArrayInputStream(content, contentOffset, contentLength);
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer src = getContentBuffer();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    int encodedLength() {
+        return FrameEncoder.poHeaderLength(type, contentLength) + contentLength + 1;
+    }
+
+    void encodeTo(ByteBuffer buf) {
+        FrameEncoder.putPOHeader(buf, type, contentLength);
+        buf.put(content, contentOffset, contentLength);
+        buf.put((byte) '\n');
     }
 
     void writeToStream(OutputStream out) throws IOException {
-        String header = String.format("po %s %d\n", type, content.length);
-        out.write(header.getBytes(CharEncoding.UTF_8));
-        out.write(content);
-        out.write('\n');
+        ByteBuffer buf = ByteBuffer.allocate(encodedLength());
+        encodeTo(buf);
+        out.write(buf.array(), 0, buf.position());
     }
 
     @Override
@@ -36,7 +84,9 @@ public class PayloadObject {
             return false;
         } else {
             PayloadObject other = (PayloadObject) o;
-            return this.type.equals(other.type) && Arrays.equals(this.content, other.content);
+            return this.type.equals(other.type) &&
+                   ByteBuffer.wrap(this.content, this.contentOffset, this.contentLength).equals(
+                           ByteBuffer.wrap(other.content, other.contentOffset, other.contentLength));
         }
     }
 
@@ -62,67 +112,100 @@ public class PayloadObject {
             }
         }
 
-        private static byte[] parseOctet(String str) {
-            String[] octetTokens = str.split("\\.");
-            if (octetTokens.length != 4) {
-                throw new IllegalArgumentException("Octet must contain four elements");
-            }
+        private static byte[] parseOctet(byte[] buf, int start, int end) {
             byte[] octetBytes = new byte[4];
+            int elementStart = start;
             for (int i = 0; i < 4; i++) {
-                try {
-                    octetBytes[i] = Byte.parseByte(octetTokens[i]);
-                } catch (NumberFormatException e) {
-                    throw new IllegalArgumentException("Invalid octet element: " + octetTokens[i], e);
+                int elementEnd = (i < 3 ? FrameDecoder.indexOf(buf, elementStart, end, (byte) '.') : end);
+                if (elementEnd < 0) {
+                    throw new IllegalArgumentException("Octet must contain four elements");
                 }
-                if (octetBytes[i] < 0) {
-                    throw new IllegalArgumentException("Negative octet element: " + octetTokens[i]);
+                long element = FrameDecoder.parseDecimal(buf, elementStart, elementEnd);
+                if (element == Long.MIN_VALUE || element > Byte.MAX_VALUE) {
+                    throw new IllegalArgumentException("Invalid octet element: " +
+                            new String(buf, elementStart, elementEnd - elementStart, StandardCharsets.US_ASCII));
+                } else if (element < 0) {
+                    throw new IllegalArgumentException("Negative octet element: " +
+                            new String(buf, elementStart, elementEnd - elementStart, StandardCharsets.US_ASCII));
                 }
+                octetBytes[i] = (byte) element;
+                elementStart = elementEnd + 1;
             }
 
             return octetBytes;
         }
 
         static Type fromString(String str) {
-            if (str.startsWith(":")) {
-                int poNum;
-                try {
-                    poNum = Integer.parseInt(str.substring(1));
-                } catch (NumberFormatException e) {
-                    throw new IllegalArgumentException("Payload object type contains invalid number", e);
+            byte[] bytes = str.getBytes(StandardCharsets.US_ASCII);
+            return fromBytes(bytes, 0, bytes.length);
+        }
+
+        // Parses a payload object type directly from its ASCII representation, e.g. "1.2.3.4:16909060"
+        static Type fromBytes(byte[] buf, int offset, int length) {
+            int end = offset + length;
+            int colon = FrameDecoder.indexOf(buf, offset, end, (byte) ':');
+            if (colon < 0 || FrameDecoder.indexOf(buf, colon + 1, end, (byte) ':') >= 0) {
+                throw new IllegalArgumentException("Malformed payload object type");
+            }
+
+            if (colon == offset) {
+                long poNum = FrameDecoder.parseDecimal(buf, colon + 1, end);
+                if (poNum == Long.MIN_VALUE) {
+                    throw new IllegalArgumentException("Payload object type contains invalid number");
                 }
                 if (poNum < 0 || poNum > 99) {
                     throw new IllegalArgumentException("Payload object type number must contain 1 or 2 digits");
                 }
 
-                return new Type(poNum);
-            } else if (str.endsWith(":")) {
-                String octetStr = str.substring(0, str.length() - 1);
-                byte[] octet;
-                try {
-                    octet = parseOctet(octetStr);
-                } catch (IllegalArgumentException e) {
-                    throw new IllegalArgumentException("Payload object type contains invalid octet", e);
-                }
+                return new Type((int) poNum);
+            }
 
+            byte[] octet;
+            try {
+                octet = parseOctet(buf, offset, colon);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Payload object type contains invalid octet", e);
+            }
+            if (colon == end - 1) {
                 return new Type(octet);
-            } else {
-                String[] poTypeTokens = str.split(":");
-                if (poTypeTokens.length != 2) {
-                    throw new IllegalArgumentException("Malformed payload object type");
+            }
+
+            long number = FrameDecoder.parseDecimal(buf, colon + 1, end);
+            if (number == Long.MIN_VALUE || number > Integer.MAX_VALUE || number < Integer.MIN_VALUE) {
+                throw new IllegalArgumentException("Payload object type contains invalid number");
+            }
+            return new Type(octet, (int) number);
+        }
+
+        // Length of the ASCII representation written by writeTo, identical to toString().length()
+        int encodedLength() {
+            int length = 0;
+            if (octet != null) {
+                for (byte b : octet) {
+                    length += FrameEncoder.decimalLength(b);
                 }
-                byte[] octet;
-                try {
-                    octet = parseOctet(poTypeTokens[0]);
-                } catch (IllegalArgumentException e) {
-                    throw new IllegalArgumentException("Payload object type contains invalid octet", e);
+                length += octet.length; // '.' separators and the trailing ':'
+                if (number > 0) {
+                    length += FrameEncoder.decimalLength(number);
                 }
-                int number;
-                try {
-                    number = Integer.parseInt(poTypeTokens[1]);
-                } catch (NumberFormatException e) {
-                    throw new IllegalArgumentException("Payload object type contains invalid number", e);
+            } else {
+                length += 1 + FrameEncoder.decimalLength(number);
+            }
+            return length;
+        }
+
+        void writeTo(ByteBuffer buf) {
+            if (octet != null) {
+                for (int i = 0; i < octet.length; i++) {
+                    FrameEncoder.putDecimal(buf, octet[i]);
+                    buf.put((byte) (i < octet.length - 1 ? '.' : ':'));
                 }
-                return new Type(octet, number);
+                if (number > 0) {
+                    FrameEncoder.putDecimal(buf, number);
+                }
+            } else {
+                buf.put((byte) ':');
+                FrameEncoder.putDecimal(buf, number);
             }
         }
 
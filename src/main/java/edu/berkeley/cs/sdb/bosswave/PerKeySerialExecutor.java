@@ -0,0 +1,100 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * A KeyedExecutor that gives every key its own serial queue, so a task that blocks only ever delays later tasks
+ * with the same key. A key's queue exists only while it has tasks pending; each time a queue becomes active it
+ * is run by a fresh task on the underlying Executor. This suits an executor that starts a cheap thread per task,
+ * such as a virtual-thread-per-task executor.
+ */
+class PerKeySerialExecutor implements KeyedExecutor {
+    private final Executor executor;
+    private final ConcurrentMap<Integer, Queue> queues;
+
+    public PerKeySerialExecutor(Executor executor) {
+        this.executor = executor;
+        queues = new ConcurrentHashMap<Integer, Queue>();
+    }
+
+    @Override
+    public void execute(int key, Runnable task) {
+        while (true) {
+            Queue queue = queues.get(key);
+            if (queue == null) {
+                queue = new Queue(key);
+                Queue existing = queues.putIfAbsent(key, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+            if (queue.offer(task)) {
+                return;
+            }
+            // The queue drained and retired while we were looking it up; install a new one
+        }
+    }
+
+    // The number of keys with pending or running tasks
+    int activeKeys() {
+        return queues.size();
+    }
+
+    private class Queue implements Runnable {
+        private final int key;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean scheduled;
+        private boolean retired;
+
+        Queue(int key) {
+            this.key = key;
+        }
+
+        boolean offer(Runnable task) {
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                tasks.add(task);
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    scheduled = false;
+                }
+                throw e;
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        retired = true;
+                        queues.remove(key, this);
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // A failing handler must not stall the rest of its key's tasks
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A publish request encoded ahead of time by BosswaveClient.prepare(). Each send copies the encoded request,
+ * fills in a fresh sequence number and appends its payload objects after any the request itself carried.
+ * Safe to share between threads.
+ */
+public class PreparedPublish {
+    private final BosswaveClient client;
+    private final byte[] template;
+
+    PreparedPublish(BosswaveClient client, byte[] template) {
+        this.client = client;
+        this.template = template;
+    }
+
+    public void send(List<PayloadObject> payloadObjects, ResponseHandler handler) throws IOException {
+        client.sendPrepared(template, payloadObjects, null, null, 0, 0, handler);
+    }
+
+    public void send(PayloadObject payloadObject, ResponseHandler handler) throws IOException {
+        client.sendPrepared(template, Collections.singletonList(payloadObject), null, null, 0, 0, handler);
+    }
+
+    /**
+     * Sends the request with one payload object taken from a slice of an array, without allocating.
+     */
+    public void send(PayloadObject.Type type, byte[] content, int offset, int length, ResponseHandler handler)
+            throws IOException {
+        client.sendPrepared(template, null, type, content, offset, length, handler);
+    }
+}
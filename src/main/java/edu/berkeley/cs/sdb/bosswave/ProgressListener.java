@@ -0,0 +1,9 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+public interface ProgressListener {
+    /**
+     * Called each time one of the operations in a bulk request completes successfully. Calls may come from
+     * several threads at once, so completed may not increase from one call to the next.
+     */
+    void onProgress(int completed, int total);
+}
@@ -0,0 +1,52 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+// Collects every result of a query and completes once the agent reports that the query is finished
+class QueryFuture extends CompletableFuture<List<BosswaveResult>> implements ResponseHandler, ResultStreamHandler,
+        TimeoutHandler {
+    private final List<BosswaveResult> results = new ArrayList<BosswaveResult>();
+    // Also told of each result as it arrives, if not null
+    private final ResultHandler streamHandler;
+
+    QueryFuture() {
+        this(null);
+    }
+
+    QueryFuture(ResultHandler streamHandler) {
+        this.streamHandler = streamHandler;
+    }
+
+    @Override
+    public void onResponseReceived(BosswaveResponse response) {
+        if (!response.getStatus().equals("okay")) {
+            completeExceptionally(new BosswaveException(response));
+        }
+    }
+
+    @Override
+    public void onResultReceived(BosswaveResult result) {
+        synchronized (results) {
+            results.add(result);
+        }
+        if (streamHandler != null) {
+            streamHandler.onResultReceived(result);
+        }
+    }
+
+    @Override
+    public void onFinished() {
+        synchronized (results) {
+            complete(Collections.unmodifiableList(new ArrayList<BosswaveResult>(results)));
+        }
+    }
+
+    @Override
+    public void onTimeout() {
+        completeExceptionally(new TimeoutException(BosswaveClient.TIMEOUT_REASON));
+    }
+}
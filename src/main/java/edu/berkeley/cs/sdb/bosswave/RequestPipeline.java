@@ -0,0 +1,119 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs one asynchronous request per item with a bounded number in flight, starting the next as each one
+ * completes, so that a batch takes about as long as its slowest requests rather than the sum of all of them.
+ * The results are collected in the order of the items. The first request to fail fails the whole batch and no
+ * further requests are started; cancelling the batch's future also stops it.
+ */
+class RequestPipeline<T, R> {
+    interface Stage<T, R> {
+        // Must not block; failures may be thrown or reported through the future
+        CompletableFuture<R> start(T item) throws Exception;
+    }
+
+    interface Listener<R> {
+        // Called as each request completes successfully, in no particular order
+        void onCompleted(int index, R result);
+    }
+
+    private final List<T> items;
+    private final Stage<T, R> stage;
+    private final Listener<R> listener;
+    private final int maxInFlight;
+    private final Object[] results;
+    private final CompletableFuture<List<R>> future;
+    private int next;
+    private int inFlight;
+    private int completed;
+    private boolean launching;
+
+    public RequestPipeline(List<T> items, int maxInFlight, Stage<T, R> stage, Listener<R> listener) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("The number of requests in flight must be positive");
+        }
+        this.items = items;
+        this.stage = stage;
+        this.listener = listener;
+        this.maxInFlight = maxInFlight;
+        results = new Object[items.size()];
+        future = new CompletableFuture<List<R>>();
+    }
+
+    public CompletableFuture<List<R>> run() {
+        if (items.isEmpty()) {
+            future.complete(Collections.<R>emptyList());
+        } else {
+            launch();
+        }
+        return future;
+    }
+
+    // Starts requests until the window is full. Only one thread launches at a time, so that requests which
+    // complete immediately don't recurse through here once per item
+    private void launch() {
+        synchronized (this) {
+            if (launching) {
+                return;
+            }
+            launching = true;
+        }
+        while (true) {
+            final int index;
+            synchronized (this) {
+                if (future.isDone() || next == items.size() || inFlight >= maxInFlight) {
+                    launching = false;
+                    return;
+                }
+                index = next++;
+                inFlight++;
+            }
+
+            CompletableFuture<R> request;
+            try {
+                request = stage.start(items.get(index));
+            } catch (Exception e) {
+                request = new CompletableFuture<R>();
+                request.completeExceptionally(e);
+            }
+            request.whenComplete(new BiConsumer<R, Throwable>() {
+                @Override
+                public void accept(R result, Throwable t) {
+                    completed(index, result, t);
+                }
+            });
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void completed(int index, R result, Throwable t) {
+        if (t != null) {
+            future.completeExceptionally(t);
+            return;
+        }
+        boolean all;
+        synchronized (this) {
+            results[index] = result;
+            inFlight--;
+            all = (++completed == items.size());
+        }
+        if (listener != null) {
+            listener.onCompleted(index, result);
+        }
+        if (all) {
+            List<R> ordered = new ArrayList<R>(results.length);
+            for (int i = 0; i < results.length; i++) {
+                ordered.add((R) results[i]);
+            }
+            future.complete(Collections.unmodifiableList(ordered));
+        } else {
+            launch();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+// Completes with an "okay" response, or exceptionally with a BosswaveException for any other status
+class ResponseFuture extends CompletableFuture<BosswaveResponse> implements ResponseHandler, TimeoutHandler {
+    @Override
+    public void onResponseReceived(BosswaveResponse response) {
+        if (response.getStatus().equals("okay")) {
+            complete(response);
+        } else {
+            completeExceptionally(new BosswaveException(response));
+        }
+    }
+
+    @Override
+    public void onTimeout() {
+        completeExceptionally(new TimeoutException(BosswaveClient.TIMEOUT_REASON));
+    }
+}
@@ -0,0 +1,92 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the results of a subscription into batches for a BatchResultHandler.
+ *
+ * Results are added on the subscription's dispatch thread. A batch is handed over once it reaches its maximum
+ * size or age, and otherwise when the listener has handled everything decoded from one socket read and runs
+ * the flush task, which it dispatches after the results so that it is ordered behind them. The age cap is
+ * enforced by a timer armed when a batch receives its first result, so it holds even if no further result
+ * arrives; the timer's flush may run on another thread, so batches are guarded by the batcher's lock.
+ */
+class ResultBatcher implements ResultHandler {
+    private final BosswaveClient client;
+    private final BatchResultHandler handler;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final ArrayList<BosswaveResult> batch;
+    private final List<BosswaveResult> batchView;
+    private long batchStart;
+    // Counts the batches handed over, so that a timer armed for an earlier batch doesn't flush a later one early
+    private long batchNumber;
+    private HashedWheelTimer.Timeout deadline;
+
+    final Runnable flushTask;
+    // Only accessed by the listener thread
+    boolean flushScheduled;
+
+    /**
+     * @param client The client whose timer enforces the age cap, or null to only check a batch's age as results
+     *               are added
+     */
+    public ResultBatcher(BosswaveClient client, BatchResultHandler handler, int maxBatchSize,
+                         long maxBatchDelayMillis) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.client = client;
+        this.handler = handler;
+        this.maxBatchSize = maxBatchSize;
+        maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+        batch = new ArrayList<BosswaveResult>(Math.min(maxBatchSize, 1024));
+        batchView = Collections.unmodifiableList(batch);
+        flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void onResultReceived(BosswaveResult result) {
+        if (batch.isEmpty()) {
+            batchStart = System.nanoTime();
+            if (client != null && maxBatchDelayNanos > 0) {
+                deadline = client.scheduleBatchFlush(this, batchNumber, maxBatchDelayNanos);
+            }
+        }
+        batch.add(result);
+        if (batch.size() >= maxBatchSize || System.nanoTime() - batchStart >= maxBatchDelayNanos) {
+            flush();
+        }
+    }
+
+    synchronized void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (deadline != null) {
+            deadline.cancel();
+            deadline = null;
+        }
+        batchNumber++;
+        try {
+            handler.onResultsReceived(batchView);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    // Called once the batch with the given number has reached its maximum age
+    synchronized void flushExpired(long number) {
+        if (number == batchNumber) {
+            flush();
+        }
+    }
+}
@@ -1,5 +1,11 @@
 package edu.berkeley.cs.sdb.bosswave;
 
+/**
+ * Receives the results of a request. The results of a query end with a terminating result, which has no URI,
+ * sender, routing objects or payload objects, and whose "finished" value is "true"; this holds whether the
+ * query was answered by the agent or from the last-value cache. ResultStreamHandlers are told of the end through
+ * onFinished instead.
+ */
 public interface ResultHandler {
     void onResultReceived(BosswaveResult result);
 }
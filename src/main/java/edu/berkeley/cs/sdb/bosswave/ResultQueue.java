@@ -0,0 +1,167 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of results that consumers poll on their own schedule. Pass it as the ResultHandler of a
+ * subscription; what happens to results that arrive while it is full is chosen by its OverflowPolicy.
+ */
+public class ResultQueue implements ResultHandler {
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // Results for every policy except CONFLATE_BY_URI
+    private final ArrayDeque<BosswaveResult> queue;
+    // For CONFLATE_BY_URI, the latest result per URI; replacing a value keeps its place in the queue
+    private final LinkedHashMap<String, BosswaveResult> latestByUri;
+    private long droppedCount;
+
+    public ResultQueue(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        if (policy == OverflowPolicy.CONFLATE_BY_URI) {
+            queue = null;
+            latestByUri = new LinkedHashMap<String, BosswaveResult>();
+        } else {
+            queue = new ArrayDeque<BosswaveResult>();
+            latestByUri = null;
+        }
+    }
+
+    @Override
+    public void onResultReceived(BosswaveResult result) {
+        synchronized (this) {
+            switch (policy) {
+                case BLOCK:
+                    while (queue.size() >= capacity) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            droppedCount++;
+                            return;
+                        }
+                    }
+                    queue.add(result);
+                    break;
+
+                case DROP_OLDEST:
+                    if (queue.size() >= capacity) {
+                        queue.poll();
+                        droppedCount++;
+                    }
+                    queue.add(result);
+                    break;
+
+                case DROP_NEWEST:
+                    if (queue.size() >= capacity) {
+                        droppedCount++;
+                        return;
+                    }
+                    queue.add(result);
+                    break;
+
+                case CONFLATE_BY_URI:
+                    String uri = result.getUri();
+                    if (latestByUri.containsKey(uri)) {
+                        droppedCount++;
+                    } else if (latestByUri.size() >= capacity) {
+                        removeFirst();
+                        droppedCount++;
+                    }
+                    latestByUri.put(uri, result);
+                    break;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return The result at the head of the queue, or null if the queue is empty
+     */
+    public synchronized BosswaveResult poll() {
+        BosswaveResult result = removeFirst();
+        if (result != null) {
+            notifyAll();
+        }
+        return result;
+    }
+
+    /**
+     * Waits up to the given time for a result.
+     * @return The result at the head of the queue, or null if none arrived in time
+     */
+    public synchronized BosswaveResult poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (size() == 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return poll();
+    }
+
+    // Waits for a result and removes it from the queue
+    public synchronized BosswaveResult take() throws InterruptedException {
+        while (size() == 0) {
+            wait();
+        }
+        return poll();
+    }
+
+    /**
+     * Moves every queued result into the given collection, in queue order.
+     * @return The number of results moved
+     */
+    public synchronized int drainTo(Collection<? super BosswaveResult> results) {
+        int count = 0;
+        BosswaveResult result;
+        while ((result = removeFirst()) != null) {
+            results.add(result);
+            count++;
+        }
+        if (count > 0) {
+            notifyAll();
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return (queue != null ? queue.size() : latestByUri.size());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    // The number of results discarded because the queue was full, or superseded by a newer result for their URI
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private BosswaveResult removeFirst() {
+        if (queue != null) {
+            return queue.poll();
+        }
+        Iterator<Map.Entry<String, BosswaveResult>> it = latestByUri.entrySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        BosswaveResult result = it.next().getValue();
+        it.remove();
+        return result;
+    }
+}
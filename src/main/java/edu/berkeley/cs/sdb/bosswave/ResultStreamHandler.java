@@ -0,0 +1,9 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * A ResultHandler that is told when the agent has sent the final result for a request.
+ * Plain ResultHandlers instead receive the terminating frame as an empty result, as they always have.
+ */
+interface ResultStreamHandler extends ResultHandler {
+    void onFinished();
+}
@@ -1,28 +1,78 @@
 package edu.berkeley.cs.sdb.bosswave;
 
-import org.apache.commons.lang3.CharEncoding;
-
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 public class RoutingObject {
     private final int routingObjNum;
     private final byte[] content;
+    private final int contentOffset;
+    private final int contentLength;
 
     public RoutingObject(int routingObjNum, byte[] content) {
+        this(routingObjNum, content, 0, content.length);
+    }
+
+    // Creates a routing object whose content is a view of part of a larger array
+    RoutingObject(int routingObjNum, byte[] buf, int offset, int length) {
         if (routingObjNum < 0 || routingObjNum > 255) {
             throw new IllegalArgumentException("Routing object number must be between 0 and 255");
         }
         this.routingObjNum = routingObjNum;
-        this.content = content;
+        content = buf;
+        contentOffset = offset;
+        contentLength = length;
+    }
+
+    public int getRoutingObjectNumber() {
+        return routingObjNum;
+    }
+
+    // Returns a copy of the content
+    public byte[] getContent() {
+        byte[] copy = new byte[contentLength];
+        System.arraycopy(content, contentOffset, copy, 0, contentLength);
+        return copy;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    // Returns a read-only view of the content, without copying it
+    public ByteBuffer getContentBuffer() {
+        return ByteBuffer.wrap(content, contentOffset, contentLength).slice().asReadOnlyBuffer();
+    }
+
+    public InputStream getContentStream() {
+        return new ByteArrayInputStream(content, contentOffset, contentLength);
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer src = getContentBuffer();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    int encodedLength() {
+        return FrameEncoder.roHeaderLength(routingObjNum, contentLength) + contentLength + 1;
+    }
+
+    void encodeTo(ByteBuffer buf) {
+        FrameEncoder.putROHeader(buf, routingObjNum, contentLength);
+        buf.put(content, contentOffset, contentLength);
+        buf.put((byte) '\n');
     }
 
     void writeToStream(OutputStream out) throws IOException {
-        String header = String.format("ro %d %d\n", routingObjNum, content.length);
-        out.write(header.getBytes(CharEncoding.UTF_8));
-        out.write(content);
-        out.write('\n');
+        ByteBuffer buf = ByteBuffer.allocate(encodedLength());
+        encodeTo(buf);
+        out.write(buf.array(), 0, buf.position());
     }
 
     @Override
@@ -36,7 +86,13 @@ public class RoutingObject {
         } else {
             RoutingObject other = (RoutingObject) o;
             return this.routingObjNum == other.routingObjNum &&
-                   Arrays.equals(this.content, other.content);
+                   ByteBuffer.wrap(this.content, this.contentOffset, this.contentLength).equals(
+                           ByteBuffer.wrap(other.content, other.contentOffset, other.contentLength));
         }
     }
+
+    @Override
+    public int hashCode() {
+        return 31 * routingObjNum + ByteBuffer.wrap(content, contentOffset, contentLength).hashCode();
+    }
 }
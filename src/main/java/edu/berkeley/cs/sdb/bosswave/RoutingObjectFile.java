@@ -0,0 +1,91 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+
+/**
+ * Reads routing objects, such as DOTs, chains and entities, from the files the Bosswave tools save them in. The
+ * first byte of such a file is the routing object's number, and the rest is its content.
+ */
+class RoutingObjectFile {
+    // Larger files are memory-mapped and copied out in one go rather than read through the channel
+    static final int MAP_THRESHOLD = 64 * 1024;
+
+    static RoutingObject read(File f) throws IOException {
+        return read(f, null);
+    }
+
+    /**
+     * Reads a routing object file, if it holds one of the given types. Only the first byte of a file holding some
+     * other type is read.
+     * @param types The routing object numbers to accept, or null to accept any
+     * @return The routing object, or null if the file holds some other type
+     */
+    static RoutingObject read(File f, Set<Integer> types) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if (length < 1 || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a routing object file: " + f);
+            }
+            ByteBuffer typeBuffer = ByteBuffer.allocate(1);
+            readFully(channel, typeBuffer);
+            int roNum = typeBuffer.get(0) & 0xFF;
+            if (types != null && !types.contains(roNum)) {
+                return null;
+            }
+
+            byte[] content = new byte[(int) (length - 1)];
+            if (content.length >= MAP_THRESHOLD) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 1, content.length);
+                mapped.get(content);
+            } else {
+                readFully(channel, ByteBuffer.wrap(content));
+            }
+            return new RoutingObject(roNum, content);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Reads just the routing object number at the start of a file
+    static int readType(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int roNum = in.read();
+            if (roNum < 0) {
+                throw new IOException("Not a routing object file: " + f);
+            }
+            return roNum;
+        } finally {
+            in.close();
+        }
+    }
+
+    static boolean isEntity(int roNum) {
+        return roNum == POAllocations.PONumROEntity;
+    }
+
+    static boolean isDot(int roNum) {
+        return roNum == POAllocations.PONumROAccessDOT || roNum == POAllocations.PONumROPermissionDOT;
+    }
+
+    static boolean isChain(int roNum) {
+        return roNum == POAllocations.PONumROAccessDChain || roNum == POAllocations.PONumROPermissionDChain;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
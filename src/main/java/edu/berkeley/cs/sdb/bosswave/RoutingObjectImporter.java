@@ -0,0 +1,222 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Imports the entities, DOTs and chains saved in routing object files into the agent with PUT_ENTITY, PUT_DOT
+ * and PUT_CHAIN. The agent checks a DOT against the entities it names and a chain against its DOTs, so the
+ * objects are imported in tiers: every entity, then every DOT, then every chain. Within a tier, files are read on
+ * a pool of threads while earlier objects are being sent, with a bounded number of files being read or awaiting
+ * the agent's response at once. Files holding other types of routing object, including entities with their
+ * signing keys, are skipped.
+ */
+class RoutingObjectImporter {
+    static final Set<Integer> IMPORTABLE_TYPES = Collections.unmodifiableSet(new HashSet<Integer>(Arrays.asList(
+            POAllocations.PONumROEntity,
+            POAllocations.PONumROAccessDOT, POAllocations.PONumROPermissionDOT,
+            POAllocations.PONumROAccessDChain, POAllocations.PONumROPermissionDChain)));
+    private static final int TIERS = 3;
+
+    private final BosswaveClient client;
+    private final List<File> files;
+    private final int maxInFlight;
+    private final ProgressListener listener;
+    private final AtomicInteger completed;
+    // The agent's response for each file, or null if it was skipped
+    private final BosswaveResponse[] responses;
+    private ExecutorService readPool;
+
+    public RoutingObjectImporter(BosswaveClient client, List<File> files, int maxInFlight,
+                                 ProgressListener listener) {
+        this.client = client;
+        this.files = files;
+        this.maxInFlight = maxInFlight;
+        this.listener = listener;
+        completed = new AtomicInteger();
+        responses = new BosswaveResponse[files.size()];
+    }
+
+    static Command putCommand(int roNum) {
+        if (RoutingObjectFile.isEntity(roNum)) {
+            return Command.PUT_ENTITY;
+        } else if (RoutingObjectFile.isDot(roNum)) {
+            return Command.PUT_DOT;
+        } else if (RoutingObjectFile.isChain(roNum)) {
+            return Command.PUT_CHAIN;
+        }
+        throw new IllegalArgumentException("Not an entity, DOT or chain: routing object " + roNum);
+    }
+
+    // The tier in which a type is imported, or -1 if it isn't imported
+    static int tier(int roNum) {
+        if (RoutingObjectFile.isEntity(roNum)) {
+            return 0;
+        } else if (RoutingObjectFile.isDot(roNum)) {
+            return 1;
+        } else if (RoutingObjectFile.isChain(roNum)) {
+            return 2;
+        }
+        return -1;
+    }
+
+    /**
+     * @return A future that completes with the agent's response for each imported file, in the order of the
+     *         files, once all have been answered; a rejected object doesn't stop the rest. It completes
+     *         exceptionally if a file can't be read or the commands can't be sent, in which case no later tier
+     *         is started.
+     */
+    public CompletableFuture<Map<File, BosswaveResponse>> run() {
+        int readers = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(files.size(), 1));
+        readPool = Executors.newFixedThreadPool(readers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bosswave-import");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // Only the first byte of each file is needed to place it in a tier
+        CompletableFuture<List<Integer>> types = new RequestPipeline<File, Integer>(files, maxInFlight,
+                new RequestPipeline.Stage<File, Integer>() {
+                    @Override
+                    public CompletableFuture<Integer> start(File f) {
+                        return readTypeAsync(f);
+                    }
+                }, null).run();
+
+        CompletableFuture<Void> imported = types.thenCompose(new Function<List<Integer>, CompletableFuture<Void>>() {
+            @Override
+            public CompletableFuture<Void> apply(List<Integer> types) {
+                List<List<Integer>> tiers = new ArrayList<List<Integer>>();
+                for (int i = 0; i < TIERS; i++) {
+                    tiers.add(new ArrayList<Integer>());
+                }
+                for (int i = 0; i < types.size(); i++) {
+                    int tier = tier(types.get(i));
+                    if (tier >= 0) {
+                        tiers.get(tier).add(i);
+                    } else {
+                        reportProgress();
+                    }
+                }
+                return importTier(tiers, 0);
+            }
+        });
+
+        imported.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void v, Throwable t) {
+                readPool.shutdown();
+            }
+        });
+        return imported.thenApply(new Function<Void, Map<File, BosswaveResponse>>() {
+            @Override
+            public Map<File, BosswaveResponse> apply(Void v) {
+                Map<File, BosswaveResponse> imported = new LinkedHashMap<File, BosswaveResponse>();
+                for (int i = 0; i < responses.length; i++) {
+                    if (responses[i] != null) {
+                        imported.put(files.get(i), responses[i]);
+                    }
+                }
+                return Collections.unmodifiableMap(imported);
+            }
+        });
+    }
+
+    // Imports one tier of files, given by their indices, then the tiers after it
+    private CompletableFuture<Void> importTier(final List<List<Integer>> tiers, final int tier) {
+        if (tier == tiers.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final List<Integer> indices = tiers.get(tier);
+        return new RequestPipeline<Integer, BosswaveResponse>(indices, maxInFlight,
+                new RequestPipeline.Stage<Integer, BosswaveResponse>() {
+                    @Override
+                    public CompletableFuture<BosswaveResponse> start(Integer index) {
+                        CompletableFuture<BosswaveResponse> imported = new CompletableFuture<BosswaveResponse>();
+                        readPool.execute(importTask(files.get(index), imported));
+                        return imported;
+                    }
+                }, new RequestPipeline.Listener<BosswaveResponse>() {
+                    @Override
+                    public void onCompleted(int index, BosswaveResponse response) {
+                        responses[indices.get(index)] = response;
+                        reportProgress();
+                    }
+                }).run().thenCompose(new Function<List<BosswaveResponse>, CompletableFuture<Void>>() {
+                    @Override
+                    public CompletableFuture<Void> apply(List<BosswaveResponse> tierResponses) {
+                        return importTier(tiers, tier + 1);
+                    }
+                });
+    }
+
+    private void reportProgress() {
+        if (listener != null) {
+            listener.onProgress(completed.incrementAndGet(), files.size());
+        }
+    }
+
+    private CompletableFuture<Integer> readTypeAsync(final File f) {
+        final CompletableFuture<Integer> type = new CompletableFuture<Integer>();
+        readPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    type.complete(RoutingObjectFile.readType(f));
+                } catch (IOException e) {
+                    type.completeExceptionally(e);
+                }
+            }
+        });
+        return type;
+    }
+
+    // Reads a file and sends the object in it, completing with the agent's response
+    private Runnable importTask(final File f, final CompletableFuture<BosswaveResponse> imported) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                RoutingObject ro;
+                try {
+                    ro = RoutingObjectFile.read(f, IMPORTABLE_TYPES);
+                } catch (IOException e) {
+                    imported.completeExceptionally(e);
+                    return;
+                }
+                if (ro == null) {
+                    imported.completeExceptionally(new IOException("File changed while importing: " + f));
+                    return;
+                }
+                client.sendRoutingObjectAsync(putCommand(ro.getRoutingObjectNumber()), ro).whenComplete(
+                        new BiConsumer<BosswaveResponse, Throwable>() {
+                            @Override
+                            public void accept(BosswaveResponse response, Throwable t) {
+                                if (t != null) {
+                                    imported.completeExceptionally(t);
+                                } else {
+                                    imported.complete(response);
+                                }
+                            }
+                        });
+            }
+        };
+    }
+}
@@ -0,0 +1,40 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * One subscriber's share of an agent subscription that may be shared with other identical subscriptions made
+ * through BosswaveClient.subscribeShared.
+ */
+public class SharedSubscription implements SubscriptionHandle {
+    private final SharedSubscriptions.Group group;
+    private final ResultHandler handler;
+    private boolean released;
+
+    SharedSubscription(SharedSubscriptions.Group group, ResultHandler handler) {
+        this.group = group;
+        this.handler = handler;
+    }
+
+    public SubscribeRequest getRequest() {
+        return group.getRequest();
+    }
+
+    /**
+     * Stops delivering results to this subscriber. Once every subscriber sharing the subscription has cancelled
+     * its share, the client ends the subscription, as SubscriptionHandle.cancel does.
+     */
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+        }
+        group.leave(handler);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return released || group.isClosed();
+    }
+}
@@ -0,0 +1,221 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares one agent subscription among all local subscribers with identical SubscribeRequests. The first
+ * subscriber creates the subscription; its results are fanned out to every subscriber's ResultHandler, and a
+ * reference count keeps it alive until the last subscriber cancels its share, or until the request expires.
+ * Requests with an expiry delta are never shared: the agent counts the delta from the first subscriber's
+ * request, so a later subscriber would lose its results early.
+ */
+class SharedSubscriptions {
+    private static final ResultHandler[] NO_HANDLERS = new ResultHandler[0];
+    private static final int NOT_SENT = -1;
+
+    private final BosswaveClient client;
+    private final Map<SubscribeRequest, Group> groups;
+    private final Object groupsLock;
+
+    public SharedSubscriptions(BosswaveClient client) {
+        this.client = client;
+        groups = new HashMap<SubscribeRequest, Group>();
+        groupsLock = new Object();
+    }
+
+    public SharedSubscription subscribe(SubscribeRequest request, ResponseHandler rspH, ResultHandler rsltH)
+            throws IOException {
+        Group group;
+        boolean created = false;
+        BosswaveResponse knownResponse;
+        boolean shareable = (request.getExpiryDelta() == null);
+        synchronized (groupsLock) {
+            group = (shareable ? groups.get(request) : null);
+            if (group == null) {
+                group = new Group(request);
+                if (shareable) {
+                    groups.put(request, group);
+                }
+                created = true;
+            }
+            knownResponse = group.join(rspH, rsltH);
+        }
+
+        if (created) {
+            try {
+                group.sent(client.sendSubscribe(request, group, group));
+            } catch (IOException e) {
+                // The caller learns of the failure from the exception; anyone who joined meanwhile from a response
+                group.abandon(rspH, rsltH);
+                group.onResponseReceived(new BosswaveResponse("error", e.getMessage()));
+                throw e;
+            }
+        } else if (knownResponse != null && rspH != null) {
+            // The shared subscription was already acknowledged
+            rspH.onResponseReceived(knownResponse);
+        }
+        return new SharedSubscription(group, rsltH);
+    }
+
+    // The number of distinct agent subscriptions currently shared
+    int size() {
+        synchronized (groupsLock) {
+            return groups.size();
+        }
+    }
+
+    class Group implements ResponseHandler, ResultHandler {
+        private final SubscribeRequest request;
+        private final List<ResponseHandler> pendingResponseHandlers;
+        private volatile ResultHandler[] resultHandlers;
+        private BosswaveResponse response;
+        private int refCount;
+        private int seqNo;
+        private boolean closed;
+        private HashedWheelTimer.Timeout expiry;
+
+        Group(SubscribeRequest request) {
+            this.request = request;
+            pendingResponseHandlers = new ArrayList<ResponseHandler>();
+            resultHandlers = NO_HANDLERS;
+            seqNo = NOT_SENT;
+        }
+
+        SubscribeRequest getRequest() {
+            return request;
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Adds a subscriber to the group. Must be called with groupsLock held.
+         * @return The agent's response to the subscription if it has arrived already, otherwise null, in which
+         *         case rspH will be called when it does
+         */
+        synchronized BosswaveResponse join(ResponseHandler rspH, ResultHandler rsltH) {
+            refCount++;
+            if (rsltH != null) {
+                ResultHandler[] handlers = Arrays.copyOf(resultHandlers, resultHandlers.length + 1);
+                handlers[handlers.length - 1] = rsltH;
+                resultHandlers = handlers;
+            }
+            if (response == null && rspH != null) {
+                pendingResponseHandlers.add(rspH);
+            }
+            return response;
+        }
+
+        void abandon(ResponseHandler rspH, ResultHandler rsltH) {
+            synchronized (this) {
+                pendingResponseHandlers.remove(rspH);
+            }
+            leave(rsltH);
+        }
+
+        void leave(ResultHandler rsltH) {
+            synchronized (groupsLock) {
+                synchronized (this) {
+                    if (rsltH != null) {
+                        removeResultHandler(rsltH);
+                    }
+                    if (--refCount > 0) {
+                        return;
+                    }
+                }
+            }
+            close();
+        }
+
+        void sent(final int seqNo) {
+            synchronized (this) {
+                if (!closed) {
+                    this.seqNo = seqNo;
+                    expiry = client.scheduleExpiry(request, new Runnable() {
+                        @Override
+                        public void run() {
+                            close();
+                        }
+                    });
+                    return;
+                }
+            }
+            // Every subscriber left before the subscription was even sent
+            client.release(seqNo);
+        }
+
+        // Drops the shared subscription, whether every subscriber has left or the request has expired
+        private void close() {
+            int release;
+            HashedWheelTimer.Timeout pendingExpiry;
+            synchronized (groupsLock) {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    release = seqNo;
+                    pendingExpiry = expiry;
+                    resultHandlers = NO_HANDLERS;
+                    if (groups.get(request) == this) {
+                        groups.remove(request);
+                    }
+                }
+            }
+            if (pendingExpiry != null) {
+                pendingExpiry.cancel();
+            }
+            if (release != NOT_SENT) {
+                client.release(release);
+            }
+        }
+
+        @Override
+        public void onResponseReceived(BosswaveResponse response) {
+            List<ResponseHandler> waiting;
+            if (!response.getStatus().equals("okay")) {
+                // The subscription failed, so later subscribers must make a fresh attempt
+                synchronized (groupsLock) {
+                    if (groups.get(request) == this) {
+                        groups.remove(request);
+                    }
+                }
+            }
+            synchronized (this) {
+                this.response = response;
+                waiting = new ArrayList<ResponseHandler>(pendingResponseHandlers);
+                pendingResponseHandlers.clear();
+            }
+            for (ResponseHandler handler : waiting) {
+                handler.onResponseReceived(response);
+            }
+        }
+
+        @Override
+        public void onResultReceived(BosswaveResult result) {
+            ResultHandler[] handlers = resultHandlers;
+            for (int i = 0; i < handlers.length; i++) {
+                handlers[i].onResultReceived(result);
+            }
+        }
+
+        private void removeResultHandler(ResultHandler rsltH) {
+            ResultHandler[] handlers = resultHandlers;
+            for (int i = 0; i < handlers.length; i++) {
+                if (handlers[i] == rsltH) {
+                    ResultHandler[] remaining = new ResultHandler[handlers.length - 1];
+                    System.arraycopy(handlers, 0, remaining, 0, i);
+                    System.arraycopy(handlers, i + 1, remaining, i, handlers.length - i - 1);
+                    resultHandlers = remaining;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * A KeyedExecutor that hashes each key onto one of a fixed number of serial stripes, each of which runs its
+ * tasks in order on an underlying Executor. Keys on different stripes proceed in parallel, while every key keeps
+ * its own order; unrelated keys that share a stripe are serialized with each other.
+ */
+class StripedExecutor implements KeyedExecutor {
+    // A stripe hands its thread back to the executor after this many tasks, so other stripes get a turn
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    private final Executor executor;
+    private final Stripe[] stripes;
+
+    public StripedExecutor(Executor executor, int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive");
+        }
+        this.executor = executor;
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public void execute(int key, Runnable task) {
+        // Spread consecutive sequence numbers across stripes
+        int hash = key * 0x9e3779b9;
+        stripes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % stripes.length].execute(task);
+    }
+
+    private class Stripe implements Runnable {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private boolean scheduled;
+
+        void execute(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    scheduled = false;
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // A failing handler must not stall the other tasks on its stripe
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+            schedule();
+        }
+    }
+}
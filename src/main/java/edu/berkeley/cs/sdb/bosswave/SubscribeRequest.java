@@ -71,6 +71,47 @@ public class SubscribeRequest {
         return leavePacked;
     }
 
+    // A request with the same options for a different URI
+    SubscribeRequest withUri(String uri) {
+        return new SubscribeRequest(uri, getExpiry(), expiryDelta, primaryAccessChain, doVerify, elabLevel,
+                                    routingObjects, autoChain, leavePacked);
+    }
+
+    // Requests are equal if they would create identical subscriptions
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (o == null) {
+            return false;
+        } else if (!(o instanceof SubscribeRequest)) {
+            return false;
+        } else {
+            SubscribeRequest other = (SubscribeRequest) o;
+            return equal(this.uri, other.uri) &&
+                   equal(this.expiry, other.expiry) &&
+                   equal(this.expiryDelta, other.expiryDelta) &&
+                   this.doVerify == other.doVerify &&
+                   equal(this.primaryAccessChain, other.primaryAccessChain) &&
+                   this.elabLevel == other.elabLevel &&
+                   this.autoChain == other.autoChain &&
+                   this.leavePacked == other.leavePacked &&
+                   this.routingObjects.equals(other.routingObjects);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = (uri == null ? 0 : uri.hashCode());
+        hash = 31 * hash + (primaryAccessChain == null ? 0 : primaryAccessChain.hashCode());
+        hash = 31 * hash + (expiryDelta == null ? 0 : expiryDelta.hashCode());
+        return 31 * hash + routingObjects.hashCode();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null ? b == null : a.equals(b));
+    }
+
     public static class Builder {
         private String uri;
         private Date expiry;
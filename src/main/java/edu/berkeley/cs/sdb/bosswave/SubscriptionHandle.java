@@ -0,0 +1,18 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * Controls a subscription made through BosswaveClient. A subscription's local state is also dropped
+ * automatically once its expiry (or expiry delta) passes.
+ */
+public interface SubscriptionHandle {
+    /**
+     * Stops delivering results for the subscription and frees the client's state for it. If the agent gave the
+     * subscription a handle, the client also asks the agent to end it; otherwise the agent keeps sending results
+     * until the subscription expires, but the client skips them, parsing only their frame and item headers.
+     * Cancelling more than once has no effect.
+     */
+    void cancel();
+
+    // True once the subscription has been cancelled or has expired
+    boolean isCancelled();
+}
@@ -0,0 +1,10 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+/**
+ * Implemented by handlers that want to be told when their request times out (see
+ * BosswaveClient.setRequestTimeout). A response handler that doesn't implement it receives an "error" response
+ * instead.
+ */
+public interface TimeoutHandler {
+    void onTimeout();
+}
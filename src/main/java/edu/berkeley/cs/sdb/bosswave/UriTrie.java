@@ -0,0 +1,181 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps Bosswave URI patterns, split into '/'-separated segments, to values. A pattern segment "+" matches any
+ * single URI segment and a segment "*" matches any sequence of zero or more segments, as in subscription URIs.
+ * Not thread safe.
+ */
+class UriTrie<V> {
+    private static final String ONE_SEGMENT = "+";
+    private static final String ANY_SEGMENTS = "*";
+    private static final int END = -1;
+
+    private static class Node<V> {
+        final Map<String, Node<V>> children = new HashMap<String, Node<V>>();
+        final List<V> values = new ArrayList<V>(1);
+        // The number of values stored at this node and below it
+        int count;
+    }
+
+    private final Node<V> root = new Node<V>();
+
+    public void add(String pattern, V value) {
+        Node<V> node = root;
+        node.count++;
+        for (String segment : segments(pattern)) {
+            Node<V> child = node.children.get(segment);
+            if (child == null) {
+                child = new Node<V>();
+                node.children.put(segment, child);
+            }
+            node = child;
+            node.count++;
+        }
+        node.values.add(value);
+    }
+
+    /**
+     * Removes one occurrence of a value stored under a pattern.
+     * @return true if the value was found
+     */
+    public boolean remove(String pattern, V value) {
+        List<Node<V>> path = new ArrayList<Node<V>>();
+        List<String> segments = segments(pattern);
+        Node<V> node = root;
+        path.add(node);
+        for (String segment : segments) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return false;
+            }
+            path.add(node);
+        }
+        if (!node.values.remove(value)) {
+            return false;
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Node<V> n = path.get(i);
+            n.count--;
+            if (i > 0 && n.count == 0) {
+                path.get(i - 1).children.remove(segments.get(i - 1));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds every value whose pattern matches a concrete URI to a collection.
+     */
+    public void match(String uri, Collection<? super V> matches) {
+        match(root, uri, (uri.isEmpty() ? END : 0), matches);
+    }
+
+    /**
+     * The number of values stored under patterns that begin with the given literal segments.
+     */
+    public int countUnder(String prefix) {
+        Node<V> node = find(prefix);
+        return (node == null ? 0 : node.count);
+    }
+
+    /**
+     * Adds every value stored under a pattern that begins with the given literal segments to a collection.
+     */
+    public void collectUnder(String prefix, Collection<? super V> values) {
+        Node<V> node = find(prefix);
+        if (node != null) {
+            collect(node, values);
+        }
+    }
+
+    public int size() {
+        return root.count;
+    }
+
+    // Splits a URI into its non-empty segments
+    static List<String> segments(String uri) {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        while (start <= uri.length()) {
+            int end = uri.indexOf('/', start);
+            if (end < 0) {
+                end = uri.length();
+            }
+            if (end > start) {
+                segments.add(uri.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return segments;
+    }
+
+    static boolean isWildcard(String segment) {
+        return segment.equals(ONE_SEGMENT) || segment.equals(ANY_SEGMENTS);
+    }
+
+    private Node<V> find(String prefix) {
+        Node<V> node = root;
+        for (String segment : segments(prefix)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private void collect(Node<V> node, Collection<? super V> values) {
+        values.addAll(node.values);
+        for (Node<V> child : node.children.values()) {
+            collect(child, values);
+        }
+    }
+
+    // start is the index of the next URI segment to match, or END once the whole URI has been matched
+    private void match(Node<V> node, String uri, int start, Collection<? super V> matches) {
+        Node<V> anySegments = node.children.get(ANY_SEGMENTS);
+        if (start == END) {
+            matches.addAll(node.values);
+            if (anySegments != null) {
+                match(anySegments, uri, END, matches);
+            }
+            return;
+        }
+
+        int end = uri.indexOf('/', start);
+        int next = (end < 0 ? END : end + 1);
+        if (end < 0) {
+            end = uri.length();
+        }
+        if (end == start) {
+            // Skip empty segments, as segments() does
+            match(node, uri, (next == END || next == uri.length() ? END : next), matches);
+            return;
+        }
+
+        Node<V> literal = node.children.get(uri.substring(start, end));
+        if (literal != null) {
+            match(literal, uri, next, matches);
+        }
+        Node<V> oneSegment = node.children.get(ONE_SEGMENT);
+        if (oneSegment != null) {
+            match(oneSegment, uri, next, matches);
+        }
+        if (anySegments != null) {
+            // Let "*" consume each possible number of segments, from none to all that remain
+            int position = start;
+            while (position != END) {
+                match(anySegments, uri, position, matches);
+                int slash = uri.indexOf('/', position);
+                position = (slash < 0 || slash + 1 == uri.length() ? END : slash + 1);
+            }
+            match(anySegments, uri, END, matches);
+        }
+    }
+}
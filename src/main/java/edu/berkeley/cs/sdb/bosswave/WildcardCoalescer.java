@@ -0,0 +1,462 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces many subscriptions beneath a common URI prefix with one wildcard subscription.
+ *
+ * Subscriptions with the same options form a group, whose members are kept in a UriTrie by URI. While fewer
+ * than the threshold number of members share a prefix, each member has an agent subscription of its own. Once
+ * a new member brings the count beneath some prefix up to the threshold, the deepest such prefix P is
+ * subscribed to as "P/*"; when the agent accepts it, every member beneath P switches over to it and the
+ * members' own subscriptions (and any deeper wildcard subscriptions) are released. Later members beneath P
+ * join the wildcard without a subscription of their own. Results of a wildcard subscription are routed to
+ * the members whose URI patterns match, through the trie.
+ *
+ * A member only takes results from its current source, so a result is never delivered to it twice while it
+ * switches between subscriptions. If the agent rejects a wildcard subscription, its prefix is never tried
+ * again and members that were waiting for it fall back to subscriptions of their own.
+ *
+ * Requests with an expiry delta are never coalesced. The agent counts the delta from the wildcard request, so
+ * a member that joined later would stop receiving results before its own delta had passed.
+ */
+class WildcardCoalescer {
+    private static final int NOT_SENT = -1;
+
+    private final BosswaveClient client;
+    private final Map<SubscribeRequest, Group> groups;
+    private final Object lock;
+    private volatile int threshold;
+
+    public WildcardCoalescer(BosswaveClient client) {
+        this.client = client;
+        groups = new HashMap<SubscribeRequest, Group>();
+        lock = new Object();
+    }
+
+    // A threshold of 0 disables coalescing
+    public void setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+        this.threshold = threshold;
+    }
+
+    public CoalescedSubscription subscribe(SubscribeRequest request, ResponseHandler rspH, ResultHandler rsltH)
+            throws IOException {
+        Member member;
+        Wildcard newWildcard = null;
+        BosswaveResponse knownResponse = null;
+        boolean individual = false;
+        boolean coalescable = (request.getExpiryDelta() == null);
+        synchronized (lock) {
+            SubscribeRequest options = request.withUri("");
+            // A member that can't be coalesced gets a group of its own, which no other member joins
+            Group group = (coalescable ? groups.get(options) : null);
+            if (group == null) {
+                group = new Group(options);
+                if (coalescable) {
+                    groups.put(options, group);
+                }
+            }
+            member = new Member(group, request, rspH, rsltH);
+            group.members.add(member.uri, member);
+
+            Wildcard covering = (coalescable ? group.covering(member) : null);
+            if (covering != null) {
+                knownResponse = covering.adopt(member);
+            } else {
+                String prefix = (coalescable ? group.coalescePrefix(member) : null);
+                if (prefix != null) {
+                    newWildcard = group.startWildcard(prefix);
+                } else {
+                    individual = true;
+                }
+            }
+        }
+
+        if (newWildcard != null) {
+            newWildcard.send();
+        } else if (individual) {
+            try {
+                member.subscribeIndividually();
+            } catch (IOException e) {
+                member.release();
+                throw e;
+            }
+        } else if (knownResponse != null) {
+            member.respond(knownResponse);
+        }
+
+        final Member expiring = member;
+        member.expireWith(client.scheduleExpiry(request, new Runnable() {
+            @Override
+            public void run() {
+                expiring.release();
+            }
+        }));
+        return new CoalescedSubscription(member);
+    }
+
+    private static String join(List<String> segments, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append('/');
+            }
+            sb.append(segments.get(i));
+        }
+        return sb.toString();
+    }
+
+    private class Group {
+        final SubscribeRequest options;
+        final UriTrie<Member> members;
+        // Wildcard subscriptions by prefix, including those awaiting the agent's response
+        final Map<String, Wildcard> wildcards;
+        final Set<String> rejectedPrefixes;
+
+        Group(SubscribeRequest options) {
+            this.options = options;
+            members = new UriTrie<Member>();
+            wildcards = new HashMap<String, Wildcard>();
+            rejectedPrefixes = new HashSet<String>();
+        }
+
+        // The shallowest wildcard subscription whose prefix covers the member's URI pattern
+        Wildcard covering(Member member) {
+            for (int i = 1; i <= member.literalSegments.size(); i++) {
+                Wildcard wildcard = wildcards.get(join(member.literalSegments, i));
+                if (wildcard != null) {
+                    return wildcard;
+                }
+            }
+            return null;
+        }
+
+        // The deepest prefix above the member under which enough members have gathered
+        String coalescePrefix(Member member) {
+            int limit = threshold;
+            if (limit == 0) {
+                return null;
+            }
+            // A concrete URI is coalesced with its siblings, so start from its parent
+            int depth = member.literalSegments.size() - (member.isPattern ? 0 : 1);
+            for (int i = depth; i >= 1; i--) {
+                String prefix = join(member.literalSegments, i);
+                if (!rejectedPrefixes.contains(prefix) && members.countUnder(prefix) >= limit) {
+                    return prefix;
+                }
+            }
+            return null;
+        }
+
+        Wildcard startWildcard(String prefix) {
+            Wildcard wildcard = new Wildcard(this, prefix);
+            for (Map.Entry<String, Wildcard> entry : wildcards.entrySet()) {
+                if (entry.getKey().startsWith(prefix + "/")) {
+                    wildcard.superseded.add(entry.getValue());
+                }
+            }
+            wildcards.put(prefix, wildcard);
+            List<Member> beneath = new ArrayList<Member>();
+            members.collectUnder(prefix, beneath);
+            for (Member member : beneath) {
+                wildcard.adopt(member);
+            }
+            return wildcard;
+        }
+
+        void removeWildcard(Wildcard wildcard) {
+            if (wildcards.get(wildcard.prefix) == wildcard) {
+                wildcards.remove(wildcard.prefix);
+            }
+        }
+    }
+
+    private class Wildcard implements ResponseHandler, ResultHandler {
+        final Group group;
+        final String prefix;
+        final List<Member> members;
+        // Deeper wildcard subscriptions to release once this one is accepted
+        final List<Wildcard> superseded;
+        BosswaveResponse response;
+        int seqNo;
+        boolean released;
+
+        Wildcard(Group group, String prefix) {
+            this.group = group;
+            this.prefix = prefix;
+            members = new ArrayList<Member>();
+            superseded = new ArrayList<Wildcard>();
+            seqNo = NOT_SENT;
+        }
+
+        boolean isAccepted() {
+            return response != null && response.getStatus().equals("okay");
+        }
+
+        /**
+         * Adds a member. Must be called with the coalescer's lock held.
+         * @return The wildcard's "okay" response if it has arrived, in which case the member has switched to it
+         */
+        BosswaveResponse adopt(Member member) {
+            if (!members.contains(member)) {
+                members.add(member);
+                member.adoptedBy.add(this);
+            }
+            if (isAccepted()) {
+                member.source = this;
+                return response;
+            }
+            return null;
+        }
+
+        void send() {
+            int sent;
+            try {
+                sent = client.sendSubscribe(group.options.withUri(prefix + "/*"), this, this);
+            } catch (IOException e) {
+                onResponseReceived(new BosswaveResponse("error", e.getMessage()));
+                return;
+            }
+            boolean release;
+            synchronized (lock) {
+                seqNo = sent;
+                release = released;
+            }
+            if (release) {
+                client.release(sent);
+            }
+        }
+
+        @Override
+        public void onResponseReceived(BosswaveResponse response) {
+            List<Integer> toRelease = new ArrayList<Integer>();
+            List<Member> toNotify = new ArrayList<Member>();
+            List<BosswaveResponse> notifications = new ArrayList<BosswaveResponse>();
+            List<Member> toResubscribe = new ArrayList<Member>();
+            synchronized (lock) {
+                if (released) {
+                    return;
+                }
+                this.response = response;
+                if (response.getStatus().equals("okay")) {
+                    for (Member member : members) {
+                        Object previous = member.source;
+                        if (previous == member) {
+                            if (member.individualSeqNo != NOT_SENT) {
+                                toRelease.add(member.individualSeqNo);
+                            }
+                        } else if (previous instanceof Wildcard && previous != this &&
+                                   !superseded.contains(previous)) {
+                            // The member already takes results from a shallower wildcard
+                            continue;
+                        }
+                        member.source = this;
+                        toNotify.add(member);
+                        notifications.add(response);
+                    }
+                    for (Wildcard deeper : superseded) {
+                        if (!deeper.released) {
+                            deeper.released = true;
+                            group.removeWildcard(deeper);
+                            if (deeper.seqNo != NOT_SENT) {
+                                toRelease.add(deeper.seqNo);
+                            }
+                        }
+                    }
+                } else {
+                    released = true;
+                    group.removeWildcard(this);
+                    group.rejectedPrefixes.add(prefix);
+                    for (Member member : members) {
+                        member.adoptedBy.remove(this);
+                        if (member.source != null || member.released) {
+                            // The member keeps the subscription it already had
+                            continue;
+                        }
+                        Wildcard covering = group.covering(member);
+                        if (covering != null) {
+                            BosswaveResponse known = covering.adopt(member);
+                            if (known != null) {
+                                toNotify.add(member);
+                                notifications.add(known);
+                            }
+                        } else {
+                            toResubscribe.add(member);
+                        }
+                    }
+                }
+            }
+
+            for (int seqNo : toRelease) {
+                client.release(seqNo);
+            }
+            for (int i = 0; i < toNotify.size(); i++) {
+                toNotify.get(i).respond(notifications.get(i));
+            }
+            for (Member member : toResubscribe) {
+                try {
+                    member.subscribeIndividually();
+                } catch (IOException e) {
+                    member.release();
+                    member.respond(new BosswaveResponse("error", e.getMessage()));
+                }
+            }
+        }
+
+        @Override
+        public void onResultReceived(BosswaveResult result) {
+            List<Member> matches = new ArrayList<Member>();
+            synchronized (lock) {
+                group.members.match(result.getUri(), matches);
+            }
+            for (int i = 0; i < matches.size(); i++) {
+                matches.get(i).deliver(this, result);
+            }
+        }
+
+        // Called with the coalescer's lock held once the wildcard has no members left
+        int releaseIfEmpty() {
+            if (!members.isEmpty() || released) {
+                return NOT_SENT;
+            }
+            released = true;
+            group.removeWildcard(this);
+            return seqNo;
+        }
+    }
+
+    class Member {
+        final Group group;
+        final SubscribeRequest request;
+        final String uri;
+        // The segments of the URI pattern up to its first wildcard
+        final List<String> literalSegments;
+        final boolean isPattern;
+        final ResponseHandler responseHandler;
+        final ResultHandler resultHandler;
+        final List<Wildcard> adoptedBy;
+        // The subscription the member takes results from: itself, a Wildcard, or null while there is none yet
+        volatile Object source;
+        volatile boolean released;
+        int individualSeqNo;
+        private HashedWheelTimer.Timeout expiry;
+        private boolean responded;
+
+        Member(Group group, SubscribeRequest request, ResponseHandler rspH, ResultHandler rsltH) {
+            this.group = group;
+            this.request = request;
+            uri = request.getUri();
+            List<String> segments = UriTrie.segments(uri);
+            int literal = 0;
+            while (literal < segments.size() && !UriTrie.isWildcard(segments.get(literal))) {
+                literal++;
+            }
+            literalSegments = segments.subList(0, literal);
+            isPattern = literal < segments.size();
+            responseHandler = rspH;
+            resultHandler = rsltH;
+            adoptedBy = new ArrayList<Wildcard>(1);
+            individualSeqNo = NOT_SENT;
+        }
+
+        void subscribeIndividually() throws IOException {
+            synchronized (lock) {
+                source = this;
+            }
+            int sent = client.sendSubscribe(request, new ResponseHandler() {
+                @Override
+                public void onResponseReceived(BosswaveResponse response) {
+                    if (!response.getStatus().equals("okay")) {
+                        release();
+                    }
+                    respond(response);
+                }
+            }, new ResultHandler() {
+                @Override
+                public void onResultReceived(BosswaveResult result) {
+                    deliver(Member.this, result);
+                }
+            });
+            boolean release;
+            synchronized (lock) {
+                individualSeqNo = sent;
+                release = released || source != this;
+            }
+            if (release) {
+                client.release(sent);
+            }
+        }
+
+        void deliver(Object from, BosswaveResult result) {
+            if (source == from && !released && resultHandler != null) {
+                resultHandler.onResultReceived(result);
+            }
+        }
+
+        // Passes on the response that decided the member's subscription, once
+        void respond(BosswaveResponse response) {
+            synchronized (this) {
+                if (responded) {
+                    return;
+                }
+                responded = true;
+            }
+            if (responseHandler != null) {
+                responseHandler.onResponseReceived(response);
+            }
+        }
+
+        void expireWith(HashedWheelTimer.Timeout expiry) {
+            boolean alreadyReleased;
+            synchronized (lock) {
+                this.expiry = expiry;
+                alreadyReleased = released;
+            }
+            if (alreadyReleased && expiry != null) {
+                expiry.cancel();
+            }
+        }
+
+        void release() {
+            List<Integer> toRelease = new ArrayList<Integer>();
+            HashedWheelTimer.Timeout pendingExpiry;
+            synchronized (lock) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                pendingExpiry = expiry;
+                group.members.remove(uri, this);
+                if (source == this && individualSeqNo != NOT_SENT) {
+                    toRelease.add(individualSeqNo);
+                }
+                for (Wildcard wildcard : adoptedBy) {
+                    wildcard.members.remove(this);
+                    int seqNo = wildcard.releaseIfEmpty();
+                    if (seqNo != NOT_SENT) {
+                        toRelease.add(seqNo);
+                    }
+                }
+                adoptedBy.clear();
+                if (group.members.size() == 0 && group.wildcards.isEmpty() && groups.get(group.options) == group) {
+                    groups.remove(group.options);
+                }
+            }
+            if (pendingExpiry != null) {
+                pendingExpiry.cancel();
+            }
+            for (int seqNo : toRelease) {
+                client.release(seqNo);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BosswaveResponseTest {
+
+    @Test
+    public void testValuesFromFrame() {
+        Frame frame = new Frame.Builder(Command.RESPONSE, 7).addKVPair("status", "okay").addKVPair("vk", "abc=")
+                .build();
+        BosswaveResponse response = new BosswaveResponse("okay", null, frame);
+        assertEquals("abc=", response.getValue("vk"));
+        assertNull(response.getValue("hash"));
+    }
+
+    @Test
+    public void testPayloadObjectsFromFrame() {
+        PayloadObject.Type type = new PayloadObject.Type(new byte[]{0, 0, 0, 32});
+        Frame frame = new Frame.Builder(Command.RESPONSE, 7).addKVPair("status", "okay")
+                .addPayloadObject(new PayloadObject(type, new byte[]{1, 2, 3})).build();
+        BosswaveResponse response = new BosswaveResponse("okay", null, frame);
+        assertEquals(1, response.getPayloadObjects().size());
+        assertArrayEquals(new byte[]{1, 2, 3}, response.getPayloadObjects().get(0).getContent());
+    }
+
+    @Test
+    public void testLocalResponseHasNoValues() {
+        BosswaveResponse response = new BosswaveResponse("okay", null);
+        assertNull(response.getValue("vk"));
+        assertTrue(response.getPayloadObjects().isEmpty());
+    }
+}
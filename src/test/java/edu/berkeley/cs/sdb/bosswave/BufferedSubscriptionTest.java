@@ -0,0 +1,149 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferedSubscriptionTest {
+
+    private static class RecordingSubscriber implements Flow.Subscriber<Integer> {
+        final List<Integer> items = new ArrayList<Integer>();
+        Flow.Subscription subscription;
+        boolean completed;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public synchronized void onNext(Integer item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Test
+    public void testHonorsDemand() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        BufferedSubscription<Integer> subscription = new BufferedSubscription<Integer>(null, subscriber, 8);
+        for (int i = 0; i < 5; i++) {
+            subscription.emit(i);
+        }
+        assertTrue(subscriber.items.isEmpty());
+
+        subscription.request(2);
+        assertEquals(2, subscriber.items.size());
+        subscription.complete();
+        // Completion waits until buffered items have been delivered
+        assertFalse(subscriber.completed);
+
+        subscription.request(Long.MAX_VALUE);
+        assertEquals(5, subscriber.items.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (int) subscriber.items.get(i));
+        }
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testFullBufferBlocksProducer() throws InterruptedException {
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        final BufferedSubscription<Integer> subscription = new BufferedSubscription<Integer>(null, subscriber, 2);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    subscription.emit(i);
+                }
+            }
+        });
+        producer.start();
+        producer.join(200);
+        // The producer is stuck behind a full buffer until the subscriber asks for more
+        assertTrue(producer.isAlive());
+
+        subscription.request(10);
+        producer.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(producer.isAlive());
+        synchronized (subscriber) {
+            assertEquals(10, subscriber.items.size());
+        }
+    }
+
+    @Test
+    public void testErrorsAndCancellation() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        BufferedSubscription<Integer> subscription = new BufferedSubscription<Integer>(null, subscriber, 4);
+        subscription.onResponseReceived(new BosswaveResponse("error", "no permission"));
+        assertTrue(subscriber.error instanceof BosswaveException);
+
+        subscriber = new RecordingSubscriber();
+        subscription = new BufferedSubscription<Integer>(null, subscriber, 4);
+        subscription.request(1);
+        subscription.cancel();
+        subscription.emit(1);
+        subscription.complete();
+        assertTrue(subscriber.items.isEmpty());
+        assertFalse(subscriber.completed);
+
+        subscriber = new RecordingSubscriber();
+        subscription = new BufferedSubscription<Integer>(null, subscriber, 4);
+        subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testThrowingSubscriberIsCancelled() {
+        final RuntimeException failure = new IllegalStateException("Subscriber failed");
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public synchronized void onNext(Integer item) {
+                super.onNext(item);
+                throw failure;
+            }
+        };
+        final AtomicReference<Throwable> reported = new AtomicReference<Throwable>();
+        Thread.currentThread().setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                reported.set(e);
+            }
+        });
+        try {
+            BufferedSubscription<Integer> subscription = new BufferedSubscription<Integer>(null, subscriber, 4);
+            subscription.request(Long.MAX_VALUE);
+            // The exception must not reach the thread that emits, only its uncaught exception handler
+            subscription.emit(1);
+            subscription.emit(2);
+            subscription.complete();
+        } finally {
+            Thread.currentThread().setUncaughtExceptionHandler(null);
+        }
+        assertEquals(1, subscriber.items.size());
+        assertFalse(subscriber.completed);
+        assertNull(subscriber.error);
+        assertSame(failure, reported.get());
+    }
+}
@@ -0,0 +1,92 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CachedQueryTest {
+    private static final String URI = "scratch.ns/a";
+
+    private static class Recorder implements ResponseHandler, ResultHandler {
+        final BlockingQueue<BosswaveResponse> responses = new LinkedBlockingQueue<BosswaveResponse>();
+        final BlockingQueue<BosswaveResult> results = new LinkedBlockingQueue<BosswaveResult>();
+
+        @Override
+        public void onResponseReceived(BosswaveResponse response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void onResultReceived(BosswaveResult result) {
+            results.add(result);
+        }
+
+        BosswaveResponse nextResponse() throws InterruptedException {
+            return responses.poll(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        BosswaveResult nextResult() throws InterruptedException {
+            return results.poll(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+    private int subscribeSeqNo;
+
+    // Subscribes to the URI and has the agent deliver one message on it, which the cache keeps
+    @Before
+    public void setUp() throws Exception {
+        agent = new ScriptedAgent(ScriptedAgent.OKAY);
+        client = agent.connect();
+        client.enableLastValueCache(1 << 20, 1, TimeUnit.MINUTES);
+
+        Recorder subscriber = new Recorder();
+        client.subscribe(new SubscribeRequest.Builder(URI).build(), subscriber, subscriber);
+        subscribeSeqNo = agent.await(Command.SUBSCRIBE, 1).get(0).getSeqNo();
+        assertEquals("okay", subscriber.nextResponse().getStatus());
+        agent.sendResult(subscribeSeqNo, false, "uri", URI, "from", "vk");
+        assertEquals(URI, subscriber.nextResult().getUri());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    @Test
+    public void testHitEndsLikeAgentAnswer() throws Exception {
+        Recorder recorder = new Recorder();
+        client.query(new QueryRequest.Builder(URI).build(), recorder, recorder);
+
+        assertEquals("okay", recorder.nextResponse().getStatus());
+        assertEquals(URI, recorder.nextResult().getUri());
+        BosswaveResult end = recorder.nextResult();
+        assertNull(end.getUri());
+        assertNull(end.getFrom());
+        assertTrue(end.getPayloadObjects().isEmpty());
+        assertEquals("true", end.getValue("finished"));
+        assertTrue(agent.received(Command.QUERY).isEmpty());
+    }
+
+    @Test
+    public void testHitUsesNoSequenceNumber() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Recorder recorder = new Recorder();
+            client.query(new QueryRequest.Builder(URI).build(), recorder, recorder);
+            assertEquals("okay", recorder.nextResponse().getStatus());
+        }
+        client.publish(new PublishRequest.Builder(URI).build(), null);
+        assertEquals(subscribeSeqNo + 1, agent.await(Command.PUBLISH, 1).get(0).getSeqNo());
+    }
+}
@@ -0,0 +1,191 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChainCacheTest {
+    private static final String URI = "scratch.ns/a";
+    private static final String ENTITY_VK = "entity-vk";
+    private static final String CHAIN_HASH = "chain-hash";
+
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+    // Whether the agent refuses publishes that name a chain, as it would once a DOT in the chain expired
+    private volatile boolean refuseChains;
+
+    // An agent that accepts the entity and every publish, and builds one chain for any BUILD_CHAIN
+    @Before
+    public void setUp() throws Exception {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) throws IOException {
+                switch (frame.getCommand()) {
+                    case SET_ENTITY:
+                        agent.respond(frame, "okay", "vk", ENTITY_VK);
+                        break;
+                    case BUILD_CHAIN:
+                        agent.respond(frame, "okay");
+                        agent.sendResult(frame.getSeqNo(), false, "hash", CHAIN_HASH);
+                        agent.sendResult(frame.getSeqNo(), true);
+                        break;
+                    case PUBLISH:
+                        if (refuseChains && frame.getFirstValueAsString("primary_access_chain") != null) {
+                            agent.respond(frame, "error", "reason", "chain no longer grants permission");
+                        } else {
+                            agent.respond(frame, "okay");
+                        }
+                        break;
+                    default:
+                        agent.respond(frame, "okay");
+                }
+            }
+        });
+        client = agent.connect();
+        client.enableChainCache();
+        ResponseFuture entity = new ResponseFuture();
+        client.setEntityFromFile(new File(getClass().getResource("/unitTests.key").getPath()), entity);
+        assertEquals("okay", entity.get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS).getStatus());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    @Test
+    public void testSecondPublishNamesCachedChain() throws Exception {
+        publish();
+        awaitCachedChain();
+        publish();
+
+        List<Frame> builds = agent.received(Command.BUILD_CHAIN);
+        assertEquals(1, builds.size());
+        assertEquals(URI, builds.get(0).getFirstValueAsString("uri"));
+        assertEquals(ENTITY_VK, builds.get(0).getFirstValueAsString("to"));
+        assertEquals("P", builds.get(0).getFirstValueAsString("addpermissions"));
+
+        List<Frame> publishes = agent.received(Command.PUBLISH);
+        assertNull(publishes.get(0).getFirstValueAsString("primary_access_chain"));
+        assertEquals("true", publishes.get(0).getFirstValueAsString("autochain"));
+        assertEquals(CHAIN_HASH, publishes.get(1).getFirstValueAsString("primary_access_chain"));
+        assertNull(publishes.get(1).getFirstValueAsString("autochain"));
+        assertEquals(1, client.getChainCacheStats().getHits());
+    }
+
+    @Test
+    public void testPublishesWhileBuildingShareOneBuild() throws Exception {
+        List<CompletableFuture<BosswaveResponse>> publishes = new ArrayList<CompletableFuture<BosswaveResponse>>();
+        for (int i = 0; i < 5; i++) {
+            publishes.add(client.publishAsync(new PublishRequest.Builder(URI).setAutoChain(true).build()));
+        }
+        for (CompletableFuture<BosswaveResponse> publish : publishes) {
+            publish.get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        awaitCachedChain();
+        assertEquals(1, agent.received(Command.BUILD_CHAIN).size());
+    }
+
+    @Test
+    public void testRefusedRequestDropsChain() throws Exception {
+        publish();
+        awaitCachedChain();
+        refuseChains = true;
+        try {
+            publish(URI);
+            fail("The agent accepted a refused chain");
+        } catch (ExecutionException e) {
+            assertEquals("error", ((BosswaveException) e.getCause()).getResponse().getStatus());
+        }
+        assertEquals(0, client.getChainCacheStats().getEntryCount());
+
+        // The next request falls back to autochain while a new chain is built
+        refuseChains = false;
+        publish();
+        List<Frame> publishes = agent.received(Command.PUBLISH);
+        assertEquals("true", publishes.get(2).getFirstValueAsString("autochain"));
+        awaitCachedChain();
+        assertEquals(2, agent.received(Command.BUILD_CHAIN).size());
+    }
+
+    @Test
+    public void testRefusedRequestWithoutHandlerDropsChain() throws Exception {
+        publish();
+        awaitCachedChain();
+        refuseChains = true;
+        client.publish(new PublishRequest.Builder(URI).setAutoChain(true).build(), null);
+        long deadline = System.currentTimeMillis() + ScriptedAgent.AWAIT_MILLIS;
+        while (client.getChainCacheStats().getEntryCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, client.getChainCacheStats().getEntryCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedChainIsEvicted() throws Exception {
+        client.enableChainCache(1, TimeUnit.HOURS, 2);
+        publish("scratch.ns/a");
+        awaitCachedChains(1);
+        publish("scratch.ns/b");
+        awaitCachedChains(2);
+        // Makes b the least recently used
+        publish("scratch.ns/a");
+        publish("scratch.ns/c");
+        awaitCachedChains(2);
+
+        CacheStats stats = client.getChainCacheStats();
+        assertEquals(1, stats.getEvictions());
+        assertTrue(stats.getSizeBytes() > 0);
+        assertEquals(3, agent.received(Command.BUILD_CHAIN).size());
+        publish("scratch.ns/a");
+        assertEquals(3, agent.received(Command.BUILD_CHAIN).size());
+        publish("scratch.ns/b");
+        assertEquals(4, agent.received(Command.BUILD_CHAIN).size());
+    }
+
+    @Test
+    public void testExpiredChainsArePurged() throws Exception {
+        client.enableChainCache(50, TimeUnit.MILLISECONDS);
+        publish();
+        awaitCachedChain();
+        Thread.sleep(100);
+        CacheStats stats = client.getChainCacheStats();
+        assertEquals(0, stats.getEntryCount());
+        assertEquals(0, stats.getSizeBytes());
+    }
+
+    private void publish() throws Exception {
+        assertEquals("okay", publish(URI).getStatus());
+    }
+
+    private BosswaveResponse publish(String uri) throws Exception {
+        PublishRequest request = new PublishRequest.Builder(uri).setAutoChain(true).build();
+        return client.publishAsync(request).get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void awaitCachedChain() throws InterruptedException {
+        awaitCachedChains(1);
+    }
+
+    private void awaitCachedChains(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ScriptedAgent.AWAIT_MILLIS;
+        while (client.getChainCacheStats().getEntryCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, client.getChainCacheStats().getEntryCount());
+    }
+}
@@ -0,0 +1,133 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClientSubscriptionTest {
+    // Long enough for a stray frame to arrive, short enough to keep the tests quick
+    private static final long QUIET_MILLIS = 200;
+
+    private static class Recorder implements ResponseHandler, ResultHandler {
+        final BlockingQueue<BosswaveResponse> responses = new LinkedBlockingQueue<BosswaveResponse>();
+        final BlockingQueue<BosswaveResult> results = new LinkedBlockingQueue<BosswaveResult>();
+
+        @Override
+        public void onResponseReceived(BosswaveResponse response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void onResultReceived(BosswaveResult result) {
+            results.add(result);
+        }
+
+        BosswaveResponse nextResponse() throws InterruptedException {
+            return responses.poll(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        BosswaveResult nextResult() throws InterruptedException {
+            return results.poll(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    // Accepts every subscription, giving it a handle named after its sequence number, unless the URI asks not to
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) throws IOException {
+                if (frame.getCommand() == Command.SUBSCRIBE) {
+                    if (frame.getFirstValueAsString("uri").endsWith("nohandle")) {
+                        agent.respond(frame, "okay");
+                    } else {
+                        agent.respond(frame, "okay", "handle", "h" + frame.getSeqNo());
+                    }
+                }
+            }
+        });
+        client = agent.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    @Test
+    public void testCancelUnsubscribesAndDropsLateResults() throws Exception {
+        Recorder recorder = new Recorder();
+        SubscriptionHandle handle = client.subscribe(new SubscribeRequest.Builder("scratch.ns/a").build(),
+                                                     recorder, recorder);
+        int seqNo = agent.await(Command.SUBSCRIBE, 1).get(0).getSeqNo();
+        assertEquals("okay", recorder.nextResponse().getStatus());
+        agent.sendResult(seqNo, false, "uri", "scratch.ns/a", "from", "vk", "n", "before");
+        assertEquals("before", recorder.nextResult().getValue("n"));
+        assertFalse(handle.isCancelled());
+
+        handle.cancel();
+        assertTrue(handle.isCancelled());
+        assertEquals("h" + seqNo, agent.await(Command.UNSUBSCRIBE, 1).get(0).getFirstValueAsString("handle"));
+
+        // Results the agent sent before it saw the UNSUBSCRIBE are dropped
+        agent.sendResult(seqNo, false, "uri", "scratch.ns/a", "from", "vk", "n", "after");
+        handle.cancel();
+        Thread.sleep(QUIET_MILLIS);
+        assertNull(recorder.results.poll());
+        assertEquals(1, agent.received(Command.UNSUBSCRIBE).size());
+    }
+
+    @Test
+    public void testCancelWithoutHandleDropsResults() throws Exception {
+        Recorder recorder = new Recorder();
+        SubscriptionHandle handle = client.subscribe(new SubscribeRequest.Builder("scratch.ns/nohandle").build(),
+                                                     recorder, recorder);
+        int seqNo = agent.await(Command.SUBSCRIBE, 1).get(0).getSeqNo();
+        assertEquals("okay", recorder.nextResponse().getStatus());
+
+        handle.cancel();
+        // The agent keeps sending results, which the client skips while still reading the frames after them
+        agent.sendResult(seqNo, false, "uri", "scratch.ns/nohandle", "from", "vk");
+        Recorder other = new Recorder();
+        client.subscribe(new SubscribeRequest.Builder("scratch.ns/b").build(), other, other);
+        int otherSeqNo = agent.await(Command.SUBSCRIBE, 2).get(1).getSeqNo();
+        agent.sendResult(otherSeqNo, false, "uri", "scratch.ns/b", "from", "vk");
+        assertEquals("scratch.ns/b", other.nextResult().getUri());
+        assertNull(recorder.results.poll());
+        assertTrue(agent.received(Command.UNSUBSCRIBE).isEmpty());
+    }
+
+    @Test
+    public void testExpiryDeltaCancelsSubscription() throws Exception {
+        Recorder recorder = new Recorder();
+        SubscriptionHandle handle = client.subscribe(
+                new SubscribeRequest.Builder("scratch.ns/a").setExpiryDelta(100).build(), recorder, recorder);
+        int seqNo = agent.await(Command.SUBSCRIBE, 1).get(0).getSeqNo();
+        assertEquals("okay", recorder.nextResponse().getStatus());
+
+        long deadline = System.currentTimeMillis() + ScriptedAgent.AWAIT_MILLIS;
+        while (!handle.isCancelled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(handle.isCancelled());
+        assertEquals("h" + seqNo, agent.await(Command.UNSUBSCRIBE, 1).get(0).getFirstValueAsString("handle"));
+
+        agent.sendResult(seqNo, false, "uri", "scratch.ns/a", "from", "vk");
+        Thread.sleep(QUIET_MILLIS);
+        assertNull(recorder.results.poll());
+    }
+}
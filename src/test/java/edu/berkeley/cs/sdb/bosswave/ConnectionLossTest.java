@@ -0,0 +1,95 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionLossTest {
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    // An agent that never answers
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) {
+            }
+        });
+        client = agent.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    @Test
+    public void testPendingRequestsFailWhenAgentDisconnects() throws Exception {
+        CompletableFuture<BosswaveResponse> publish =
+                client.publishAsync(new PublishRequest.Builder("scratch.ns/a").build());
+        CompletableFuture<List<BosswaveResult>> query =
+                client.queryAsync(new QueryRequest.Builder("scratch.ns/a").build());
+        final AtomicReference<BosswaveResponse> response = new AtomicReference<BosswaveResponse>();
+        final CountDownLatch responded = new CountDownLatch(1);
+        client.subscribe(new SubscribeRequest.Builder("scratch.ns/b").build(), new ResponseHandler() {
+            @Override
+            public void onResponseReceived(BosswaveResponse rsp) {
+                response.set(rsp);
+                responded.countDown();
+            }
+        }, null);
+        agent.await(Command.SUBSCRIBE, 1);
+
+        agent.disconnect();
+
+        assertFailedWithDisconnect(publish);
+        assertFailedWithDisconnect(query);
+        assertTrue(responded.await(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals("error", response.get().getStatus());
+        assertEquals(BosswaveClient.DISCONNECTED_REASON, response.get().getReason());
+    }
+
+    @Test
+    public void testRequestsAfterDisconnectFail() throws Exception {
+        CompletableFuture<BosswaveResponse> pending =
+                client.publishAsync(new PublishRequest.Builder("scratch.ns/a").build());
+        agent.await(Command.PUBLISH, 1);
+        agent.disconnect();
+        // Once pending requests have failed, the client knows the connection is gone
+        assertFailedWithDisconnect(pending);
+
+        CompletableFuture<BosswaveResponse> publish =
+                client.publishAsync(new PublishRequest.Builder("scratch.ns/a").build());
+        assertTrue(publish.isCompletedExceptionally());
+        try {
+            publish.get();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private static void assertFailedWithDisconnect(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("Request succeeded without an agent");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BosswaveException);
+            BosswaveResponse response = ((BosswaveException) e.getCause()).getResponse();
+            assertEquals(BosswaveClient.DISCONNECTED_REASON, response.getReason());
+        }
+    }
+}
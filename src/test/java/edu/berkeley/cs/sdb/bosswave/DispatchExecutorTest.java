@@ -0,0 +1,56 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class DispatchExecutorTest {
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(ScriptedAgent.OKAY);
+        client = agent.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    @Test
+    public void testHandlersRunWhenExecutorRejects() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        client.setDispatchExecutor(executor);
+
+        BosswaveResponse response = client.publishAsync(new PublishRequest.Builder("scratch.ns/a").build())
+                .get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals("okay", response.getStatus());
+
+        final BlockingQueue<BosswaveResult> results = new LinkedBlockingQueue<BosswaveResult>();
+        client.subscribe(new SubscribeRequest.Builder("scratch.ns/b").build(), null, new ResultHandler() {
+            @Override
+            public void onResultReceived(BosswaveResult result) {
+                results.add(result);
+            }
+        });
+        int seqNo = agent.await(Command.SUBSCRIBE, 1).get(0).getSeqNo();
+        agent.sendResult(seqNo, false, "uri", "scratch.ns/b", "from", "vk", "n", "1");
+        BosswaveResult result = results.poll(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(result);
+        assertEquals("1", result.getValue("n"));
+    }
+}
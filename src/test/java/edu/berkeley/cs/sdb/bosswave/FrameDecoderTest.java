@@ -0,0 +1,161 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.apache.commons.lang3.CharEncoding;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecoderTest {
+
+    private static final String KV_FRAME = "rslt 0000000000 0000000410\n" +
+            "kv uri 11\n" +
+            "scratch.ns/\n" +
+            "kv finished 4\n" +
+            "true\n" +
+            "end\n";
+
+    private static final String PO_FRAME = "publ 0000000000 0000000411\n" +
+            "ro 255 6\n" +
+            "testRO\n" +
+            "po 1.2.3.4:16909060 11\n" +
+            "testPayload\n" +
+            "end\n";
+
+    @Test
+    public void testDecodeByteAtATime() throws IOException {
+        byte[] frameContent = KV_FRAME.getBytes(CharEncoding.UTF_8);
+        FrameDecoder decoder = new FrameDecoder();
+
+        Frame frame = null;
+        for (int i = 0; i < frameContent.length; i++) {
+            assertNull(frame);
+            frame = decoder.decode(ByteBuffer.wrap(frameContent, i, 1));
+        }
+
+        assertEquals(Command.RESULT, frame.getCommand());
+        assertEquals(410, frame.getSeqNo());
+        assertEquals("scratch.ns/", new String(frame.getFirstValue("uri"), CharEncoding.UTF_8));
+        assertEquals("true", new String(frame.getFirstValue("finished"), CharEncoding.UTF_8));
+        assertTrue(decoder.isIdle());
+    }
+
+    @Test
+    public void testDecodeMultipleFrames() throws IOException {
+        byte[] content = (KV_FRAME + PO_FRAME + KV_FRAME.substring(0, 40)).getBytes(CharEncoding.UTF_8);
+        FrameDecoder decoder = new FrameDecoder();
+        List<Frame> frames = new ArrayList<Frame>();
+
+        ByteBuffer buf = ByteBuffer.wrap(content);
+        assertEquals(2, decoder.decode(buf, frames));
+        assertEquals(0, buf.remaining());
+        assertEquals(410, frames.get(0).getSeqNo());
+        assertEquals(411, frames.get(1).getSeqNo());
+
+        Frame poFrame = frames.get(1);
+        assertEquals(new RoutingObject(255, "testRO".getBytes(CharEncoding.UTF_8)),
+                     poFrame.getRoutingObjects().get(0));
+        PayloadObject.Type expectedType = new PayloadObject.Type(new byte[]{1, 2, 3, 4}, 16909060);
+        assertEquals(new PayloadObject(expectedType, "testPayload".getBytes(CharEncoding.UTF_8)),
+                     poFrame.getPayloadObjects().get(0));
+
+        // The trailing partial frame is completed by a later buffer
+        frames.clear();
+        byte[] rest = KV_FRAME.substring(40).getBytes(CharEncoding.UTF_8);
+        assertEquals(1, decoder.decode(ByteBuffer.wrap(rest), frames));
+        assertEquals(410, frames.get(0).getSeqNo());
+    }
+
+    @Test
+    public void testDecodeAfterInvalidFrame() throws IOException {
+        byte[] invalidContent = "helo 00000000000 0000000410 foobar\nend\n".getBytes(CharEncoding.UTF_8);
+        FrameDecoder decoder = new FrameDecoder();
+        try {
+            decoder.decode(ByteBuffer.wrap(invalidContent));
+        } catch (InvalidFrameException e) {
+            // Expected, the decoder discards the partial frame
+        }
+        assertTrue(decoder.isIdle());
+
+        Frame frame = decoder.decode(ByteBuffer.wrap(KV_FRAME.getBytes(CharEncoding.UTF_8)));
+        assertEquals(410, frame.getSeqNo());
+    }
+
+    @Test
+    public void testRejectedFramesAreSkipped() throws IOException {
+        byte[] content = (KV_FRAME + PO_FRAME + KV_FRAME + PO_FRAME).getBytes(CharEncoding.UTF_8);
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Filter() {
+            @Override
+            public boolean accept(Command command, int seqNo) {
+                return command != Command.RESULT;
+            }
+        });
+        List<Frame> frames = new ArrayList<Frame>();
+
+        // Feed the bytes in small pieces, so that frames are skipped across buffer boundaries
+        for (int i = 0; i < content.length; i += 7) {
+            decoder.decode(ByteBuffer.wrap(content, i, Math.min(7, content.length - i)), frames);
+        }
+        assertEquals(2, frames.size());
+        for (Frame frame : frames) {
+            assertEquals(411, frame.getSeqNo());
+            assertEquals("testPayload", new String(frame.getPayloadObjects().get(0).getContent(),
+                                                   CharEncoding.UTF_8));
+        }
+        assertTrue(decoder.isIdle());
+    }
+
+    @Test(expected = InvalidFrameException.class)
+    public void testInvalidItemHeader() throws IOException {
+        byte[] content = "publ 0000000000 0000000410\nxx foo 3\nbar\nend\n".getBytes(CharEncoding.UTF_8);
+        new FrameDecoder().decode(ByteBuffer.wrap(content));
+    }
+
+    @Test
+    public void testReadLargePayloadFromShortReads() throws IOException {
+        byte[] payload = new byte[100000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] header = ("publ 0000000000 0000000001\npo :42 " + payload.length + "\n").getBytes(CharEncoding.UTF_8);
+        byte[] trailer = "\nend\n".getBytes(CharEncoding.UTF_8);
+        byte[] content = new byte[header.length + payload.length + trailer.length + 4];
+        System.arraycopy(header, 0, content, 0, header.length);
+        System.arraycopy(payload, 0, content, header.length, payload.length);
+        System.arraycopy(trailer, 0, content, header.length + payload.length, trailer.length);
+        // Bytes after the frame must not be consumed
+        byte[] extra = "next".getBytes(CharEncoding.UTF_8);
+        System.arraycopy(extra, 0, content, content.length - 4, 4);
+
+        InputStream in = new ShortReadInputStream(new ByteArrayInputStream(content));
+        Frame frame = Frame.readFromStream(in);
+
+        assertArrayEquals(payload, frame.getPayloadObjects().get(0).getContent());
+        byte[] remaining = new byte[4];
+        assertEquals(4, in.read(remaining, 0, 4));
+        assertTrue(Arrays.equals(extra, remaining));
+    }
+
+    // Returns at most 1000 bytes per read, like a socket under load
+    private static class ShortReadInputStream extends FilterInputStream {
+        public ShortReadInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1000));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.apache.commons.lang3.CharEncoding;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameEncoderTest {
+
+    private static String encodedString(FrameEncoder encoder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out);
+        return out.toString(CharEncoding.UTF_8);
+    }
+
+    @Test
+    public void testEncodeKvPairs() throws IOException {
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.begin(Command.PUBLISH, 1600);
+        encoder.addKVPair("uri", "scratch.ns/f\u00f6\u00f6");
+        encoder.addKVPair("persist", false);
+        encoder.addKVPairMillis("expirydelta", 3600000);
+        encoder.addKVPair("ttl", 7);
+        encoder.finish();
+
+        String expectedFrameStr = "publ 0000000000 0000001600\n" +
+                "kv uri 16\n" +
+                "scratch.ns/f\u00f6\u00f6\n" +
+                "kv persist 5\n" +
+                "false\n" +
+                "kv expirydelta 9\n" +
+                "3600000ms\n" +
+                "kv ttl 1\n" +
+                "7\n" +
+                "end\n";
+        assertEquals(expectedFrameStr, encodedString(encoder));
+    }
+
+    @Test
+    public void testEncoderReuseAndGrowth() throws IOException {
+        FrameEncoder encoder = new FrameEncoder(32, true);
+        byte[] content = new byte[10000];
+        PayloadObject po = new PayloadObject(new PayloadObject.Type(new byte[]{64, 0, 0, 0}), content);
+        encoder.begin(Command.PERSIST, 1);
+        encoder.addPayloadObject(po);
+        ByteBuffer buf = encoder.finish();
+
+        Frame expected = new Frame.Builder(Command.PERSIST, 1).addPayloadObject(po).build();
+        assertEquals(expected.encodedLength(), buf.remaining());
+
+        encoder.begin(Command.SUBSCRIBE, -42);
+        encoder.finish();
+        assertEquals("subs 0000000000 -000000042\nend\n", encodedString(encoder));
+    }
+
+    @Test
+    public void testEncodedLengthMatchesFormat() {
+        int[] numbers = {0, 1, 9, 10, 99, 410, 16909060, Integer.MAX_VALUE};
+        for (int number : numbers) {
+            PayloadObject.Type numType = new PayloadObject.Type(number);
+            assertEquals(numType.toString().length(), numType.encodedLength());
+            assertEquals(Integer.toString(number).length(), FrameEncoder.decimalLength(number));
+        }
+        PayloadObject.Type octetType = new PayloadObject.Type(new byte[]{64, 0, 100, 7});
+        assertEquals(octetType.toString().length(), octetType.encodedLength());
+        assertEquals(Long.toString(Long.MIN_VALUE).length(), FrameEncoder.decimalLength(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testTemplateMatchesDirectEncoding() throws IOException {
+        PayloadObject po = new PayloadObject(new PayloadObject.Type(new byte[]{64, 0, 0, 0}), new byte[]{1, 2, 3});
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.begin(Command.PUBLISH, 0);
+        encoder.addKVPair("uri", "scratch.ns/demo");
+        encoder.addKVPair("persist", false);
+        byte[] template = encoder.contents();
+
+        encoder.begin(Command.PUBLISH, 987654);
+        encoder.addKVPair("uri", "scratch.ns/demo");
+        encoder.addKVPair("persist", false);
+        encoder.addPayloadObject(po);
+        encoder.finish();
+        String expected = encodedString(encoder);
+
+        encoder.begin(template, 987654);
+        encoder.addPayloadObject(po);
+        encoder.finish();
+        assertEquals(expected, encodedString(encoder));
+    }
+}
@@ -9,6 +9,8 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class FrameTest {
@@ -67,6 +69,32 @@ public class FrameTest {
         assertTrue(frame.getPayloadObjects().isEmpty());
     }
 
+    @Test
+    public void testDecodedFrameLookup() throws IOException {
+        String frameStr = "rslt 0000000000 0000000410\n" +
+                "kv uri 11\n" +
+                "scratch.ns/\n" +
+                "kv testKey 9\n" +
+                "testValue\n" +
+                "kv unpack 4\n" +
+                "TRUE\n" +
+                "kv uri 3\n" +
+                "foo\n" +
+                "end\n";
+        byte[] frameContent = frameStr.getBytes(CharEncoding.UTF_8);
+        Frame frame = Frame.readFromStream(new ByteArrayInputStream(frameContent));
+
+        assertEquals("scratch.ns/", frame.getFirstValueAsString("uri"));
+        assertEquals("testValue", frame.getFirstValueAsString("testKey"));
+        assertEquals("scratch.ns/", new String(frame.getFirstValue("uri"), CharEncoding.UTF_8));
+        assertTrue(frame.getFirstValueAsBoolean("unpack", false));
+        assertFalse(frame.getFirstValueAsBoolean("finished", false));
+        assertNull(frame.getFirstValueAsString("from"));
+        assertNull(frame.getFirstValue("missingKey"));
+        assertEquals(4, frame.getKVPairs().size());
+        assertEquals("uri", frame.getKVPairs().get(3).getKey());
+    }
+
     @Test
     public void testReadPoFrame() throws IOException {
         String frameStr = "publ 0000000059 0000000410\n" +
@@ -0,0 +1,107 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void testExpiryAndCancellation() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8);
+        try {
+            final int count = 1000;
+            final CountDownLatch expired = new CountDownLatch(count / 2);
+            final AtomicInteger cancelledRan = new AtomicInteger();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                // Deadlines span several rotations of the 8-bucket wheel
+                if (i % 2 == 0) {
+                    timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            expired.countDown();
+                        }
+                    }, 20 + i % 100, TimeUnit.MILLISECONDS);
+                } else {
+                    HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            cancelledRan.incrementAndGet();
+                        }
+                    }, 20 + i % 100, TimeUnit.MILLISECONDS);
+                    assertTrue(timeout.cancel());
+                    assertFalse(timeout.cancel());
+                    assertTrue(timeout.isCancelled());
+                }
+            }
+            assertTrue(expired.await(5, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+            Thread.sleep(150);
+            assertEquals(0, cancelledRan.get());
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void testNotEarly() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 4);
+        try {
+            final CountDownLatch expired = new CountDownLatch(1);
+            final long[] firedAt = new long[1];
+            long start = System.nanoTime();
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    firedAt[0] = System.nanoTime();
+                    expired.countDown();
+                }
+            }, 120, TimeUnit.MILLISECONDS);
+            assertTrue(expired.await(5, TimeUnit.SECONDS));
+            assertTrue(firedAt[0] - start >= TimeUnit.MILLISECONDS.toNanos(120));
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void testFailingTaskIsReportedAndTimerContinues() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8);
+        try {
+            final AtomicReference<Throwable> reported = new AtomicReference<Throwable>();
+            final RuntimeException failure = new IllegalStateException("Task failed");
+            final CountDownLatch laterRan = new CountDownLatch(1);
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Thread.currentThread().setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                        @Override
+                        public void uncaughtException(Thread thread, Throwable e) {
+                            reported.set(e);
+                        }
+                    });
+                    throw failure;
+                }
+            }, 10, TimeUnit.MILLISECONDS);
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    laterRan.countDown();
+                }
+            }, 50, TimeUnit.MILLISECONDS);
+            assertTrue(laterRan.await(5, TimeUnit.SECONDS));
+            assertSame(failure, reported.get());
+        } finally {
+            timer.stop();
+        }
+    }
+}
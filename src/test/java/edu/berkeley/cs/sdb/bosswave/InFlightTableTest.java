@@ -0,0 +1,82 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightTableTest {
+    private static final ResponseHandler HANDLER = new ResponseHandler() {
+        @Override
+        public void onResponseReceived(BosswaveResponse response) {
+        }
+    };
+
+    @Test
+    public void testRegisterAndRemove() {
+        InFlightTable table = new InFlightTable(4, 1);
+        InFlightTable.Entry entry = table.register(HANDLER, null, null, true);
+        assertSame(entry, table.get(entry.seqNo));
+        assertNull(table.get(entry.seqNo + 4));
+        assertSame(HANDLER, entry.takeResponseHandler());
+        assertNull(entry.takeResponseHandler());
+        assertFalse(entry.expectsResults());
+
+        assertSame(entry, table.remove(entry.seqNo));
+        assertNull(table.get(entry.seqNo));
+        assertNull(table.remove(entry.seqNo));
+        assertFalse(table.remove(entry));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testSkipsOccupiedSlots() {
+        InFlightTable table = new InFlightTable(4, 1);
+        // A long-lived entry, such as a subscription, keeps its slot while later requests come and go
+        InFlightTable.Entry subscription = table.register(HANDLER, null, null, true);
+        for (int i = 0; i < 100; i++) {
+            InFlightTable.Entry entry = table.register(HANDLER, null, null, true);
+            assertNotEquals(subscription.seqNo & 3, entry.seqNo & 3);
+            assertNotEquals(subscription.seqNo & 3, table.nextSequenceNumber() & 3);
+            assertTrue(table.remove(entry));
+        }
+        assertSame(subscription, table.get(subscription.seqNo));
+        assertEquals(4, table.capacity());
+    }
+
+    @Test
+    public void testGrowth() {
+        InFlightTable table = new InFlightTable(2, 1);
+        List<InFlightTable.Entry> entries = new ArrayList<InFlightTable.Entry>();
+        Set<Integer> seqNos = new HashSet<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            InFlightTable.Entry entry = table.register(HANDLER, null, null, true);
+            entries.add(entry);
+            assertTrue(seqNos.add(entry.seqNo));
+        }
+        assertEquals(1000, table.size());
+        for (InFlightTable.Entry entry : entries) {
+            assertSame(entry, table.get(entry.seqNo));
+        }
+    }
+
+    @Test
+    public void testSequenceNumbersStayPositive() {
+        InFlightTable table = new InFlightTable(4, Integer.MAX_VALUE - 1);
+        for (int i = 0; i < 4; i++) {
+            InFlightTable.Entry entry = table.register(HANDLER, null, null, true);
+            assertTrue(entry.seqNo >= 0);
+            assertSame(entry, table.get(entry.seqNo));
+            table.remove(entry);
+        }
+    }
+}
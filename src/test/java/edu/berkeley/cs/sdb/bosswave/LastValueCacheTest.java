@@ -0,0 +1,74 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class LastValueCacheTest {
+    private static final long STALENESS = 1000;
+    private static final PayloadObject.Type TYPE = new PayloadObject.Type(new byte[]{64, 0, 0, 0});
+
+    private static BosswaveResult result(String uri, int payloadSize) {
+        PayloadObject po = new PayloadObject(TYPE, new byte[payloadSize]);
+        return new BosswaveResult("from", uri, Collections.<RoutingObject>emptyList(),
+                                  Collections.singletonList(po));
+    }
+
+    @Test
+    public void testServesLatestValue() {
+        LastValueCache cache = new LastValueCache(1 << 20, STALENESS);
+        BosswaveResult first = result("a/b", 10);
+        BosswaveResult second = result("a/b", 10);
+        cache.put(first, 0);
+        cache.put(second, 10);
+        assertSame(second, cache.get("a/b", 20));
+        assertNull(cache.get("a/c", 20));
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getEntryCount());
+        assertEquals(LastValueCache.estimateSize(second), stats.getSizeBytes());
+    }
+
+    @Test
+    public void testStaleValueIsNotServed() {
+        LastValueCache cache = new LastValueCache(1 << 20, STALENESS);
+        cache.put(result("a/b", 10), 0);
+        assertNull(cache.get("a/b", STALENESS + 1));
+        assertEquals(0, cache.stats().getEntryCount());
+        assertEquals(0, cache.stats().getSizeBytes());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        long entrySize = LastValueCache.estimateSize(result("a/0", 100));
+        LastValueCache cache = new LastValueCache(entrySize * 3, STALENESS);
+        cache.put(result("a/0", 100), 0);
+        cache.put(result("a/1", 100), 0);
+        cache.put(result("a/2", 100), 0);
+        // Touch a/0 so that a/1 is the least recently used
+        cache.get("a/0", 0);
+        cache.put(result("a/3", 100), 0);
+
+        assertNull(cache.get("a/1", 0));
+        assertEquals("a/0", cache.get("a/0", 0).getUri());
+        assertEquals("a/2", cache.get("a/2", 0).getUri());
+        assertEquals("a/3", cache.get("a/3", 0).getUri());
+        assertEquals(1, cache.stats().getEvictions());
+        assertEquals(entrySize * 3, cache.stats().getSizeBytes());
+    }
+
+    @Test
+    public void testOversizedValueIsNotCached() {
+        LastValueCache cache = new LastValueCache(1024, STALENESS);
+        cache.put(result("a/b", 10), 0);
+        cache.put(result("a/b", 4096), 0);
+        assertNull(cache.get("a/b", 0));
+        assertEquals(0, cache.stats().getSizeBytes());
+    }
+}
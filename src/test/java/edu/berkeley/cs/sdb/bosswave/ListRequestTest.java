@@ -0,0 +1,36 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ListRequestTest {
+
+    @Test
+    public void testEquality() {
+        byte[] ro = {1, 2, 3};
+        ListRequest a = new ListRequest.Builder("scratch.ns/a").setAutoChain(true)
+                .addRoutingObject(new RoutingObject(5, ro)).build();
+        ListRequest b = new ListRequest.Builder("scratch.ns/a").setAutoChain(true)
+                .addRoutingObject(new RoutingObject(5, ro.clone())).build();
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        assertNotEquals(a, new ListRequest.Builder("scratch.ns/b").setAutoChain(true)
+                .addRoutingObject(new RoutingObject(5, ro)).build());
+        assertNotEquals(a, new ListRequest.Builder("scratch.ns/a")
+                .addRoutingObject(new RoutingObject(5, ro)).build());
+    }
+
+    @Test
+    public void testWithUri() {
+        ListRequest a = new ListRequest.Builder("scratch.ns/a").setPrimaryAccessChain("pac").setExiryDelta(1000)
+                .build();
+        ListRequest child = a.withUri("scratch.ns/a/b");
+        assertEquals("scratch.ns/a/b", child.getUri());
+        assertEquals("pac", child.getPrimaryAccessChain());
+        assertEquals(Long.valueOf(1000), child.getExpiryDelta());
+        assertEquals(a, child.withUri("scratch.ns/a"));
+    }
+}
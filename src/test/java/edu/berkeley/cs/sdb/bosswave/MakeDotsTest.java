@@ -0,0 +1,136 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MakeDotsTest {
+    private static final int MAX_IN_FLIGHT = 3;
+    // Long enough for a stray frame to arrive, short enough to keep the tests quick
+    private static final long QUIET_MILLIS = 200;
+
+    private static class Progress implements ProgressListener {
+        final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> totals = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void onProgress(int completed, int total) {
+            this.completed.add(completed);
+            totals.add(total);
+        }
+
+        // The completion counts reported, which may arrive out of order
+        List<Integer> sortedCompleted() {
+            List<Integer> sorted = new ArrayList<Integer>(completed);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    // An agent that answers nothing on its own; the tests answer in whatever order they choose
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) {
+            }
+        });
+        client = agent.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    @Test
+    public void testOutOfOrderAnswersKeepRequestOrder() throws Exception {
+        Progress progress = new Progress();
+        CompletableFuture<List<CreatedDot>> future = client.makeDots(requests(5), MAX_IN_FLIGHT, progress);
+
+        // Only a window's worth of requests goes out before any is answered
+        List<Frame> sent = agent.await(Command.MAKE_DOT, MAX_IN_FLIGHT);
+        Thread.sleep(QUIET_MILLIS);
+        assertEquals(MAX_IN_FLIGHT, agent.received(Command.MAKE_DOT).size());
+
+        // Answer the window backwards, then the rest as they arrive, also backwards
+        for (int i = MAX_IN_FLIGHT - 1; i >= 0; i--) {
+            answer(sent.get(i));
+        }
+        sent = agent.await(Command.MAKE_DOT, 5);
+        answer(sent.get(4));
+        answer(sent.get(3));
+
+        List<CreatedDot> dots = future.get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(5, dots.size());
+        for (int i = 0; i < dots.size(); i++) {
+            assertEquals("hash-vk" + i, dots.get(i).getHash());
+            assertArrayEquals(("vk" + i).getBytes("US-ASCII"), dots.get(i).getDot().getContent());
+        }
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), progress.sortedCompleted());
+        assertEquals(Collections.nCopies(5, 5), progress.totals);
+    }
+
+    @Test
+    public void testFailedDotFailsBatch() throws Exception {
+        Progress progress = new Progress();
+        CompletableFuture<List<CreatedDot>> future = client.makeDots(requests(5), MAX_IN_FLIGHT, progress);
+        List<Frame> sent = agent.await(Command.MAKE_DOT, MAX_IN_FLIGHT);
+
+        agent.respond(sent.get(1), "error", "reason", "no such entity");
+        try {
+            future.get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("The batch succeeded despite a rejected DOT");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BosswaveException);
+            assertEquals("no such entity", ((BosswaveException) e.getCause()).getResponse().getReason());
+        }
+
+        // DOTs already in flight are still made and reported, but no further requests are sent
+        answer(sent.get(0));
+        answer(sent.get(2));
+        long deadline = System.currentTimeMillis() + ScriptedAgent.AWAIT_MILLIS;
+        while (progress.completed.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList(1, 2), progress.sortedCompleted());
+        Thread.sleep(QUIET_MILLIS);
+        assertEquals(MAX_IN_FLIGHT, agent.received(Command.MAKE_DOT).size());
+    }
+
+    private static List<MakeDotRequest> requests(int count) {
+        List<MakeDotRequest> requests = new ArrayList<MakeDotRequest>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new MakeDotRequest.Builder("vk" + i).build());
+        }
+        return requests;
+    }
+
+    // Makes the DOT a request asked for, with a hash and content derived from its recipient
+    private void answer(Frame makeDot) throws IOException {
+        String to = makeDot.getFirstValueAsString("to");
+        PayloadObject dot = new PayloadObject(new PayloadObject.Type(new byte[]{0, 0, 0, 32}),
+                                              to.getBytes("US-ASCII"));
+        agent.send(new Frame.Builder(Command.RESPONSE, makeDot.getSeqNo()).addKVPair("status", "okay")
+                                                                          .addKVPair("hash", "hash-" + to)
+                                                                          .addPayloadObject(dot).build());
+    }
+}
@@ -0,0 +1,90 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MpscQueueTest {
+
+    private static class Item extends MpscQueue.Node {
+        final int producer;
+        final int value;
+
+        Item(int producer, int value) {
+            this.producer = producer;
+            this.value = value;
+        }
+    }
+
+    @Test
+    public void testFifo() {
+        MpscQueue<Item> queue = new MpscQueue<Item>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        Item first = new Item(0, 1);
+        Item second = new Item(0, 2);
+        queue.offer(first);
+        queue.offer(second);
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+
+        // Items can be offered again once polled
+        queue.offer(first);
+        assertSame(first, queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final int producers = 4;
+        final int itemsPerProducer = 100000;
+        final MpscQueue<Item> queue = new MpscQueue<Item>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < itemsPerProducer; i++) {
+                        queue.offer(new Item(producer, i));
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        int[] lastSeen = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            lastSeen[p] = -1;
+        }
+        int received = 0;
+        while (received < producers * itemsPerProducer) {
+            Item item = queue.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            // Items from each producer arrive in the order they were offered
+            assertEquals(lastSeen[item.producer] + 1, item.value);
+            lastSeen[item.producer] = item.value;
+            received++;
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,161 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NamespaceCrawlerTest {
+    private static final int MAX_IN_FLIGHT = 2;
+    // How long the agent sits on each LIST, so that the client has time to fill its window
+    private static final long ANSWER_DELAY_MILLIS = 20;
+
+    // The namespace the agent serves; URIs not listed here have no children
+    private static final Map<String, List<String>> NAMESPACE = new HashMap<String, List<String>>();
+
+    static {
+        NAMESPACE.put("scratch.ns", Arrays.asList("scratch.ns/a", "scratch.ns/b", "scratch.ns/c", "scratch.ns/d"));
+        NAMESPACE.put("scratch.ns/a", Arrays.asList("scratch.ns/a/1", "scratch.ns/a/2", "scratch.ns/a/3"));
+        // A URI reported twice is still listed once
+        NAMESPACE.put("scratch.ns/b", Arrays.asList("scratch.ns/b/1", "scratch.ns/a/1", "scratch.ns/b/1"));
+    }
+
+    private final BlockingQueue<Frame> pending = new LinkedBlockingQueue<Frame>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+    private Thread answerer;
+
+    // The agent's thread only counts the LISTs; another thread answers them, one at a time and after a delay
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) {
+                if (frame.getCommand() == Command.LIST) {
+                    int n = inFlight.incrementAndGet();
+                    int max;
+                    while (n > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, n)) {
+                        // Retry
+                    }
+                    pending.add(frame);
+                }
+            }
+        });
+        client = agent.connect();
+        answerer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Frame list = pending.take();
+                        Thread.sleep(ANSWER_DELAY_MILLIS);
+                        answer(list);
+                    }
+                } catch (InterruptedException e) {
+                    // The test is over
+                } catch (IOException e) {
+                    // The connection is closed
+                }
+            }
+        }, "list-answerer");
+        answerer.setDaemon(true);
+        answerer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        answerer.interrupt();
+        client.close();
+        agent.close();
+    }
+
+    private void answer(Frame list) throws IOException {
+        String uri = list.getFirstValueAsString("uri");
+        if (failing.contains(uri)) {
+            inFlight.decrementAndGet();
+            agent.respond(list, "error", "reason", "no permission");
+            return;
+        }
+        agent.respond(list, "okay");
+        List<String> children = NAMESPACE.get(uri);
+        if (children != null) {
+            for (String child : children) {
+                agent.sendResult(list.getSeqNo(), false, "child", child);
+            }
+        }
+        // The client may send its next LIST as soon as it sees the end of this one
+        inFlight.decrementAndGet();
+        agent.sendResult(list.getSeqNo(), true);
+    }
+
+    @Test
+    public void testCrawlBuildsTreeWithinWindow() throws Exception {
+        NamespaceTree tree = client.crawl(new ListRequest.Builder("scratch.ns").build(), MAX_IN_FLIGHT)
+                                   .get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertEquals("scratch.ns", tree.getRootUri());
+        assertEquals(NAMESPACE.get("scratch.ns"), tree.getChildren("scratch.ns"));
+        assertEquals(NAMESPACE.get("scratch.ns/a"), tree.getChildren("scratch.ns/a"));
+        assertEquals(Arrays.asList("scratch.ns/b/1", "scratch.ns/a/1"), tree.getChildren("scratch.ns/b"));
+        assertTrue(tree.getChildren("scratch.ns/c").isEmpty());
+        assertTrue(tree.getChildren("scratch.ns/a/1").isEmpty());
+        assertEquals(Arrays.asList("scratch.ns", "scratch.ns/a", "scratch.ns/b", "scratch.ns/c", "scratch.ns/d",
+                                   "scratch.ns/a/1", "scratch.ns/a/2", "scratch.ns/a/3", "scratch.ns/b/1"),
+                     new ArrayList<String>(tree.getUris()));
+
+        // Every URI is listed exactly once, with the window full but never overfull
+        assertEquals(tree.size(), agent.received(Command.LIST).size());
+        assertEquals(MAX_IN_FLIGHT, maxInFlight.get());
+    }
+
+    @Test
+    public void testRepeatedCrawlUsesCachedTree() throws Exception {
+        ListRequest request = new ListRequest.Builder("scratch.ns").build();
+        NamespaceTree first = client.crawl(request, MAX_IN_FLIGHT).get(ScriptedAgent.AWAIT_MILLIS,
+                                                                        TimeUnit.MILLISECONDS);
+        NamespaceTree second = client.crawl(request, MAX_IN_FLIGHT).get(ScriptedAgent.AWAIT_MILLIS,
+                                                                         TimeUnit.MILLISECONDS);
+        assertTrue(first == second);
+        assertEquals(first.size(), agent.received(Command.LIST).size());
+    }
+
+    @Test
+    public void testFailedListFailsCrawl() throws Exception {
+        failing.add("scratch.ns/a");
+        ListRequest request = new ListRequest.Builder("scratch.ns").build();
+        try {
+            client.crawl(request, MAX_IN_FLIGHT).get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("Crawl succeeded despite a failed LIST");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BosswaveException);
+        }
+
+        // A failed crawl isn't cached
+        failing.clear();
+        NamespaceTree tree = client.crawl(request, MAX_IN_FLIGHT).get(ScriptedAgent.AWAIT_MILLIS,
+                                                                       TimeUnit.MILLISECONDS);
+        assertFalse(tree.getChildren("scratch.ns/a").isEmpty());
+    }
+}
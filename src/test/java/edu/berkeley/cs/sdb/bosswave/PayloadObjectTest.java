@@ -5,8 +5,12 @@ import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class PayloadObjectTest {
 
@@ -51,4 +55,29 @@ public class PayloadObjectTest {
         String actualOutput = out.toString(CharEncoding.UTF_8);
         assertEquals(expectedOutput, actualOutput);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testContentViews() throws IOException {
+        byte[] buf = "xxtestPayloadObjectxx".getBytes(CharEncoding.UTF_8);
+        PayloadObject po = new PayloadObject(new PayloadObject.Type(410), buf, 2, 17);
+
+        ByteBuffer view = po.getContentBuffer();
+        assertTrue(view.isReadOnly());
+        assertEquals(0, view.position());
+        assertEquals(17, view.remaining());
+        assertEquals('t', view.get(0));
+
+        byte[] streamed = new byte[32];
+        InputStream in = po.getContentStream();
+        assertEquals(17, in.read(streamed));
+        assertEquals("testPayloadObject", new String(streamed, 0, 17, CharEncoding.UTF_8));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        po.writeTo(Channels.newChannel(out));
+        assertEquals("testPayloadObject", out.toString(CharEncoding.UTF_8));
+
+        // Views compare equal to a copied payload object
+        PayloadObject copy = new PayloadObject(new PayloadObject.Type(410), po.getContent());
+        assertEquals(copy, po);
+    }
+}
@@ -0,0 +1,142 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PerKeySerialExecutorTest {
+    // Stands in for a virtual-thread-per-task executor
+    private static final Executor THREAD_PER_TASK = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            new Thread(command).start();
+        }
+    };
+
+    @Test
+    public void testOrderedPerKey() throws InterruptedException {
+        final int keys = 20;
+        final int tasksPerKey = 1000;
+        PerKeySerialExecutor executor = new PerKeySerialExecutor(THREAD_PER_TASK);
+
+        final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+        for (int k = 0; k < keys; k++) {
+            seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                final int key = k;
+                final int value = i;
+                executor.execute(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        seen.get(key).add(value);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        for (List<Integer> values : seen) {
+            assertEquals(tasksPerKey, values.size());
+            for (int i = 0; i < tasksPerKey; i++) {
+                assertEquals(i, (int) values.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testBlockedKeyDoesNotDelayOthers() throws InterruptedException {
+        PerKeySerialExecutor executor = new PerKeySerialExecutor(THREAD_PER_TASK);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch othersRan = new CountDownLatch(100);
+
+        executor.execute(0, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        for (int key = 1; key <= 100; key++) {
+            executor.execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    othersRan.countDown();
+                }
+            });
+        }
+        assertTrue(othersRan.await(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        // Queues are discarded once they drain
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.activeKeys() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.activeKeys());
+    }
+
+    @Test
+    public void testFailingTaskIsReportedAndKeyContinues() throws InterruptedException {
+        final AtomicReference<Throwable> reported = new AtomicReference<Throwable>();
+        PerKeySerialExecutor executor = new PerKeySerialExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Thread t = new Thread(command);
+                t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread thread, Throwable e) {
+                        reported.set(e);
+                    }
+                });
+                t.start();
+            }
+        });
+        final RuntimeException failure = new IllegalStateException("Handler failed");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch nextRan = new CountDownLatch(1);
+
+        // Holds the key's thread until both tasks are queued behind it
+        executor.execute(1, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.execute(1, new Runnable() {
+            @Override
+            public void run() {
+                throw failure;
+            }
+        });
+        executor.execute(1, new Runnable() {
+            @Override
+            public void run() {
+                nextRan.countDown();
+            }
+        });
+        release.countDown();
+        assertTrue(nextRan.await(5, TimeUnit.SECONDS));
+        assertSame(failure, reported.get());
+    }
+}
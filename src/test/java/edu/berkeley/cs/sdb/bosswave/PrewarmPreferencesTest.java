@@ -0,0 +1,113 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PrewarmPreferencesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    // Accepts every preference except those whose content starts with 'x'
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) throws IOException {
+                List<PayloadObject> pos = frame.getPayloadObjects();
+                if (!pos.isEmpty() && pos.get(0).getContent()[0] == 'x') {
+                    agent.respond(frame, "error", "reason", "rejected");
+                } else {
+                    agent.respond(frame, "okay");
+                }
+            }
+        });
+        client = agent.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    private void write(String name, int roNum, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(folder.newFile(name));
+        try {
+            out.write(roNum);
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testDirectorySendsDotsAndChains() throws Exception {
+        write("1-dot", POAllocations.PONumROAccessDOT, "dot");
+        write("2-entity", POAllocations.PONumROEntity, "entity");
+        write("3-chain", POAllocations.PONumROAccessDChain, "xchain");
+        write("4-pdot", POAllocations.PONumROPermissionDOT, "pdot");
+        write("5-pchain", POAllocations.PONumROPermissionDChain, "pchain");
+        folder.newFolder("6-subdirectory");
+
+        List<BosswaveResponse> responses = client.prewarmPreferences(folder.getRoot())
+                                                 .get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+
+        // One response per DOT or chain, in file order; the rejected chain doesn't stop the rest
+        List<String> statuses = new ArrayList<String>();
+        for (BosswaveResponse response : responses) {
+            statuses.add(response.getStatus());
+        }
+        assertEquals(Arrays.asList("okay", "error", "okay", "okay"), statuses);
+
+        List<Frame> dots = agent.received(Command.ADD_PREF_DOT);
+        assertEquals(2, dots.size());
+        assertPreference(POAllocations.PONumROAccessDOT, "dot", dots.get(0));
+        assertPreference(POAllocations.PONumROPermissionDOT, "pdot", dots.get(1));
+        List<Frame> chains = agent.received(Command.ADD_PREF_CHAIN);
+        assertEquals(2, chains.size());
+        assertPreference(POAllocations.PONumROAccessDChain, "xchain", chains.get(0));
+        assertPreference(POAllocations.PONumROPermissionDChain, "pchain", chains.get(1));
+        // The entity isn't sent in any form
+        assertTrue(agent.received(Command.PUT_ENTITY).isEmpty());
+    }
+
+    @Test
+    public void testCollectionRejectsOtherObjects() {
+        RoutingObject entity = new RoutingObject(POAllocations.PONumROEntity, new byte[]{1});
+        try {
+            client.prewarmPreferences(Collections.singletonList(entity), 4);
+            fail("An entity was accepted as a preference");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    // Checks that a frame carries exactly one payload object, typed by the routing object number
+    private static void assertPreference(int roNum, String content, Frame frame) throws IOException {
+        assertTrue(frame.getRoutingObjects().isEmpty());
+        assertEquals(1, frame.getPayloadObjects().size());
+        PayloadObject po = frame.getPayloadObjects().get(0);
+        assertEquals(new PayloadObject.Type(new byte[]{0, 0, 0, (byte) roNum}), po.getType());
+        assertArrayEquals(content.getBytes("US-ASCII"), po.getContent());
+    }
+}
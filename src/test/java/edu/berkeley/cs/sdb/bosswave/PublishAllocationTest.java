@@ -0,0 +1,144 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+
+public class PublishAllocationTest {
+    private static final int WARMUP_PUBLISHES = 20000;
+    private static final int MEASURED_PUBLISHES = 5000;
+    // A sensor publishing a reading every millisecond
+    private static final long STEADY_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int STEADY_PUBLISHES = 1000;
+    // Warming up in bursts longer than the client's queue for the writer, each followed by paced publishes,
+    // compiles every path that the measured publishes take: waiting for the writer, waking it, and pacing
+    private static final int WARMUP_BURST = 200;
+    private static final int PACED_WARMUP_PUBLISHES = 10;
+    // Warmup goes on until this many rounds pass without the JIT compiling anything, since code that is replaced
+    // mid-run allocates the objects that the optimized code had eliminated
+    private static final int QUIET_WARMUP_ROUNDS = 10;
+    private static final int MAX_WARMUP_ROUNDS = 2000;
+
+    private ServerSocket server;
+    private BosswaveClient client;
+
+    // Acts as an agent that greets the client and then discards everything it is sent
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        Thread agent = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    OutputStream out = socket.getOutputStream();
+                    new Frame.Builder(Command.HELLO, 0).build().writeToStream(out);
+                    out.flush();
+                    InputStream in = socket.getInputStream();
+                    byte[] buf = new byte[64 * 1024];
+                    while (in.read(buf) >= 0) {
+                        // Discard
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // The test is over
+                }
+            }
+        });
+        agent.setDaemon(true);
+        agent.start();
+        client = new BosswaveClient("localhost", server.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testSteadyRatePublishDoesNotAllocate() throws IOException {
+        assertPublishesDoNotAllocate(STEADY_PUBLISHES, STEADY_INTERVAL_NANOS);
+    }
+
+    // Outpaces the writer, so that publishes wait for it rather than taking more encoders
+    @Test
+    public void testBackToBackPublishDoesNotAllocate() throws IOException {
+        assertPublishesDoNotAllocate(MEASURED_PUBLISHES, 0);
+    }
+
+    private void assertPublishesDoNotAllocate(int count, long intervalNanos) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        MutablePublishRequest request = new MutablePublishRequest("scratch.ns/sensor");
+        PayloadObject.Type type = new PayloadObject.Type(POAllocations.PODFDouble);
+        byte[] payload = new byte[8];
+
+        warmUp(request, type, payload);
+
+        long id = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(id);
+        long after = allocations.getThreadAllocatedBytes(id);
+        long measurementCost = after - before;
+
+        before = allocations.getThreadAllocatedBytes(id);
+        publish(request, type, payload, count, intervalNanos);
+        after = allocations.getThreadAllocatedBytes(id);
+        assertEquals("Bytes allocated over " + count + " publishes", 0, after - before - measurementCost);
+    }
+
+    // Also grows the pool to as many encoders as can be in use at once
+    private void warmUp(MutablePublishRequest request, PayloadObject.Type type, byte[] payload) throws IOException {
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean monitored = (compiler != null && compiler.isCompilationTimeMonitoringSupported());
+        long compilationTime = -1;
+        int quietRounds = 0;
+        for (int round = 0; round < MAX_WARMUP_ROUNDS; round++) {
+            publish(request, type, payload, WARMUP_BURST, 0);
+            publish(request, type, payload, PACED_WARMUP_PUBLISHES, STEADY_INTERVAL_NANOS);
+            long time = (monitored ? compiler.getTotalCompilationTime() : 0);
+            quietRounds = (time == compilationTime ? quietRounds + 1 : 0);
+            compilationTime = time;
+            if (round * WARMUP_BURST >= WARMUP_PUBLISHES && quietRounds >= QUIET_WARMUP_ROUNDS) {
+                break;
+            }
+        }
+    }
+
+    private void publish(MutablePublishRequest request, PayloadObject.Type type, byte[] payload, int count,
+                         long intervalNanos) throws IOException {
+        long next = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < payload.length; j++) {
+                payload[j] = (byte) (i >> j);
+            }
+            request.reset("scratch.ns/sensor").setExpiryDelta(1000).addPayloadObject(type, payload, 0, payload.length);
+            client.publish(request, null);
+            if (intervalNanos > 0) {
+                next += intervalNanos;
+                long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryFutureTest {
+
+    private static BosswaveResult result(String uri) {
+        return new BosswaveResult("from", uri, Collections.<RoutingObject>emptyList(),
+                Collections.<PayloadObject>emptyList());
+    }
+
+    @Test
+    public void testCollectsUntilFinished() throws Exception {
+        QueryFuture future = new QueryFuture();
+        future.onResponseReceived(new BosswaveResponse("okay", null));
+        future.onResultReceived(result("a/b"));
+        future.onResultReceived(result("a/c"));
+        assertFalse(future.isDone());
+
+        future.onFinished();
+        List<BosswaveResult> results = future.get();
+        assertEquals(2, results.size());
+        assertEquals("a/b", results.get(0).getUri());
+        assertEquals("a/c", results.get(1).getUri());
+    }
+
+    @Test
+    public void testErrorResponse() throws InterruptedException {
+        BosswaveResponse response = new BosswaveResponse("error", "no permission");
+        QueryFuture future = new QueryFuture();
+        future.onResponseReceived(response);
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            BosswaveException cause = (BosswaveException) e.getCause();
+            assertSame(response, cause.getResponse());
+        }
+
+        ResponseFuture responseFuture = new ResponseFuture();
+        responseFuture.onResponseReceived(response);
+        assertTrue(responseFuture.isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,109 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestPipelineTest {
+    // Holds each started request until the test completes it
+    private static class ManualStage implements RequestPipeline.Stage<Integer, String> {
+        final List<CompletableFuture<String>> started = new ArrayList<CompletableFuture<String>>();
+
+        @Override
+        public CompletableFuture<String> start(Integer item) {
+            CompletableFuture<String> future = new CompletableFuture<String>();
+            started.add(future);
+            return future;
+        }
+    }
+
+    @Test
+    public void testBoundsRequestsInFlight() throws Exception {
+        ManualStage stage = new ManualStage();
+        CompletableFuture<List<String>> result =
+                new RequestPipeline<Integer, String>(Arrays.asList(0, 1, 2, 3, 4), 2, stage, null).run();
+        assertEquals(2, stage.started.size());
+
+        // Completing out of order keeps the window full and the results in item order
+        stage.started.get(1).complete("1");
+        assertEquals(3, stage.started.size());
+        stage.started.get(0).complete("0");
+        stage.started.get(2).complete("2");
+        assertEquals(5, stage.started.size());
+        assertFalse(result.isDone());
+        stage.started.get(4).complete("4");
+        stage.started.get(3).complete("3");
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4"), result.get());
+    }
+
+    @Test
+    public void testImmediateCompletion() throws Exception {
+        final List<Integer> completed = new ArrayList<Integer>();
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < 10000; i++) {
+            items.add(i);
+        }
+        CompletableFuture<List<String>> result = new RequestPipeline<Integer, String>(items, 4,
+                new RequestPipeline.Stage<Integer, String>() {
+                    @Override
+                    public CompletableFuture<String> start(Integer item) {
+                        return CompletableFuture.completedFuture(item.toString());
+                    }
+                }, new RequestPipeline.Listener<String>() {
+                    @Override
+                    public void onCompleted(int index, String result) {
+                        completed.add(index);
+                    }
+                }).run();
+        assertEquals(10000, result.get().size());
+        assertEquals("9999", result.get().get(9999));
+        assertEquals(10000, completed.size());
+    }
+
+    @Test
+    public void testFailureStopsPipeline() throws Exception {
+        ManualStage stage = new ManualStage();
+        CompletableFuture<List<String>> result =
+                new RequestPipeline<Integer, String>(Arrays.asList(0, 1, 2, 3), 1, stage, null).run();
+        IOException failure = new IOException("failed");
+        stage.started.get(0).completeExceptionally(failure);
+        assertEquals(1, stage.started.size());
+        try {
+            result.get();
+            fail("Expected the pipeline to fail");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testStageThrows() throws Exception {
+        CompletableFuture<List<String>> result = new RequestPipeline<Integer, String>(Arrays.asList(0), 1,
+                new RequestPipeline.Stage<Integer, String>() {
+                    @Override
+                    public CompletableFuture<String> start(Integer item) throws IOException {
+                        throw new IOException("not connected");
+                    }
+                }, null).run();
+        assertTrue(result.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        CompletableFuture<List<String>> result = new RequestPipeline<Integer, String>(
+                Collections.<Integer>emptyList(), 1, new ManualStage(), null).run();
+        assertTrue(result.get().isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestTimeoutTest {
+    private static final long TIMEOUT_MS = 100;
+
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    // An agent that never answers
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) {
+            }
+        });
+        client = agent.connect();
+        client.setRequestTimeout(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    @Test
+    public void testFutureTimesOut() throws Exception {
+        assertTimedOut(client.publishAsync(new PublishRequest.Builder("scratch.ns/a").build()));
+    }
+
+    @Test
+    public void testPlainHandlerReceivesError() throws Exception {
+        final AtomicReference<BosswaveResponse> response = new AtomicReference<BosswaveResponse>();
+        final CountDownLatch responded = new CountDownLatch(1);
+        client.publish(new PublishRequest.Builder("scratch.ns/a").build(), new ResponseHandler() {
+            @Override
+            public void onResponseReceived(BosswaveResponse rsp) {
+                response.set(rsp);
+                responded.countDown();
+            }
+        });
+        assertTrue(responded.await(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals("error", response.get().getStatus());
+        assertEquals(BosswaveClient.TIMEOUT_REASON, response.get().getReason());
+    }
+
+    @Test
+    public void testSlowTimeoutHandlerDoesNotDelayOtherTimeouts() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        client.publish(new PublishRequest.Builder("scratch.ns/slow").build(), new SlowTimeoutHandler() {
+            @Override
+            public void onTimeout() {
+                threadName.set(Thread.currentThread().getName());
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(entered.await(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(threadName.get().equals("bosswave-timer"));
+
+        try {
+            // Requests made while the slow handler is still running time out as usual
+            assertTimedOut(client.publishAsync(new PublishRequest.Builder("scratch.ns/a").build()));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private abstract static class SlowTimeoutHandler implements ResponseHandler, TimeoutHandler {
+        @Override
+        public void onResponseReceived(BosswaveResponse response) {
+            fail("Unexpected response");
+        }
+    }
+
+    private static void assertTimedOut(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("Request succeeded without an agent");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
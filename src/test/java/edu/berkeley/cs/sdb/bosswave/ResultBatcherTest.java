@@ -0,0 +1,101 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResultBatcherTest {
+
+    private static class RecordingHandler implements BatchResultHandler {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+
+        @Override
+        public void onResultsReceived(List<BosswaveResult> results) {
+            List<String> uris = new ArrayList<String>();
+            for (BosswaveResult result : results) {
+                uris.add(result.getUri());
+            }
+            batches.add(uris);
+        }
+    }
+
+    private static BosswaveResult result(String uri) {
+        return new BosswaveResult("from", uri, Collections.<RoutingObject>emptyList(),
+                Collections.<PayloadObject>emptyList());
+    }
+
+    @Test
+    public void testSizeCapAndFlush() {
+        RecordingHandler handler = new RecordingHandler();
+        ResultBatcher batcher = new ResultBatcher(null, handler, 2, Long.MAX_VALUE);
+        batcher.onResultReceived(result("a"));
+        assertTrue(handler.batches.isEmpty());
+        batcher.onResultReceived(result("b"));
+        batcher.onResultReceived(result("c"));
+        assertEquals(1, handler.batches.size());
+
+        batcher.flushTask.run();
+        batcher.flush();
+        assertEquals(2, handler.batches.size());
+        assertEquals(2, handler.batches.get(0).size());
+        assertEquals("c", handler.batches.get(1).get(0));
+    }
+
+    @Test
+    public void testDelayCap() {
+        RecordingHandler handler = new RecordingHandler();
+        ResultBatcher batcher = new ResultBatcher(null, handler, 100, 0);
+        batcher.onResultReceived(result("a"));
+        batcher.onResultReceived(result("b"));
+        assertEquals(2, handler.batches.size());
+    }
+
+    @Test
+    public void testDelayCapWithoutFurtherResults() throws IOException, InterruptedException {
+        ScriptedAgent agent = new ScriptedAgent(ScriptedAgent.OKAY);
+        BosswaveClient client = agent.connect();
+        try {
+            final CountDownLatch delivered = new CountDownLatch(1);
+            final RecordingHandler handler = new RecordingHandler() {
+                @Override
+                public void onResultsReceived(List<BosswaveResult> results) {
+                    super.onResultsReceived(results);
+                    delivered.countDown();
+                }
+            };
+            ResultBatcher batcher = new ResultBatcher(client, handler, 100, 50);
+            batcher.onResultReceived(result("a"));
+            // The stream has gone quiet; the batch must still be handed over once it is old enough
+            assertTrue(delivered.await(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS));
+            synchronized (batcher) {
+                assertEquals(1, handler.batches.size());
+                assertEquals("a", handler.batches.get(0).get(0));
+            }
+        } finally {
+            client.close();
+            agent.close();
+        }
+    }
+
+    @Test
+    public void testExpiredTimerSkipsLaterBatch() {
+        RecordingHandler handler = new RecordingHandler();
+        ResultBatcher batcher = new ResultBatcher(null, handler, 2, Long.MAX_VALUE);
+        batcher.onResultReceived(result("a"));
+        batcher.onResultReceived(result("b"));
+        batcher.onResultReceived(result("c"));
+        // A timer armed for the first batch fires late; the second batch isn't old yet
+        batcher.flushExpired(0);
+        assertEquals(1, handler.batches.size());
+        batcher.flushExpired(1);
+        assertEquals(2, handler.batches.size());
+    }
+}
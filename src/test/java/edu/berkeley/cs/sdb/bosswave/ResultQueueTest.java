@@ -0,0 +1,85 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResultQueueTest {
+
+    private static BosswaveResult result(String uri) {
+        return new BosswaveResult("from", uri, Collections.<RoutingObject>emptyList(),
+                Collections.<PayloadObject>emptyList());
+    }
+
+    @Test
+    public void testDropPolicies() {
+        ResultQueue oldest = new ResultQueue(2, OverflowPolicy.DROP_OLDEST);
+        ResultQueue newest = new ResultQueue(2, OverflowPolicy.DROP_NEWEST);
+        for (String uri : new String[]{"a", "b", "c"}) {
+            oldest.onResultReceived(result(uri));
+            newest.onResultReceived(result(uri));
+        }
+        assertEquals(1, oldest.getDroppedCount());
+        assertEquals("b", oldest.poll().getUri());
+        assertEquals("c", oldest.poll().getUri());
+        assertNull(oldest.poll());
+
+        assertEquals(1, newest.getDroppedCount());
+        assertEquals("a", newest.poll().getUri());
+        assertEquals("b", newest.poll().getUri());
+        assertNull(newest.poll());
+    }
+
+    @Test
+    public void testConflateByUri() {
+        ResultQueue queue = new ResultQueue(2, OverflowPolicy.CONFLATE_BY_URI);
+        BosswaveResult latestA = result("a");
+        queue.onResultReceived(result("a"));
+        queue.onResultReceived(result("b"));
+        queue.onResultReceived(latestA);
+        assertEquals(2, queue.size());
+        // The newer value for "a" keeps the place of the older one
+        assertSame(latestA, queue.poll());
+        assertEquals("b", queue.poll().getUri());
+
+        queue.onResultReceived(result("a"));
+        queue.onResultReceived(result("b"));
+        queue.onResultReceived(result("c"));
+        List<BosswaveResult> drained = new ArrayList<BosswaveResult>();
+        assertEquals(2, queue.drainTo(drained));
+        assertEquals("b", drained.get(0).getUri());
+        assertEquals("c", drained.get(1).getUri());
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    public void testBlockWaitsForConsumer() throws InterruptedException {
+        final ResultQueue queue = new ResultQueue(1, OverflowPolicy.BLOCK);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.onResultReceived(result("a"));
+                queue.onResultReceived(result("b"));
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        assertEquals("a", queue.take().getUri());
+        assertEquals("b", queue.poll(5, TimeUnit.SECONDS).getUri());
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.getDroppedCount());
+    }
+}
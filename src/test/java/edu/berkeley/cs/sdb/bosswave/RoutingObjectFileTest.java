@@ -0,0 +1,82 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RoutingObjectFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(byte[] contents) throws IOException {
+        File f = folder.newFile();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        RoutingObject ro = RoutingObjectFile.read(write(new byte[]{(byte) 0xFF, 1, 2, 3}));
+        assertEquals(255, ro.getRoutingObjectNumber());
+        assertArrayEquals(new byte[]{1, 2, 3}, ro.getContent());
+    }
+
+    @Test
+    public void testReadLarge() throws IOException {
+        byte[] contents = new byte[RoutingObjectFile.MAP_THRESHOLD * 2 + 1];
+        contents[0] = (byte) POAllocations.PONumROAccessDChain;
+        for (int i = 1; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+        RoutingObject ro = RoutingObjectFile.read(write(contents));
+        assertEquals(POAllocations.PONumROAccessDChain, ro.getRoutingObjectNumber());
+        assertArrayEquals(Arrays.copyOfRange(contents, 1, contents.length), ro.getContent());
+    }
+
+    @Test
+    public void testReadFiltered() throws IOException {
+        File f = write(new byte[]{(byte) POAllocations.PONumROEntityWKey, 1, 2, 3});
+        assertNull(RoutingObjectFile.read(f, RoutingObjectImporter.IMPORTABLE_TYPES));
+        f = write(new byte[]{(byte) POAllocations.PONumROEntity, 1, 2, 3});
+        assertEquals(POAllocations.PONumROEntity,
+                     RoutingObjectFile.read(f, RoutingObjectImporter.IMPORTABLE_TYPES).getRoutingObjectNumber());
+    }
+
+    @Test
+    public void testPutCommand() {
+        assertEquals(Command.PUT_ENTITY, RoutingObjectImporter.putCommand(POAllocations.PONumROEntity));
+        assertEquals(Command.PUT_DOT, RoutingObjectImporter.putCommand(POAllocations.PONumROPermissionDOT));
+        assertEquals(Command.PUT_CHAIN, RoutingObjectImporter.putCommand(POAllocations.PONumROPermissionDChain));
+    }
+
+    @Test(expected = IOException.class)
+    public void testEmptyFile() throws IOException {
+        RoutingObjectFile.read(write(new byte[0]));
+    }
+
+    @Test
+    public void testClassify() {
+        assertTrue(RoutingObjectFile.isDot(POAllocations.PONumROAccessDOT));
+        assertTrue(RoutingObjectFile.isDot(POAllocations.PONumROPermissionDOT));
+        assertFalse(RoutingObjectFile.isDot(POAllocations.PONumROAccessDChain));
+        assertTrue(RoutingObjectFile.isChain(POAllocations.PONumROAccessDChain));
+        assertTrue(RoutingObjectFile.isChain(POAllocations.PONumROPermissionDChain));
+        assertFalse(RoutingObjectFile.isChain(POAllocations.PONumROEntity));
+    }
+}
@@ -0,0 +1,157 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RoutingObjectImporterTest {
+    private static final int MAX_IN_FLIGHT = 2;
+    // Long enough for a stray frame to arrive, short enough to keep the tests quick
+    private static final long QUIET_MILLIS = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // The commands the agent has received, in order
+    private final List<Command> commands = Collections.synchronizedList(new ArrayList<Command>());
+    private volatile boolean holdEntities;
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    // Accepts every object except those whose content starts with 'x'; entities may be left for the test to answer
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) throws IOException {
+                commands.add(frame.getCommand());
+                if (holdEntities && frame.getCommand() == Command.PUT_ENTITY) {
+                    return;
+                }
+                if (frame.getPayloadObjects().get(0).getContent()[0] == 'x') {
+                    agent.respond(frame, "error", "reason", "invalid signature");
+                } else {
+                    agent.respond(frame, "okay");
+                }
+            }
+        });
+        client = agent.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    private File write(String name, int roNum, String content) throws IOException {
+        File f = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(roNum);
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void testEntitiesThenDotsThenChains() throws Exception {
+        List<File> files = Arrays.asList(
+                write("1-chain", POAllocations.PONumROAccessDChain, "chain"),
+                write("2-dot", POAllocations.PONumROAccessDOT, "xdot"),
+                write("3-entity", POAllocations.PONumROEntity, "entity"),
+                write("4-key", POAllocations.PONumROEntityWKey, "secret"),
+                write("5-pchain", POAllocations.PONumROPermissionDChain, "pchain"),
+                write("6-pdot", POAllocations.PONumROPermissionDOT, "pdot"),
+                write("7-entity", POAllocations.PONumROEntity, "entity2"));
+        final List<Integer> progress = Collections.synchronizedList(new ArrayList<Integer>());
+        holdEntities = true;
+        CompletableFuture<Map<File, BosswaveResponse>> future = client.importRoutingObjects(files, MAX_IN_FLIGHT,
+                new ProgressListener() {
+                    @Override
+                    public void onProgress(int completed, int total) {
+                        assertEquals(7, total);
+                        progress.add(completed);
+                    }
+                });
+
+        // No DOT is sent until the agent has answered for every entity
+        List<Frame> entities = agent.await(Command.PUT_ENTITY, 2);
+        Thread.sleep(QUIET_MILLIS);
+        assertEquals(Arrays.asList(Command.PUT_ENTITY, Command.PUT_ENTITY), commands);
+        agent.respond(entities.get(0), "okay");
+        agent.respond(entities.get(1), "okay");
+
+        Map<File, BosswaveResponse> imported = future.get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(Command.PUT_ENTITY, Command.PUT_ENTITY, Command.PUT_DOT, Command.PUT_DOT,
+                                   Command.PUT_CHAIN, Command.PUT_CHAIN), commands);
+
+        // Responses come back in file order, without the skipped key; the rejected DOT doesn't stop the chains
+        List<File> expected = new ArrayList<File>(files);
+        expected.remove(3);
+        assertEquals(expected, new ArrayList<File>(imported.keySet()));
+        assertEquals("error", imported.get(files.get(1)).getStatus());
+        assertEquals("invalid signature", imported.get(files.get(1)).getReason());
+        assertEquals("okay", imported.get(files.get(0)).getStatus());
+
+        List<Integer> sorted = new ArrayList<Integer>(progress);
+        Collections.sort(sorted);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), sorted);
+    }
+
+    @Test
+    public void testUnreadableFileFailsImport() throws Exception {
+        List<File> files = Arrays.asList(write("1-entity", POAllocations.PONumROEntity, "entity"),
+                                         folder.newFile("2-empty"));
+        try {
+            client.importRoutingObjects(files, MAX_IN_FLIGHT, null).get(ScriptedAgent.AWAIT_MILLIS,
+                                                                          TimeUnit.MILLISECONDS);
+            fail("An empty file was imported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        // The files are classified before anything is sent
+        Thread.sleep(QUIET_MILLIS);
+        assertTrue(commands.isEmpty());
+    }
+
+    @Test
+    public void testLostConnectionStopsLaterTiers() throws Exception {
+        List<File> files = Arrays.asList(write("1-entity", POAllocations.PONumROEntity, "entity"),
+                                         write("2-dot", POAllocations.PONumROAccessDOT, "dot"));
+        holdEntities = true;
+        CompletableFuture<Map<File, BosswaveResponse>> future = client.importRoutingObjects(files, MAX_IN_FLIGHT,
+                                                                                            null);
+        agent.await(Command.PUT_ENTITY, 1);
+        agent.disconnect();
+        try {
+            future.get(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+            fail("The import succeeded without an agent");
+        } catch (ExecutionException e) {
+            // The entity is answered with the lost connection, and the DOT can't be sent
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(1, agent.received(Command.PUT_ENTITY).size());
+        assertTrue(agent.received(Command.PUT_DOT).isEmpty());
+    }
+}
@@ -0,0 +1,155 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Stands in for a Bosswave agent on a local port, for tests that drive a real BosswaveClient. The agent greets
+ * the first client to connect, records every frame it receives and hands each to a Script, which replies (or
+ * doesn't) through the agent.
+ */
+class ScriptedAgent implements Closeable {
+    static final long AWAIT_MILLIS = 5000;
+
+    interface Script {
+        void onFrame(ScriptedAgent agent, Frame frame) throws IOException;
+    }
+
+    // Answers every request with an "okay" response
+    static final Script OKAY = new Script() {
+        @Override
+        public void onFrame(ScriptedAgent agent, Frame frame) throws IOException {
+            agent.respond(frame, "okay");
+        }
+    };
+
+    private final ServerSocket server;
+    private final Script script;
+    private final List<Frame> received;
+    private Socket socket;
+    private OutputStream out;
+
+    ScriptedAgent(Script script) throws IOException {
+        server = new ServerSocket(0);
+        this.script = script;
+        received = new ArrayList<Frame>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "scripted-agent");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    BosswaveClient connect() throws IOException {
+        return new BosswaveClient("localhost", getPort());
+    }
+
+    synchronized void send(Frame frame) throws IOException {
+        frame.writeToStream(out);
+        out.flush();
+    }
+
+    // Responds to a request, with the given status and key/value pairs
+    void respond(Frame request, String status, String... kvs) throws IOException {
+        Frame.Builder builder = new Frame.Builder(Command.RESPONSE, request.getSeqNo()).addKVPair("status", status);
+        send(addKVPairs(builder, kvs).build());
+    }
+
+    // Sends a result for a request, with the given key/value pairs
+    void sendResult(int seqNo, boolean finished, String... kvs) throws IOException {
+        Frame.Builder builder = addKVPairs(new Frame.Builder(Command.RESULT, seqNo), kvs);
+        send(builder.addKVPair("finished", Boolean.toString(finished)).build());
+    }
+
+    private static Frame.Builder addKVPairs(Frame.Builder builder, String... kvs) {
+        for (int i = 0; i < kvs.length; i += 2) {
+            builder.addKVPair(kvs[i], kvs[i + 1]);
+        }
+        return builder;
+    }
+
+    // Closes the connection, as an agent that shuts down would
+    synchronized void disconnect() throws IOException {
+        socket.close();
+    }
+
+    synchronized List<Frame> received(Command command) {
+        List<Frame> frames = new ArrayList<Frame>();
+        for (Frame frame : received) {
+            if (frame.getCommand() == command) {
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    // Waits until at least count frames with a command have arrived, failing the test if they don't
+    synchronized List<Frame> await(Command command, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AWAIT_MILLIS;
+        List<Frame> frames;
+        while ((frames = received(command)).size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                fail("Expected " + count + " " + command + " frames, received " + frames.size());
+            }
+            wait(remaining);
+        }
+        return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        synchronized (this) {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    private void serve() {
+        try {
+            Socket accepted = server.accept();
+            synchronized (this) {
+                socket = accepted;
+                out = new BufferedOutputStream(accepted.getOutputStream());
+            }
+            send(new Frame.Builder(Command.HELLO, 0).build());
+            InputStream in = accepted.getInputStream();
+            FrameDecoder decoder = new FrameDecoder();
+            List<Frame> frames = new ArrayList<Frame>();
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                decoder.decode(ByteBuffer.wrap(buf, 0, n), frames);
+                for (Frame frame : frames) {
+                    synchronized (this) {
+                        received.add(frame);
+                        notifyAll();
+                    }
+                    script.onFrame(this, frame);
+                }
+                frames.clear();
+            }
+        } catch (IOException e) {
+            // The connection is closed
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedSubscriptionTest {
+    private static final SubscribeRequest REQUEST = new SubscribeRequest.Builder("scratch.ns/a").build();
+    // Long enough for a stray frame to arrive, short enough to keep the tests quick
+    private static final long QUIET_MILLIS = 200;
+
+    private static class Recorder implements ResponseHandler, ResultHandler {
+        final BlockingQueue<BosswaveResponse> responses = new LinkedBlockingQueue<BosswaveResponse>();
+        final BlockingQueue<BosswaveResult> results = new LinkedBlockingQueue<BosswaveResult>();
+
+        @Override
+        public void onResponseReceived(BosswaveResponse response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void onResultReceived(BosswaveResult result) {
+            results.add(result);
+        }
+
+        BosswaveResponse nextResponse() throws InterruptedException {
+            return responses.poll(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        BosswaveResult nextResult() throws InterruptedException {
+            return results.poll(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    // Accepts every subscription, giving it a handle named after its sequence number
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) throws IOException {
+                if (frame.getCommand() == Command.SUBSCRIBE) {
+                    agent.respond(frame, "okay", "handle", "h" + frame.getSeqNo());
+                }
+            }
+        });
+        client = agent.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    @Test
+    public void testSubscribersShareOneSubscription() throws Exception {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        client.subscribeShared(REQUEST, first, first);
+        client.subscribeShared(REQUEST, second, second);
+        int seqNo = agent.await(Command.SUBSCRIBE, 1).get(0).getSeqNo();
+        assertEquals("okay", first.nextResponse().getStatus());
+        assertEquals("okay", second.nextResponse().getStatus());
+
+        agent.sendResult(seqNo, false, "uri", "scratch.ns/a", "from", "vk");
+        assertEquals("scratch.ns/a", first.nextResult().getUri());
+        assertEquals("scratch.ns/a", second.nextResult().getUri());
+        assertEquals(1, agent.received(Command.SUBSCRIBE).size());
+    }
+
+    @Test
+    public void testLateJoinerGetsKnownResponse() throws Exception {
+        Recorder first = new Recorder();
+        client.subscribeShared(REQUEST, first, first);
+        assertEquals("okay", first.nextResponse().getStatus());
+
+        Recorder late = new Recorder();
+        client.subscribeShared(REQUEST, late, late);
+        // The response is replayed at once, without another SUBSCRIBE
+        assertEquals("okay", late.responses.poll().getStatus());
+        assertEquals(1, agent.received(Command.SUBSCRIBE).size());
+    }
+
+    @Test
+    public void testCancellingOneShareKeepsTheOthers() throws Exception {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        SharedSubscription firstShare = client.subscribeShared(REQUEST, first, first);
+        client.subscribeShared(REQUEST, second, second);
+        int seqNo = agent.await(Command.SUBSCRIBE, 1).get(0).getSeqNo();
+        assertNotNull(second.nextResponse());
+
+        firstShare.cancel();
+        assertTrue(firstShare.isCancelled());
+        agent.sendResult(seqNo, false, "uri", "scratch.ns/a", "from", "vk");
+        assertEquals("scratch.ns/a", second.nextResult().getUri());
+        assertTrue(first.results.isEmpty());
+        Thread.sleep(QUIET_MILLIS);
+        assertTrue(agent.received(Command.UNSUBSCRIBE).isEmpty());
+    }
+
+    @Test
+    public void testCancellingLastShareUnsubscribes() throws Exception {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        SharedSubscription firstShare = client.subscribeShared(REQUEST, first, first);
+        SharedSubscription secondShare = client.subscribeShared(REQUEST, second, second);
+        int seqNo = agent.await(Command.SUBSCRIBE, 1).get(0).getSeqNo();
+        assertNotNull(first.nextResponse());
+
+        firstShare.cancel();
+        secondShare.cancel();
+        List<Frame> unsubscribes = agent.await(Command.UNSUBSCRIBE, 1);
+        assertEquals("h" + seqNo, unsubscribes.get(0).getFirstValueAsString("handle"));
+
+        // Results the agent sent before it saw the UNSUBSCRIBE are dropped
+        agent.sendResult(seqNo, false, "uri", "scratch.ns/a", "from", "vk");
+        Thread.sleep(QUIET_MILLIS);
+        assertNull(first.results.poll());
+        assertNull(second.results.poll());
+
+        // A new subscriber starts a new subscription
+        Recorder third = new Recorder();
+        client.subscribeShared(REQUEST, third, third);
+        agent.await(Command.SUBSCRIBE, 2);
+    }
+
+    @Test
+    public void testRequestsWithExpiryDeltaAreNotShared() throws Exception {
+        SubscribeRequest request = new SubscribeRequest.Builder("scratch.ns/a").setExpiryDelta(60000).build();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        client.subscribeShared(request, first, first);
+        client.subscribeShared(request, second, second);
+        agent.await(Command.SUBSCRIBE, 2);
+    }
+
+    @Test
+    public void testCancellingBeforeResponseUnsubscribesOnceAccepted() throws Exception {
+        ScriptedAgent slowAgent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) {
+                // The test responds when it is ready
+            }
+        });
+        BosswaveClient slowClient = slowAgent.connect();
+        try {
+            Recorder recorder = new Recorder();
+            SharedSubscription share = slowClient.subscribeShared(REQUEST, recorder, recorder);
+            Frame subscribe = slowAgent.await(Command.SUBSCRIBE, 1).get(0);
+            share.cancel();
+
+            slowAgent.respond(subscribe, "okay", "handle", "late");
+            assertEquals("late", slowAgent.await(Command.UNSUBSCRIBE, 1).get(0).getFirstValueAsString("handle"));
+            assertTrue(recorder.responses.isEmpty());
+        } finally {
+            slowClient.close();
+            slowAgent.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StripedExecutorTest {
+
+    @Test
+    public void testOrderedPerKey() throws InterruptedException {
+        final int keys = 50;
+        final int tasksPerKey = 2000;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        StripedExecutor executor = new StripedExecutor(pool, 8);
+
+        final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+        for (int k = 0; k < keys; k++) {
+            seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int k = 0; k < keys; k++) {
+                final int key = k;
+                final int value = i;
+                executor.execute(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        seen.get(key).add(value);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        for (List<Integer> values : seen) {
+            assertEquals(tasksPerKey, values.size());
+            for (int i = 0; i < tasksPerKey; i++) {
+                assertEquals(i, (int) values.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSlowKeyDoesNotBlockOthers() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        StripedExecutor executor = new StripedExecutor(pool, 64);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherRan = new CountDownLatch(1);
+
+        executor.execute(1, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.execute(2, new Runnable() {
+            @Override
+            public void run() {
+                otherRan.countDown();
+            }
+        });
+        assertTrue(otherRan.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testFailingTaskIsReportedAndStripeContinues() throws InterruptedException {
+        final AtomicReference<Throwable> reported = new AtomicReference<Throwable>();
+        ExecutorService pool = Executors.newFixedThreadPool(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread thread, Throwable e) {
+                        reported.set(e);
+                    }
+                });
+                return t;
+            }
+        });
+        StripedExecutor executor = new StripedExecutor(pool, 1);
+        final RuntimeException failure = new IllegalStateException("Handler failed");
+        final CountDownLatch nextRan = new CountDownLatch(1);
+
+        executor.execute(1, new Runnable() {
+            @Override
+            public void run() {
+                throw failure;
+            }
+        });
+        executor.execute(1, new Runnable() {
+            @Override
+            public void run() {
+                nextRan.countDown();
+            }
+        });
+        assertTrue(nextRan.await(5, TimeUnit.SECONDS));
+        assertSame(failure, reported.get());
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,26 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class SubscribeRequestTest {
+
+    @Test
+    public void testEquality() {
+        byte[] ro = {1, 2, 3};
+        SubscribeRequest a = new SubscribeRequest.Builder("scratch.ns/a").setExpiryDelta(1000)
+                .addRoutingObject(new RoutingObject(5, ro)).build();
+        SubscribeRequest b = new SubscribeRequest.Builder("scratch.ns/a").setExpiryDelta(1000)
+                .addRoutingObject(new RoutingObject(5, ro.clone())).build();
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+
+        assertNotEquals(a, new SubscribeRequest.Builder("scratch.ns/b").setExpiryDelta(1000)
+                .addRoutingObject(new RoutingObject(5, ro)).build());
+        assertNotEquals(a, new SubscribeRequest.Builder("scratch.ns/a").setExpiryDelta(1000)
+                .addRoutingObject(new RoutingObject(5, ro)).setLeavePacked(true).build());
+        assertNotEquals(a, new SubscribeRequest.Builder("scratch.ns/a").setExpiryDelta(1000).build());
+    }
+}
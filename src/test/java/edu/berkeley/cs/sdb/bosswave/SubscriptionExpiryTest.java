@@ -0,0 +1,37 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubscriptionExpiryTest {
+    private static final long NOW = 1000000L;
+
+    @Test
+    public void testNoExpiry() {
+        assertEquals(-1, BosswaveClient.expiryDelayMillis(null, null, NOW));
+    }
+
+    @Test
+    public void testExpiryOnly() {
+        assertEquals(5000, BosswaveClient.expiryDelayMillis(new Date(NOW + 5000), null, NOW));
+    }
+
+    @Test
+    public void testExpiryInPast() {
+        assertEquals(0, BosswaveClient.expiryDelayMillis(new Date(NOW - 5000), null, NOW));
+    }
+
+    @Test
+    public void testExpiryDeltaOnly() {
+        assertEquals(250, BosswaveClient.expiryDelayMillis(null, 250L, NOW));
+    }
+
+    @Test
+    public void testSoonerOfBoth() {
+        assertEquals(250, BosswaveClient.expiryDelayMillis(new Date(NOW + 5000), 250L, NOW));
+        assertEquals(100, BosswaveClient.expiryDelayMillis(new Date(NOW + 100), 250L, NOW));
+    }
+}
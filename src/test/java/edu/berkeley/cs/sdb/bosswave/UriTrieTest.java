@@ -0,0 +1,63 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UriTrieTest {
+
+    private static List<String> match(UriTrie<String> trie, String uri) {
+        List<String> matches = new ArrayList<String>();
+        trie.match(uri, matches);
+        Collections.sort(matches);
+        return matches;
+    }
+
+    @Test
+    public void testWildcardMatching() {
+        UriTrie<String> trie = new UriTrie<String>();
+        trie.add("building/floor1/room1/temp", "exact");
+        trie.add("building/+/room1/temp", "plus");
+        trie.add("building/floor1/*", "star");
+        trie.add("building/*/temp", "middle star");
+
+        assertEquals(4, match(trie, "building/floor1/room1/temp").size());
+        assertEquals(Arrays.asList("middle star", "plus"), match(trie, "building/floor2/room1/temp"));
+        assertEquals(Arrays.asList("middle star", "star"), match(trie, "building/floor1/temp"));
+        // "*" also matches no segments at all
+        assertEquals(Collections.singletonList("star"), match(trie, "building/floor1"));
+        assertEquals(Collections.singletonList("star"), match(trie, "building/floor1/room2/humidity"));
+        assertTrue(match(trie, "building").isEmpty());
+        assertTrue(match(trie, "other/floor1/room1/temp").isEmpty());
+    }
+
+    @Test
+    public void testCountsAndRemoval() {
+        UriTrie<String> trie = new UriTrie<String>();
+        trie.add("a/b/c", "1");
+        trie.add("a/b/d", "2");
+        trie.add("a/e", "3");
+        assertEquals(3, trie.size());
+        assertEquals(2, trie.countUnder("a/b"));
+        assertEquals(3, trie.countUnder("a"));
+        assertEquals(0, trie.countUnder("x"));
+
+        List<String> under = new ArrayList<String>();
+        trie.collectUnder("a/b", under);
+        Collections.sort(under);
+        assertEquals(Arrays.asList("1", "2"), under);
+
+        assertTrue(trie.remove("a/b/c", "1"));
+        assertFalse(trie.remove("a/b/c", "1"));
+        assertEquals(1, trie.countUnder("a/b"));
+        assertTrue(match(trie, "a/b/c").isEmpty());
+        assertEquals(Collections.singletonList("2"), match(trie, "a/b/d"));
+    }
+}
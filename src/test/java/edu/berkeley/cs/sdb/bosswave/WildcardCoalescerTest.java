@@ -0,0 +1,229 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WildcardCoalescerTest {
+    // Long enough for a stray frame to arrive, short enough to keep the tests quick
+    private static final long QUIET_MILLIS = 200;
+
+    private static class Recorder implements ResponseHandler, ResultHandler {
+        final BlockingQueue<BosswaveResponse> responses = new LinkedBlockingQueue<BosswaveResponse>();
+        final BlockingQueue<BosswaveResult> results = new LinkedBlockingQueue<BosswaveResult>();
+
+        @Override
+        public void onResponseReceived(BosswaveResponse response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void onResultReceived(BosswaveResult result) {
+            results.add(result);
+        }
+
+        BosswaveResponse nextResponse() throws InterruptedException {
+            return responses.poll(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        BosswaveResult nextResult() throws InterruptedException {
+            return results.poll(ScriptedAgent.AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Subscription URIs that the agent rejects, or leaves for the test to answer
+    private final Set<String> rejected = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> held = Collections.synchronizedSet(new HashSet<String>());
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) throws IOException {
+                if (frame.getCommand() != Command.SUBSCRIBE) {
+                    return;
+                }
+                String uri = frame.getFirstValueAsString("uri");
+                if (rejected.contains(uri)) {
+                    agent.respond(frame, "error", "reason", "no permission");
+                } else if (!held.contains(uri)) {
+                    agent.respond(frame, "okay", "handle", handle(frame));
+                }
+            }
+        });
+        client = agent.connect();
+        client.setWildcardCoalescingThreshold(3);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    @Test
+    public void testSiblingsSwitchToWildcard() throws Exception {
+        List<Recorder> members = subscribe("b/f/1", "b/f/2", "b/f/3");
+        Frame wildcard = subscribeFrame("b/f/*");
+        assertEquals(3, agent.received(Command.SUBSCRIBE).size());
+        for (Recorder member : members) {
+            assertEquals("okay", member.nextResponse().getStatus());
+        }
+
+        // The individual subscriptions are ended once the wildcard takes over
+        List<Frame> unsubscribes = agent.await(Command.UNSUBSCRIBE, 2);
+        Set<String> handles = new HashSet<String>();
+        for (Frame frame : unsubscribes) {
+            handles.add(frame.getFirstValueAsString("handle"));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList(handle(subscribeFrame("b/f/1")),
+                                                       handle(subscribeFrame("b/f/2")))), handles);
+
+        agent.sendResult(subscribeFrame("b/f/1").getSeqNo(), false, "uri", "b/f/1", "from", "vk");
+        agent.sendResult(wildcard.getSeqNo(), false, "uri", "b/f/2", "from", "vk");
+        assertEquals("b/f/2", members.get(1).nextResult().getUri());
+        Thread.sleep(QUIET_MILLIS);
+        assertNull(members.get(0).results.poll());
+        assertNull(members.get(2).results.poll());
+    }
+
+    @Test
+    public void testRejectedWildcardFallsBack() throws Exception {
+        rejected.add("b/f/*");
+        rejected.add("b/*");
+        List<Recorder> members = subscribe("b/f/1", "b/f/2", "b/f/3");
+        for (Recorder member : members) {
+            assertEquals("okay", member.nextResponse().getStatus());
+        }
+        // The member that triggered the wildcard subscribes on its own once the wildcard is refused
+        Frame own = subscribeFrame("b/f/3");
+        agent.sendResult(own.getSeqNo(), false, "uri", "b/f/3", "from", "vk");
+        assertEquals("b/f/3", members.get(2).nextResult().getUri());
+
+        // The prefix isn't tried again; the next prefix up is, and once that is refused too, the new member
+        // subscribes on its own
+        Recorder fourth = subscribe("b/f/4").get(0);
+        assertEquals("okay", fourth.nextResponse().getStatus());
+        subscribeFrame("b/f/4");
+        assertEquals(1, subscribeFrames("b/f/*").size());
+        assertEquals(1, subscribeFrames("b/*").size());
+        assertTrue(agent.received(Command.UNSUBSCRIBE).isEmpty());
+    }
+
+    @Test
+    public void testResultsDuringSwitchoverAreDeliveredOnce() throws Exception {
+        held.add("b/f/*");
+        List<Recorder> members = subscribe("b/f/1", "b/f/2", "b/f/3");
+        Frame wildcard = subscribeFrame("b/f/*");
+        Frame first = subscribeFrame("b/f/1");
+        assertEquals("okay", members.get(0).nextResponse().getStatus());
+
+        // Until the agent accepts the wildcard, members take results from their own subscriptions only
+        agent.sendResult(wildcard.getSeqNo(), false, "uri", "b/f/1", "from", "vk", "n", "early-wildcard");
+        agent.sendResult(first.getSeqNo(), false, "uri", "b/f/1", "from", "vk", "n", "individual");
+        assertEquals("individual", members.get(0).nextResult().getValue("n"));
+
+        agent.respond(wildcard, "okay", "handle", handle(wildcard));
+        assertEquals("okay", members.get(2).nextResponse().getStatus());
+        agent.await(Command.UNSUBSCRIBE, 2);
+
+        agent.sendResult(first.getSeqNo(), false, "uri", "b/f/1", "from", "vk", "n", "late-individual");
+        agent.sendResult(wildcard.getSeqNo(), false, "uri", "b/f/1", "from", "vk", "n", "wildcard");
+        assertEquals("wildcard", members.get(0).nextResult().getValue("n"));
+        Thread.sleep(QUIET_MILLIS);
+        assertNull(members.get(0).results.poll());
+    }
+
+    @Test
+    public void testCancellingAllMembersEndsWildcard() throws Exception {
+        List<CoalescedSubscription> handles = new ArrayList<CoalescedSubscription>();
+        List<Recorder> members = new ArrayList<Recorder>();
+        for (String uri : new String[]{"b/f/1", "b/f/2", "b/f/3"}) {
+            Recorder member = new Recorder();
+            members.add(member);
+            handles.add(client.subscribeCoalesced(new SubscribeRequest.Builder(uri).build(), member, member));
+        }
+        Frame wildcard = subscribeFrame("b/f/*");
+        agent.await(Command.UNSUBSCRIBE, 2);
+
+        handles.get(0).cancel();
+        handles.get(1).cancel();
+        assertTrue(handles.get(0).isCancelled());
+        // The remaining member keeps the wildcard
+        agent.sendResult(wildcard.getSeqNo(), false, "uri", "b/f/3", "from", "vk");
+        assertEquals("b/f/3", members.get(2).nextResult().getUri());
+        assertEquals(2, agent.received(Command.UNSUBSCRIBE).size());
+
+        handles.get(2).cancel();
+        List<Frame> unsubscribes = agent.await(Command.UNSUBSCRIBE, 3);
+        assertEquals(handle(wildcard), unsubscribes.get(2).getFirstValueAsString("handle"));
+    }
+
+    @Test
+    public void testRequestsWithExpiryDeltaAreNotCoalesced() throws Exception {
+        for (String uri : new String[]{"b/f/1", "b/f/2", "b/f/3"}) {
+            Recorder member = new Recorder();
+            client.subscribeCoalesced(new SubscribeRequest.Builder(uri).setExpiryDelta(60000).build(), member,
+                                      member);
+            assertEquals("okay", member.nextResponse().getStatus());
+        }
+        assertEquals(3, agent.received(Command.SUBSCRIBE).size());
+        assertTrue(subscribeFrames("b/f/*").isEmpty());
+    }
+
+    private static String handle(Frame subscribe) {
+        return "h" + subscribe.getSeqNo();
+    }
+
+    private List<Recorder> subscribe(String... uris) throws IOException {
+        List<Recorder> members = new ArrayList<Recorder>();
+        for (String uri : uris) {
+            Recorder member = new Recorder();
+            client.subscribeCoalesced(new SubscribeRequest.Builder(uri).build(), member, member);
+            members.add(member);
+        }
+        return members;
+    }
+
+    private List<Frame> subscribeFrames(String uri) {
+        List<Frame> frames = new ArrayList<Frame>();
+        for (Frame frame : agent.received(Command.SUBSCRIBE)) {
+            if (uri.equals(frame.getFirstValueAsString("uri"))) {
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    // Waits for the subscription to a URI to reach the agent
+    private Frame subscribeFrame(String uri) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ScriptedAgent.AWAIT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            List<Frame> frames = subscribeFrames(uri);
+            if (!frames.isEmpty()) {
+                return frames.get(0);
+            }
+            Thread.sleep(10);
+        }
+        fail("No subscription to " + uri);
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+package edu.berkeley.cs.sdb.bosswave;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class WriterShutdownTest {
+    private static final int PUBLISHERS = 4;
+
+    private ScriptedAgent agent;
+    private BosswaveClient client;
+
+    // An agent that never answers
+    @Before
+    public void setUp() throws IOException {
+        agent = new ScriptedAgent(new ScriptedAgent.Script() {
+            @Override
+            public void onFrame(ScriptedAgent agent, Frame frame) {
+            }
+        });
+        client = agent.connect();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        agent.close();
+    }
+
+    // Publishes from several threads, each until a publish fails, counting the ones that were accepted
+    private static class Publishers {
+        final AtomicInteger accepted = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        Publishers(final BosswaveClient client) {
+            for (int i = 0; i < PUBLISHERS; i++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        PublishRequest request = new PublishRequest.Builder("scratch.ns/a").build();
+                        try {
+                            while (true) {
+                                client.publish(request, null);
+                                accepted.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            // The client has stopped taking frames
+                        }
+                    }
+                }, "publisher-" + i));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        void join() throws InterruptedException {
+            for (Thread thread : threads) {
+                thread.join(ScriptedAgent.AWAIT_MILLIS);
+                assertFalse(thread.getName() + " is still publishing", thread.isAlive());
+            }
+        }
+    }
+
+    @Test
+    public void testEveryAcceptedPublishIsWrittenBeforeClose() throws Exception {
+        Publishers publishers = new Publishers(client);
+        agent.await(Command.PUBLISH, 100);
+        client.close();
+        publishers.join();
+
+        // The agent may still be reading what the writer sent before the socket closed
+        int accepted = publishers.accepted.get();
+        long deadline = System.currentTimeMillis() + ScriptedAgent.AWAIT_MILLIS;
+        while (agent.received(Command.PUBLISH).size() < accepted && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(accepted, agent.received(Command.PUBLISH).size());
+    }
+
+    @Test
+    public void testPublishesFailOnceWritesFail() throws Exception {
+        Publishers publishers = new Publishers(client);
+        agent.await(Command.PUBLISH, 100);
+        agent.disconnect();
+        publishers.join();
+
+        try {
+            client.publish(new PublishRequest.Builder("scratch.ns/a").build(), null);
+            fail("Published after the connection failed");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}